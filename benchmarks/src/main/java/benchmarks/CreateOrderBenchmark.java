@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inserts order rows through OrderService.createOrder, bypassing the HTTP layer and the other services. It runs on
+ * several threads because group commit only pays off when orders arrive concurrently.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class CreateOrderBenchmark {
+    private static final MethodHandle CREATE_ORDER;
+
+    static {
+        try {
+            CREATE_ORDER = ServiceHarness.staticMethod("OrderService", "createOrder",
+                    MethodType.methodType(long.class, int.class, int.class, int.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Param({"sync", "group"})
+    public String durability;
+
+    @Setup
+    public void setUp() throws Exception {
+        ServiceHarness.start(durability);
+    }
+
+    @Benchmark
+    public long createOrder() throws Throwable {
+        long orderId = (long) CREATE_ORDER.invokeExact(1, 1, 1, "Success");
+        if (orderId < 0) {
+            throw new IllegalStateException("createOrder failed");
+        }
+        return orderId;
+    }
+}
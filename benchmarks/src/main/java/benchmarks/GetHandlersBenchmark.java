@@ -0,0 +1,55 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sends GET /user/{id} and GET /product/{id} straight to UserService and ProductService, spreading the lookups over
+ * a fixed set of rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GetHandlersBenchmark {
+    @Param({"1000"})
+    public int rows;
+
+    private ServiceHarness services;
+
+    @Setup
+    public void setUp() throws Exception {
+        services = ServiceHarness.start("group");
+        for (int id = 1; id <= rows; id++) {
+            services.createUser(id);
+            services.createProduct(id, 100);
+        }
+    }
+
+    private int nextId() {
+        return ThreadLocalRandom.current().nextInt(rows) + 1;
+    }
+
+    @Benchmark
+    public String getUser() throws Exception {
+        return ServiceHarness.expectOk(services.get(services.userPort, "/user/" + nextId())).body();
+    }
+
+    @Benchmark
+    public String getProduct() throws Exception {
+        return ServiceHarness.expectOk(services.get(services.productPort, "/product/" + nextId())).body();
+    }
+}
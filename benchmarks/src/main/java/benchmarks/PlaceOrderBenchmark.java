@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Places orders through OrderService's HTTP endpoint, which checks the user, fetches and reserves the product and
+ * records the order. Every call succeeds, since the product is stocked well beyond what a run can order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PlaceOrderBenchmark {
+    private static final int USER_ID = 1;
+    private static final int PRODUCT_ID = 1;
+
+    private ServiceHarness services;
+    private JSONObject order;
+
+    @Setup
+    public void setUp() throws Exception {
+        services = ServiceHarness.start("group");
+        services.createUser(USER_ID);
+        services.createProduct(PRODUCT_ID, Integer.MAX_VALUE);
+        order = new JSONObject()
+                .put("command", "place order")
+                .put("user_id", USER_ID)
+                .put("product_id", PRODUCT_ID)
+                .put("quantity", 1);
+    }
+
+    @Benchmark
+    public String placeOrder() throws Exception {
+        return ServiceHarness.expectOk(services.post(services.orderPort, "/order", order)).body();
+    }
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures OrderService's readRequestJson and sendResponse on an in-memory exchange, i.e. the cost of turning a
+ * request body into a JSON object and a response String into bytes, without any network I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    private static final MethodHandle READ_REQUEST_JSON;
+    private static final MethodHandle SEND_RESPONSE;
+
+    static {
+        try {
+            READ_REQUEST_JSON = ServiceHarness.staticMethod("OrderService", "readRequestJson",
+                    MethodType.methodType(JSONObject.class, HttpExchange.class));
+            SEND_RESPONSE = ServiceHarness.staticMethod("OrderService", "sendResponse",
+                    MethodType.methodType(void.class, HttpExchange.class, String.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private StubExchange exchange;
+    private byte[] requestBody;
+    private String response;
+
+    @Setup
+    public void setUp() {
+        exchange = new StubExchange("POST", URI.create("/order"));
+        requestBody = new JSONObject()
+                .put("command", "place order")
+                .put("user_id", 1)
+                .put("product_id", 1)
+                .put("quantity", 1)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+        response = new JSONObject()
+                .put("id", 1)
+                .put("name", "product1")
+                .put("description", "benchmark product")
+                .put("price", 9.99)
+                .put("quantity", 100)
+                .toString();
+    }
+
+    @Benchmark
+    public JSONObject readRequestJson() throws Throwable {
+        exchange.reset(requestBody);
+        return (JSONObject) READ_REQUEST_JSON.invokeExact((HttpExchange) exchange);
+    }
+
+    @Benchmark
+    public byte[] sendResponse() throws Throwable {
+        exchange.reset(requestBody);
+        SEND_RESPONSE.invokeExact((HttpExchange) exchange, response, 200);
+        return exchange.writtenBody();
+    }
+}
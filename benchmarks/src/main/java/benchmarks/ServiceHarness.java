@@ -0,0 +1,157 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.json.JSONObject;
+
+/**
+ * Starts UserService, ProductService and OrderService inside the benchmark JVM, against fresh SQLite files in a
+ * temporary directory laid out the way runme.sh lays out the compiled directory.
+ *
+ * The services live in the default package and keep their state in private static fields, so the benchmarks reach
+ * them through their main methods and through method handles rather than by linking against them.
+ */
+final class ServiceHarness {
+    static final String HOST = "127.0.0.1";
+
+    private static ServiceHarness instance;
+
+    final Path root;
+    final int userPort;
+    final int productPort;
+    final int orderPort;
+    final HttpClient client;
+
+    private ServiceHarness(Path root, int userPort, int productPort, int orderPort) {
+        this.root = root;
+        this.userPort = userPort;
+        this.productPort = productPort;
+        this.orderPort = orderPort;
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    /**
+     * Starts the services on the first call in this JVM and returns the running instance afterwards. JMH forks a
+     * JVM per benchmark and parameter set, so the durability only needs to be chosen once per JVM.
+     *
+     * @param orderDurability   The OrderWriter durability mode, "sync" or "group"
+     */
+    static synchronized ServiceHarness start(String orderDurability) throws Exception {
+        if (instance != null) {
+            return instance;
+        }
+        Path root = Files.createTempDirectory("orderservice-bench");
+        Files.createDirectories(root.resolve("compiled/Database"));
+        ServiceHarness harness = new ServiceHarness(root, freePort(), freePort(), freePort());
+        Files.writeString(root.resolve("config.json"), harness.config(orderDurability).toString(2));
+
+        // Every service finds config.json and the database relative to its working directory
+        String originalDir = System.getProperty("user.dir");
+        try {
+            for (String service : new String[] {"UserService", "ProductService", "OrderService"}) {
+                System.setProperty("user.dir", root.resolve("compiled").resolve(service).toString());
+                Class.forName(service).getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+            }
+        } finally {
+            System.setProperty("user.dir", originalDir);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(harness::deleteRoot));
+
+        // OrderService drops every table unless the first command it sees is a restart
+        harness.post(harness.orderPort, "/order", new JSONObject().put("command", "restart"));
+        instance = harness;
+        return harness;
+    }
+
+    private JSONObject config(String orderDurability) {
+        JSONObject config = new JSONObject();
+        config.put("UserService", endpoint(userPort));
+        config.put("ProductService", endpoint(productPort));
+        config.put("OrderService", endpoint(orderPort));
+        config.put("InterServiceCommunication", endpoint(orderPort));
+        config.put("OrderWriter", new JSONObject().put("durability", orderDurability));
+        return config;
+    }
+
+    private static JSONObject endpoint(int port) {
+        return new JSONObject().put("ip", HOST).put("port", port);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Creates a user through UserService.
+     */
+    void createUser(int id) throws IOException, InterruptedException {
+        expectOk(post(userPort, "/user", new JSONObject()
+                .put("command", "create")
+                .put("id", id)
+                .put("username", "user" + id)
+                .put("email", "user" + id + "@example.com")
+                .put("password", "password" + id)));
+    }
+
+    /**
+     * Creates a product through ProductService.
+     */
+    void createProduct(int id, int quantity) throws IOException, InterruptedException {
+        expectOk(post(productPort, "/product", new JSONObject()
+                .put("command", "create")
+                .put("id", id)
+                .put("name", "product" + id)
+                .put("description", "benchmark product")
+                .put("price", 9.99)
+                .put("quantity", quantity)));
+    }
+
+    HttpResponse<String> post(int port, String path, JSONObject body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + HOST + ":" + port + path))
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString(), StandardCharsets.UTF_8))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    HttpResponse<String> get(int port, String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + HOST + ":" + port + path)).GET().build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    static HttpResponse<String> expectOk(HttpResponse<String> response) {
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException(response.uri() + " returned " + response.statusCode() + ": " + response.body());
+        }
+        return response;
+    }
+
+    /**
+     * Looks up a static method of one of the services, including private ones.
+     */
+    static MethodHandle staticMethod(String className, String name, MethodType type) throws ReflectiveOperationException {
+        Class<?> serviceClass = Class.forName(className);
+        return MethodHandles.privateLookupIn(serviceClass, MethodHandles.lookup()).findStatic(serviceClass, name, type);
+    }
+
+    private void deleteRoot() {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            // Best effort, the directory is under the system temp directory
+        }
+    }
+}
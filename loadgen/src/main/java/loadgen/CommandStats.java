@@ -0,0 +1,69 @@
+package loadgen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latency and outcome counts for one command type. Safe to record into from many threads at once.
+ */
+final class CommandStats {
+    private final String type;
+    private final Histogram latencyMicros = new ConcurrentHistogram(3);
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder clientErrors = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    CommandStats(String type) {
+        this.type = type;
+    }
+
+    /**
+     * Records a completed request.
+     *
+     * @param latencyNanos  Time from when the request was due to be sent until its response arrived
+     * @param statusCode    The HTTP status, or -1 if the request failed without a response
+     */
+    void record(long latencyNanos, int statusCode) {
+        latencyMicros.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        if (statusCode >= 200 && statusCode < 300) {
+            successes.increment();
+        } else if (statusCode >= 400 && statusCode < 500) {
+            // The services answer 400 for requests the workload expects to be refused, so these are not failures
+            clientErrors.increment();
+        } else {
+            failures.increment();
+        }
+    }
+
+    long count() {
+        return latencyMicros.getTotalCount();
+    }
+
+    static String header() {
+        return String.format("%-16s %9s %9s %9s %9s %10s %9s %9s %9s %9s %9s",
+                "command", "requests", "2xx", "4xx", "failed", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    }
+
+    String format(double seconds) {
+        return String.format("%-16s %9d %9d %9d %9d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f",
+                type, count(), successes.sum(), clientErrors.sum(), failures.sum(), count() / seconds,
+                percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(99.9),
+                latencyMicros.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * Adds another command type's counts into this one, for the total line.
+     */
+    void add(CommandStats other) {
+        latencyMicros.add(other.latencyMicros);
+        successes.add(other.successes.sum());
+        clientErrors.add(other.clientErrors.sum());
+        failures.add(other.failures.sum());
+    }
+
+    private double percentileMillis(double percentile) {
+        return latencyMicros.getValueAtPercentile(percentile) / 1000.0;
+    }
+}
@@ -0,0 +1,276 @@
+package loadgen;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONObject;
+
+/**
+ * Replays a workload file against OrderService from many concurrent clients and reports latency percentiles per
+ * command type.
+ *
+ * By default it runs closed-loop: each client sends its next request as soon as the previous one is answered, and
+ * the clients walk through the workload together, wrapping around at the end. With --rate it runs open-loop instead:
+ * requests are due at a fixed rate whether or not earlier ones have been answered, at most --clients are in flight,
+ * and latency is measured from when a request was due, so a stalled service shows up in the percentiles rather than
+ * in a lower send rate.
+ *
+ * Nothing sent during the warm-up is reported. Shutdown commands are left out, since they would stop the services in
+ * the middle of the run.
+ */
+public final class LoadGenerator {
+    private final HttpClient client;
+    private final String baseUrl;
+    private final Duration requestTimeout;
+    private final Map<String, CommandStats> stats = new TreeMap<>();
+
+    private volatile long measureStartNanos;
+    private volatile long endNanos;
+
+    private LoadGenerator(String baseUrl, Duration requestTimeout) {
+        this.baseUrl = baseUrl;
+        this.requestTimeout = requestTimeout;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    }
+
+    /**
+     * Command line options, see {@link #usage()}.
+     */
+    static final class Options {
+        Path workload;
+        Path config = Paths.get("config.json");
+        int clients = 16;
+        double rate;
+        long warmupSeconds = 5;
+        long durationSeconds = 30;
+        long timeoutMillis = 10000;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--file":
+                        options.workload = Paths.get(value);
+                        break;
+                    case "--config":
+                        options.config = Paths.get(value);
+                        break;
+                    case "--clients":
+                        options.clients = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        options.rate = Double.parseDouble(value);
+                        break;
+                    case "--warmup":
+                        options.warmupSeconds = Long.parseLong(value);
+                        break;
+                    case "--duration":
+                        options.durationSeconds = Long.parseLong(value);
+                        break;
+                    case "--timeout":
+                        options.timeoutMillis = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (options.workload == null) {
+                throw new IllegalArgumentException("--file is required");
+            }
+            if (options.clients < 1 || options.rate < 0 || options.warmupSeconds < 0 || options.durationSeconds < 1) {
+                throw new IllegalArgumentException("--clients and --duration must be positive, --rate and --warmup not negative");
+            }
+            return options;
+        }
+    }
+
+    private static String usage() {
+        return "Usage: java -jar loadgen.jar --file <workload> [--config config.json] [--clients 16] [--rate <req/s>]"
+                + " [--warmup 5] [--duration 30] [--timeout 10000]";
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(usage());
+            System.exit(1);
+            return;
+        }
+
+        JSONObject orderService = new JSONObject(Files.readString(options.config)).getJSONObject("OrderService");
+        String baseUrl = "http://" + orderService.getString("ip") + ":" + orderService.getInt("port");
+
+        List<Workload.Request> requests = new ArrayList<>();
+        for (Workload.Request request : Workload.parse(options.workload)) {
+            if (!request.type.equals("shutdown")) {
+                requests.add(request);
+            }
+        }
+        if (requests.isEmpty()) {
+            System.err.println("No requests in " + options.workload);
+            System.exit(1);
+        }
+
+        LoadGenerator generator = new LoadGenerator(baseUrl, Duration.ofMillis(options.timeoutMillis));
+        for (Workload.Request request : requests) {
+            generator.stats.computeIfAbsent(request.type, CommandStats::new);
+        }
+        generator.run(requests, options);
+    }
+
+    private void run(List<Workload.Request> requests, Options options) throws InterruptedException {
+        // OrderService decides on the first command whether to keep its data, so send it before anything else
+        send(requests.get(0));
+
+        long start = System.nanoTime();
+        measureStartNanos = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        endNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        System.out.printf("Sending %s to %s for %d s after %d s of warm-up%n",
+                options.rate > 0 ? String.format("%.1f req/s with at most %d in flight", options.rate, options.clients)
+                        : options.clients + " concurrent clients",
+                baseUrl, options.durationSeconds, options.warmupSeconds);
+
+        ExecutorService executor = createExecutor();
+        if (options.rate > 0) {
+            runOpenLoop(executor, requests, options, start);
+        } else {
+            runClosedLoop(executor, requests, options);
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(options.timeoutMillis + 1000, TimeUnit.MILLISECONDS)) {
+            System.err.println("Some requests were still in flight when the run ended");
+        }
+        report(options.durationSeconds);
+    }
+
+    /**
+     * Runs --clients clients that each send their next request as soon as the last one is answered.
+     */
+    private void runClosedLoop(ExecutorService executor, List<Workload.Request> requests, Options options) {
+        AtomicLong cursor = new AtomicLong(1);
+        for (int i = 0; i < options.clients; i++) {
+            executor.execute(() -> {
+                long now;
+                while ((now = System.nanoTime()) < endNanos) {
+                    Workload.Request request = requests.get((int) (cursor.getAndIncrement() % requests.size()));
+                    record(request, now, send(request));
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts requests at a fixed rate on their own threads. When --clients requests are in flight the next one waits
+     * for a free slot, and the wait counts towards its latency.
+     */
+    private void runOpenLoop(ExecutorService executor, List<Workload.Request> requests, Options options, long start)
+            throws InterruptedException {
+        Semaphore inFlight = new Semaphore(options.clients);
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.rate;
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * intervalNanos);
+            if (due >= endNanos) {
+                break;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            inFlight.acquire();
+            Workload.Request request = requests.get((int) ((i + 1) % requests.size()));
+            executor.execute(() -> {
+                try {
+                    record(request, due, send(request));
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @return  The HTTP status, or -1 if no response arrived
+     */
+    private int send(Workload.Request request) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + request.path)).timeout(requestTimeout);
+        if (request.isPost()) {
+            builder.header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(request.body, StandardCharsets.UTF_8));
+        } else {
+            builder.GET();
+        }
+        try {
+            return client.send(builder.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private void record(Workload.Request request, long startedNanos, int statusCode) {
+        if (startedNanos >= measureStartNanos && startedNanos < endNanos) {
+            stats.get(request.type).record(System.nanoTime() - startedNanos, statusCode);
+        }
+    }
+
+    private void report(long seconds) {
+        CommandStats total = new CommandStats("total");
+        System.out.println(CommandStats.header());
+        for (CommandStats commandStats : stats.values()) {
+            if (commandStats.count() > 0) {
+                System.out.println(commandStats.format(seconds));
+                total.add(commandStats);
+            }
+        }
+        System.out.println(total.format(seconds));
+    }
+
+    /**
+     * Returns an executor that runs every task on its own virtual thread, or on a cached pool of daemon platform
+     * threads when the runtime is older than Java 21.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21, using platform threads instead");
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "loadgen-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package loadgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.json.JSONObject;
+
+/**
+ * A workload file parsed into the HTTP requests workloadParser.py would send for it.
+ *
+ * The grammar and the request bodies follow workloadParser.py, including sending every value as a string and
+ * defaulting the user of "ORDER place" to 1, so a file produces the same traffic from either tool. Lines the Python
+ * parser would crash on are skipped with a warning.
+ */
+final class Workload {
+
+    /**
+     * One request from the workload file.
+     */
+    static final class Request {
+        /** The command type the latency is reported under, e.g. "USER get" or "ORDER place" */
+        final String type;
+        /** The path on OrderService, e.g. "/user" or "/product/4" */
+        final String path;
+        /** The JSON body of a POST, or null for a GET */
+        final String body;
+
+        Request(String type, String path, String body) {
+            this.type = type;
+            this.path = path;
+            this.body = body;
+        }
+
+        boolean isPost() {
+            return body != null;
+        }
+    }
+
+    private Workload() {
+    }
+
+    /**
+     * Reads and parses a workload file.
+     *
+     * @param file  The workload file
+     * @return      The requests in file order
+     * @throws IOException If the file cannot be read
+     */
+    static List<Request> parse(Path file) throws IOException {
+        List<Request> requests = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.strip();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            Request request = parseLine(line);
+            if (request == null) {
+                System.err.println("Skipping malformed line " + lineNumber + ": " + line);
+            } else {
+                requests.add(request);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Parses one command line.
+     *
+     * @param line  The line, without surrounding whitespace
+     * @return      The request, or null if the line cannot be parsed
+     */
+    static Request parseLine(String line) {
+        int comment = line.indexOf('#');
+        if (comment >= 0) {
+            line = line.substring(0, comment);
+        }
+        String[] parts = line.trim().split("\\s+");
+        String service = parts[0];
+        if (service.equals("shutdown") || service.equals("restart")) {
+            return new Request(service, "/order", new JSONObject().put("command", service).toString());
+        }
+        if (parts.length < 2) {
+            return null;
+        }
+        String action = parts[1].toLowerCase(Locale.ROOT);
+        String type = service + " " + action;
+        String path = "/" + service.toLowerCase(Locale.ROOT);
+        JSONObject command = new JSONObject().put("command", action);
+
+        switch (service) {
+            case "PRODUCT":
+                switch (action) {
+                    case "create":
+                    case "delete":
+                        if (parts.length == 7) {
+                            putFields(command, parts, "id", "name", "description", "price", "quantity");
+                        }
+                        break;
+                    case "info":
+                        return parts.length < 3 ? null : new Request(type, path + "/" + parts[2], null);
+                    case "update":
+                        if (!putUpdates(command, parts)) {
+                            return null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                break;
+            case "USER":
+                switch (action) {
+                    case "create":
+                    case "delete":
+                        if (parts.length == 6) {
+                            putFields(command, parts, "id", "username", "email", "password");
+                        }
+                        break;
+                    case "get":
+                        return parts.length < 3 ? null : new Request(type, path + "/" + parts[2], null);
+                    case "update":
+                        if (!putUpdates(command, parts)) {
+                            return null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                break;
+            case "ORDER":
+                if (action.equals("place")) {
+                    if (parts.length < 4) {
+                        return null;
+                    }
+                    command = new JSONObject()
+                            .put("command", "place order")
+                            .put("product_id", parts[2])
+                            .put("quantity", parts.length == 5 ? parts[4] : parts[3]);
+                    if (parts.length == 4) {
+                        command.put("user_id", "1");
+                    } else if (parts.length == 5) {
+                        command.put("user_id", parts[3]);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return new Request(type, path, command.toString());
+    }
+
+    private static void putFields(JSONObject command, String[] parts, String... names) {
+        for (int i = 0; i < names.length; i++) {
+            command.put(names[i], parts[i + 2]);
+        }
+    }
+
+    /**
+     * Adds the id and the "key:value" pairs of an update command.
+     *
+     * @return  false if the id is missing or a pair has no colon
+     */
+    private static boolean putUpdates(JSONObject command, String[] parts) {
+        if (parts.length < 3) {
+            return false;
+        }
+        command.put("id", parts[2]);
+        for (int i = 3; i < parts.length; i++) {
+            String[] pair = parts[i].split(":", -1);
+            if (pair.length != 2) {
+                return false;
+            }
+            command.put(pair[0], pair[1]);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,412 @@
+package loadgen;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Generates large synthetic datasets: users, products and a stream of orders whose products and users follow Zipf
+ * distributions, so a few products and users receive most of the orders.
+ *
+ * The output is either a workload file in the grammar workloadParser.py and the load generator read, or the same
+ * records written straight into the SQLite databases of the three services, with the schemas they create. The same seed and options
+ * always produce the same output.
+ */
+public final class WorkloadGenerator {
+    private static final char[] ALPHANUMERIC = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+
+    /**
+     * Command line options, see {@link #usage()}.
+     */
+    static final class Options {
+        int users = 1000;
+        int products = 1000;
+        long orders = 10000;
+        double productSkew = 1.0;
+        double userSkew = 0.5;
+        double readRatio;
+        int maxQuantity = 3;
+        int stock = 1000;
+        long seed = 42;
+        Path out;
+        Path db;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--users":
+                        options.users = Integer.parseInt(value);
+                        break;
+                    case "--products":
+                        options.products = Integer.parseInt(value);
+                        break;
+                    case "--orders":
+                        options.orders = Long.parseLong(value);
+                        break;
+                    case "--product-skew":
+                        options.productSkew = Double.parseDouble(value);
+                        break;
+                    case "--user-skew":
+                        options.userSkew = Double.parseDouble(value);
+                        break;
+                    case "--reads":
+                        options.readRatio = Double.parseDouble(value);
+                        break;
+                    case "--max-quantity":
+                        options.maxQuantity = Integer.parseInt(value);
+                        break;
+                    case "--stock":
+                        options.stock = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(value);
+                        break;
+                    case "--out":
+                        options.out = Paths.get(value);
+                        break;
+                    case "--db":
+                        options.db = Paths.get(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (options.users < 1 || options.products < 1 || options.orders < 0 || options.maxQuantity < 1 || options.stock < 0) {
+                throw new IllegalArgumentException("--users, --products and --max-quantity must be positive, --orders and --stock not negative");
+            }
+            if (options.productSkew < 0 || options.userSkew < 0 || options.readRatio < 0 || options.readRatio >= 1) {
+                throw new IllegalArgumentException("Skews must not be negative and --reads must be in [0, 1)");
+            }
+            if (options.out != null && options.db != null) {
+                throw new IllegalArgumentException("Use either --out or --db");
+            }
+            return options;
+        }
+    }
+
+    private static String usage() {
+        return "Usage: java -cp loadgen.jar loadgen.WorkloadGenerator [--users 1000] [--products 1000] [--orders 10000]"
+                + " [--product-skew 1.0] [--user-skew 0.5] [--reads 0] [--max-quantity 3] [--stock 1000] [--seed 42]"
+                + " [--out <workload file> | --db <Database directory>]";
+    }
+
+    /**
+     * Samples ranks 1..n with probability proportional to 1 / rank^skew and maps each rank to a fixed, shuffled ID,
+     * so the hot IDs are spread over the whole ID range. A skew of 0 is uniform.
+     */
+    static final class ZipfSampler {
+        private final double[] cumulative;
+        private final int[] idByRank;
+
+        ZipfSampler(int n, double skew, SplittableRandom random) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int rank = 1; rank <= n; rank++) {
+                sum += 1 / Math.pow(rank, skew);
+                cumulative[rank - 1] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+            idByRank = new int[n];
+            for (int i = 0; i < n; i++) {
+                idByRank[i] = i + 1;
+            }
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = idByRank[i];
+                idByRank[i] = idByRank[j];
+                idByRank[j] = swap;
+            }
+        }
+
+        int next(SplittableRandom random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return idByRank[Math.min(index, idByRank.length - 1)];
+        }
+    }
+
+    /**
+     * Receives the generated records.
+     */
+    interface Sink extends AutoCloseable {
+        void user(int id, String username, String email, String password) throws Exception;
+
+        void product(int id, String name, String description, double price, int quantity) throws Exception;
+
+        void order(int productId, int userId, int quantity) throws Exception;
+
+        void productInfo(int id) throws Exception;
+
+        void userGet(int id) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(usage());
+            System.exit(1);
+            return;
+        }
+
+        if (options.db != null) {
+            try (Sink sink = new DatabaseSink(options.db, options.products)) {
+                generate(options, sink);
+            }
+        } else if (options.out != null) {
+            try (Writer writer = Files.newBufferedWriter(options.out, StandardCharsets.UTF_8);
+                 Sink sink = new WorkloadSink(writer)) {
+                generate(options, sink);
+            }
+        } else {
+            try (Sink sink = new WorkloadSink(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+                generate(options, sink);
+            }
+        }
+    }
+
+    static void generate(Options options, Sink sink) throws Exception {
+        SplittableRandom random = new SplittableRandom(options.seed);
+        for (int id = 1; id <= options.users; id++) {
+            sink.user(id, "user" + id, "user" + id + "@example.com", randomString(random, 8));
+        }
+        for (int id = 1; id <= options.products; id++) {
+            double price = (100 + random.nextInt(9900)) / 100.0;
+            sink.product(id, "product" + id, "description" + id, price, options.stock);
+        }
+
+        ZipfSampler products = new ZipfSampler(options.products, options.productSkew, random.split());
+        ZipfSampler users = new ZipfSampler(options.users, options.userSkew, random.split());
+        for (long placed = 0; placed < options.orders; ) {
+            if (random.nextDouble() < options.readRatio) {
+                if (random.nextBoolean()) {
+                    sink.productInfo(products.next(random));
+                } else {
+                    sink.userGet(users.next(random));
+                }
+            } else {
+                sink.order(products.next(random), users.next(random), 1 + random.nextInt(options.maxQuantity));
+                placed++;
+            }
+        }
+    }
+
+    private static String randomString(SplittableRandom random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHANUMERIC[random.nextInt(ALPHANUMERIC.length)];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Writes the records as a workload file.
+     */
+    static final class WorkloadSink implements Sink {
+        private final Writer writer;
+
+        WorkloadSink(Writer writer) {
+            this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer, 1 << 16);
+        }
+
+        @Override
+        public void user(int id, String username, String email, String password) throws IOException {
+            writer.write("USER create " + id + " " + username + " " + email + " " + password + "\n");
+        }
+
+        @Override
+        public void product(int id, String name, String description, double price, int quantity) throws IOException {
+            writer.write(String.format(Locale.ROOT, "PRODUCT create %d %s %s %.2f %d\n", id, name, description, price, quantity));
+        }
+
+        @Override
+        public void order(int productId, int userId, int quantity) throws IOException {
+            writer.write("ORDER place " + productId + " " + userId + " " + quantity + "\n");
+        }
+
+        @Override
+        public void productInfo(int id) throws IOException {
+            writer.write("PRODUCT info " + id + "\n");
+        }
+
+        @Override
+        public void userGet(int id) throws IOException {
+            writer.write("USER get " + id + "\n");
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Writes the records into the databases of the services the way they would store them: passwords are hashed,
+     * orders take stock from their product and an order for more than is left is recorded as refused.
+     * Reads are not stored.
+     *
+     * The directory gets users.db, products.db and orders.db, the default database of each service.
+     */
+    static final class DatabaseSink implements Sink {
+        private static final int BATCH_SIZE = 10000;
+
+        private final Connection users;
+        private final Connection products;
+        private final Connection orders;
+        private final PreparedStatement insertUser;
+        private final PreparedStatement insertProduct;
+        private final PreparedStatement insertOrder;
+        private final PreparedStatement updateQuantity;
+        private final MessageDigest digest;
+        private final int[] remainingStock;
+        private int pending;
+
+        DatabaseSink(Path directory, int productCount) throws IOException, SQLException, NoSuchAlgorithmException {
+            Files.createDirectories(directory);
+            users = open(directory.resolve("users.db"), "CREATE TABLE IF NOT EXISTS users (id INTEGER PRIMARY KEY, "
+                    + "username TEXT NOT NULL, email TEXT NOT NULL, password TEXT NOT NULL)");
+            try (Statement stmt = users.createStatement()) {
+                // Tells UserService that the passwords are already hashed
+                stmt.execute("PRAGMA user_version = 1");
+            }
+            products = open(directory.resolve("products.db"), "CREATE TABLE IF NOT EXISTS products (id INTEGER PRIMARY KEY, "
+                    + "name TEXT NOT NULL, description TEXT NOT NULL, price REAL NOT NULL, quantity INTEGER NOT NULL)");
+            orders = open(directory.resolve("orders.db"), "CREATE TABLE IF NOT EXISTS orders (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "product_id INTEGER NOT NULL, user_id INTEGER NOT NULL, quantity INTEGER NOT NULL, status TEXT NOT NULL)");
+            insertUser = users.prepareStatement("INSERT OR REPLACE INTO users (id, username, email, password) VALUES (?, ?, ?, ?)");
+            insertProduct = products.prepareStatement(
+                    "INSERT OR REPLACE INTO products (id, name, description, price, quantity) VALUES (?, ?, ?, ?, ?)");
+            insertOrder = orders.prepareStatement("INSERT INTO orders (product_id, user_id, quantity, status) VALUES (?, ?, ?, ?)");
+            updateQuantity = products.prepareStatement("UPDATE products SET quantity = ? WHERE id = ?");
+            digest = MessageDigest.getInstance("SHA-256");
+            remainingStock = new int[productCount + 1];
+        }
+
+        private static Connection open(Path db, String createTable) throws SQLException {
+            Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode=WAL");
+                stmt.execute(createTable);
+            }
+            conn.setAutoCommit(false);
+            return conn;
+        }
+
+        @Override
+        public void user(int id, String username, String email, String password) throws SQLException {
+            insertUser.setInt(1, id);
+            insertUser.setString(2, username);
+            insertUser.setString(3, email);
+            insertUser.setString(4, sha256Hex(password));
+            insertUser.addBatch();
+            added();
+        }
+
+        @Override
+        public void product(int id, String name, String description, double price, int quantity) throws SQLException {
+            insertProduct.setInt(1, id);
+            insertProduct.setString(2, name);
+            insertProduct.setString(3, description);
+            insertProduct.setDouble(4, price);
+            insertProduct.setInt(5, quantity);
+            insertProduct.addBatch();
+            remainingStock[id] = quantity;
+            added();
+        }
+
+        @Override
+        public void order(int productId, int userId, int quantity) throws SQLException {
+            boolean inStock = remainingStock[productId] >= quantity;
+            if (inStock) {
+                remainingStock[productId] -= quantity;
+            }
+            insertOrder.setInt(1, productId);
+            insertOrder.setInt(2, userId);
+            insertOrder.setInt(3, quantity);
+            insertOrder.setString(4, inStock ? "Success" : "Exceeded quantity limit");
+            insertOrder.addBatch();
+            added();
+        }
+
+        @Override
+        public void productInfo(int id) {
+        }
+
+        @Override
+        public void userGet(int id) {
+        }
+
+        private void added() throws SQLException {
+            if (++pending >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws SQLException {
+            insertUser.executeBatch();
+            users.commit();
+            insertProduct.executeBatch();
+            products.commit();
+            insertOrder.executeBatch();
+            orders.commit();
+            pending = 0;
+        }
+
+        private String sha256Hex(String password) {
+            byte[] hash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(2 * hash.length);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            flush();
+            for (int id = 1; id < remainingStock.length; id++) {
+                updateQuantity.setInt(1, remainingStock[id]);
+                updateQuantity.setInt(2, id);
+                updateQuantity.addBatch();
+            }
+            updateQuantity.executeBatch();
+            products.commit();
+            // The same indexes OrderService creates, built once here rather than updated on every insert
+            try (Statement stmt = orders.createStatement()) {
+                stmt.execute("CREATE INDEX IF NOT EXISTS orders_user_id ON orders (user_id)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS orders_product_id_status ON orders (product_id, status)");
+            }
+            orders.commit();
+            users.close();
+            products.close();
+            orders.close();
+        }
+    }
+}
@@ -30,17 +30,8 @@ start_service() {
 }
 
 make_db(){
-    cd "$COMPILE_DIR"
-    mkdir -p Database
-    cd Database
-
-    # Check if the info.db file does not exist and then create it
-    if [ ! -f "info.db" ]; then
-        sqlite3 info.db "VACUUM;"
-    fi
-    cd ..
-    cd ..
-    
+    # Each service creates its own database file in this directory when it first starts
+    mkdir -p "$COMPILE_DIR/Database"
 }   
 
 run_workload_parser() {
@@ -48,6 +39,11 @@ run_workload_parser() {
     echo "Running workload parser with file: $file"
     python3 "$BASE_DIR/workloadParser.py" "$file"
 }
+
+run_load_generator() {
+    echo "Running load generator with options: $*"
+    java -jar "$BASE_DIR/loadgen/target/loadgen.jar" --config "$BASE_DIR/config.json" "$@"
+}
 # Check command-line arguments
 case "$1" in
     -c) 
@@ -75,8 +71,12 @@ case "$1" in
             run_workload_parser "$2"
         fi
         ;;
+    -l)
+        shift
+        run_load_generator "$@"
+        ;;
     *)
-        echo "Usage: $0 {-c|-u|-p|-o|-w <filename>}"
+        echo "Usage: $0 {-c|-u|-p|-o|-w <filename>|-l --file <filename> [load generator options]}"
         exit 1
         ;;
 esac
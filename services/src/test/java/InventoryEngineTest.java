@@ -0,0 +1,214 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that ProductService.InventoryEngine gets the stock back into SQLite after a crash. A crash is an engine that
+ * is dropped without close(): its flusher waits an hour, so only the replay log holds its changes when the next
+ * engine starts on the same database.
+ */
+class InventoryEngineTest {
+    private static final long NEVER = 3_600_000;
+
+    @TempDir
+    Path directory;
+
+    private Path database;
+    private ProductService.ConnectionPool pool;
+    private final List<ProductService.InventoryEngine> engines = new ArrayList<>();
+
+    @BeforeEach
+    void createProducts() throws SQLException {
+        database = directory.resolve("products.db");
+        pool = new ProductService.ConnectionPool("jdbc:sqlite:" + database, new Properties(), 2, 5000);
+        try (ProductService.PooledConnection conn = pool.borrow();
+             Statement stmt = conn.getConnection().createStatement()) {
+            stmt.execute("CREATE TABLE products (id INTEGER PRIMARY KEY, name TEXT NOT NULL, " +
+                         "description TEXT NOT NULL, price REAL NOT NULL, quantity INTEGER NOT NULL);");
+            stmt.execute("INSERT INTO products VALUES (1, 'a', 'd', 1.0, 100), (2, 'b', 'd', 1.0, 50);");
+        }
+    }
+
+    @AfterEach
+    void closeEngines() {
+        for (ProductService.InventoryEngine engine : engines) {
+            engine.close();
+        }
+    }
+
+    private ProductService.InventoryEngine start() throws SQLException, IOException {
+        ProductService.InventoryEngine engine = new ProductService.InventoryEngine(pool, database, false, NEVER);
+        engine.start();
+        return engine;
+    }
+
+    private int storedQuantity(int id) throws SQLException {
+        try (ProductService.PooledConnection conn = pool.borrow()) {
+            PreparedStatement query = conn.prepare("SELECT quantity FROM products WHERE id = ?");
+            query.setInt(1, id);
+            try (ResultSet rs = query.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().startsWith("products.db.inventory."))
+                    .sorted().toList();
+        }
+    }
+
+    private static byte[] records(int... fields) {
+        ByteBuffer buffer = ByteBuffer.allocate(fields.length * Integer.BYTES);
+        for (int field : fields) {
+            buffer.putInt(field);
+        }
+        return buffer.array();
+    }
+
+    @Test
+    void changesAfterTheLastFlushAreReplayed() throws Exception {
+        ProductService.InventoryEngine crashed = start();
+        assertEquals(90, crashed.reserve(1, 10));
+        crashed.flush();
+        assertEquals(90, storedQuantity(1));
+        assertEquals(85, crashed.reserve(1, 5));
+        assertEquals(30, crashed.reserve(2, 20));
+        // The flush moved the log on and deleted the segment it wrote to SQLite
+        assertEquals(List.of(directory.resolve("products.db.inventory.2")), segments());
+        assertEquals(90, storedQuantity(1));
+        assertEquals(50, storedQuantity(2));
+
+        ProductService.InventoryEngine restarted = start();
+        engines.add(restarted);
+        assertEquals(85, storedQuantity(1));
+        assertEquals(30, storedQuantity(2));
+        assertEquals(85, restarted.quantity(1));
+        assertEquals(List.of(directory.resolve("products.db.inventory.3")), segments());
+    }
+
+    @Test
+    void flushedChangesAreNotReplayedOverLaterOnes() throws Exception {
+        ProductService.InventoryEngine crashed = start();
+        assertEquals(90, crashed.reserve(1, 10));
+        crashed.flush();
+        crashed.flush();
+        // Written straight to SQLite, the way an update that bypasses the inventory would be
+        try (ProductService.PooledConnection conn = pool.borrow();
+             Statement stmt = conn.getConnection().createStatement()) {
+            stmt.execute("UPDATE products SET quantity = 70 WHERE id = 1;");
+        }
+
+        engines.add(start());
+        assertEquals(70, storedQuantity(1));
+    }
+
+    @Test
+    void highestVersionWinsAcrossSegments() throws Exception {
+        // Records of concurrent changes can reach the log out of order, even across a rotation
+        Files.write(directory.resolve("products.db.inventory.4"), records(1, 3, 70, 2, 1, 40));
+        Files.write(directory.resolve("products.db.inventory.5"), records(1, 2, 80, 2, 2, 35));
+
+        ProductService.InventoryEngine restarted = start();
+        engines.add(restarted);
+        assertEquals(70, storedQuantity(1));
+        assertEquals(35, storedQuantity(2));
+        assertEquals(70, restarted.quantity(1));
+        assertEquals(List.of(directory.resolve("products.db.inventory.6")), segments());
+    }
+
+    @Test
+    void tornLastRecordIsIgnored() throws Exception {
+        ProductService.InventoryEngine crashed = start();
+        assertEquals(90, crashed.reserve(1, 10));
+        assertEquals(45, crashed.reserve(2, 5));
+        List<Path> left = segments();
+        assertEquals(1, left.size());
+        // The crash cut the next record short after its product ID and version
+        Files.write(left.get(0), records(1, 3), StandardOpenOption.APPEND);
+
+        engines.add(start());
+        assertEquals(90, storedQuantity(1));
+        assertEquals(45, storedQuantity(2));
+    }
+
+    @Test
+    void deletedProductsAreNotReplayed() throws Exception {
+        ProductService.InventoryEngine crashed = start();
+        assertEquals(90, crashed.reserve(1, 10));
+        assertTrue(crashed.remove(1, 90));
+        assertFalse(crashed.remove(2, 49));
+
+        ProductService.InventoryEngine restarted = start();
+        engines.add(restarted);
+        // The delete went to SQLite by the caller, which did not happen here, so the row keeps its last flush
+        assertEquals(100, storedQuantity(1));
+        assertEquals(50, storedQuantity(2));
+    }
+
+    @Test
+    void currentReusesTheCopyWhileTheStockDoesNotChange() throws Exception {
+        ProductService.InventoryEngine engine = start();
+        engines.add(engine);
+        ProductService.Product row = new ProductService.Product(1, "a", "d", 1.0, 100);
+        assertSame(row, engine.current(row));
+
+        assertEquals(90, engine.reserve(1, 10));
+        ProductService.Product first = engine.current(row);
+        assertEquals(90, first.quantity);
+        assertSame(first, engine.current(row));
+        assertSame(first.toJsonBytes(), engine.current(row).toJsonBytes());
+
+        assertEquals(85, engine.reserve(1, 5));
+        assertEquals(85, engine.current(row).quantity);
+        ProductService.Product renamed = new ProductService.Product(1, "b", "d", 1.0, 100);
+        assertEquals("b", engine.current(renamed).name);
+    }
+
+    @Test
+    void negativeQuantityFailsOnlyItsOwnReservation() throws Exception {
+        ProductService.InventoryEngine engine = start();
+        engines.add(engine);
+        boolean[] reserved = new boolean[3];
+        assertEquals(90, engine.reserveInOrder(1, new int[] {4, -5, 6}, reserved));
+        assertTrue(reserved[0]);
+        assertFalse(reserved[1]);
+        assertTrue(reserved[2]);
+    }
+
+    @Test
+    void updateKeepsReservationsMadeWhileItRan() throws Exception {
+        ProductService.InventoryEngine engine = start();
+        engines.add(engine);
+        int quantityBefore = engine.quantity(1);
+        // A reservation lands between reading the quantity and writing the new one
+        assertEquals(90, engine.reserve(1, 10));
+        assertEquals(40, engine.update(1, quantityBefore, 50));
+        assertEquals(40, engine.quantity(1));
+        // An update cannot take more than is left
+        quantityBefore = engine.quantity(1);
+        assertEquals(35, engine.reserve(1, 5));
+        assertEquals(0, engine.update(1, quantityBefore, 0));
+    }
+}
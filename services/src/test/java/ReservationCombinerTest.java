@@ -0,0 +1,187 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks how OrderService.ReservationCombiner splits the answer of one batched reserve call among the orders in the
+ * batch. A stub ProductService holds the first call until the other reservations have queued up behind it, so they
+ * go out together in the second call.
+ */
+class ReservationCombinerTest {
+    private static final int PRODUCT_ID = 7;
+
+    private HttpServer server;
+    private final List<JSONArray> calls = new ArrayList<>();
+    private final CountDownLatch firstCallArrived = new CountDownLatch(1);
+    private final CountDownLatch releaseFirstCall = new CountDownLatch(1);
+    // What the stub answers from the second call on: the stock left, or a status code without a body
+    private volatile int stock;
+    private volatile int failureCode;
+    private volatile String malformedBody;
+
+    @BeforeEach
+    void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/product/", this::handleReserve);
+        server.start();
+    }
+
+    @AfterEach
+    void stopStub() {
+        releaseFirstCall.countDown();
+        server.stop(0);
+    }
+
+    private void handleReserve(HttpExchange exchange) throws IOException {
+        JSONObject request = new JSONObject(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+        JSONArray quantities = request.getJSONArray("quantities");
+        boolean first;
+        synchronized (calls) {
+            calls.add(quantities);
+            first = calls.size() == 1;
+        }
+        if (first) {
+            firstCallArrived.countDown();
+            try {
+                releaseFirstCall.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (failureCode != 0) {
+            exchange.sendResponseHeaders(failureCode, -1);
+            exchange.close();
+            return;
+        } else if (malformedBody != null) {
+            respond(exchange, malformedBody);
+            return;
+        }
+        // Takes each quantity if it still fits after those before it, like ProductService does
+        JSONArray reserved = new JSONArray();
+        synchronized (this) {
+            for (int i = 0; i < quantities.length(); i++) {
+                boolean fits = quantities.getInt(i) <= stock;
+                if (fits) {
+                    stock -= quantities.getInt(i);
+                }
+                reserved.put(fits);
+            }
+        }
+        respond(exchange, new JSONObject().put("reserved", reserved).toString());
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private OrderService.ReservationCombiner combiner(int port) {
+        return new OrderService.ReservationCombiner(new OrderService.UpstreamClient("127.0.0.1", port, 4, 1000, 5000), 16);
+    }
+
+    /**
+     * Reserves 5 alone, then 4, 7 and 2 in one batch behind it.
+     */
+    private List<CompletableFuture<Integer>> reserveBehindFirstCall(OrderService.ReservationCombiner combiner) throws InterruptedException {
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        results.add(combiner.reserve(PRODUCT_ID, 5));
+        assertTrue(firstCallArrived.await(10, TimeUnit.SECONDS));
+        results.add(combiner.reserve(PRODUCT_ID, 4));
+        results.add(combiner.reserve(PRODUCT_ID, 7));
+        results.add(combiner.reserve(PRODUCT_ID, 2));
+        releaseFirstCall.countDown();
+        return results;
+    }
+
+    @Test
+    void waitingReservationsGoOutTogetherInArrivalOrder() throws Exception {
+        stock = 100;
+        List<CompletableFuture<Integer>> results = reserveBehindFirstCall(combiner(server.getAddress().getPort()));
+
+        for (CompletableFuture<Integer> result : results) {
+            assertEquals(200, result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(2, calls.size());
+        assertEquals(List.of(5), calls.get(0).toList());
+        assertEquals(List.of(4, 7, 2), calls.get(1).toList());
+        assertEquals(82, stock);
+    }
+
+    @Test
+    void stockForOnlySomeWaitersSplitsTheBatch() throws Exception {
+        stock = 12;
+        List<CompletableFuture<Integer>> results = reserveBehindFirstCall(combiner(server.getAddress().getPort()));
+
+        // 5 and 4 leave 3, so 7 does not fit but the 2 after it still does
+        assertEquals(200, results.get(0).get(10, TimeUnit.SECONDS));
+        assertEquals(200, results.get(1).get(10, TimeUnit.SECONDS));
+        assertEquals(409, results.get(2).get(10, TimeUnit.SECONDS));
+        assertEquals(200, results.get(3).get(10, TimeUnit.SECONDS));
+        assertEquals(1, stock);
+    }
+
+    @Test
+    void errorStatusIsHandedToEveryReservationOfTheBatch() throws Exception {
+        stock = 100;
+        failureCode = 500;
+        List<CompletableFuture<Integer>> results = reserveBehindFirstCall(combiner(server.getAddress().getPort()));
+
+        assertEquals(200, results.get(0).get(10, TimeUnit.SECONDS));
+        for (CompletableFuture<Integer> result : results.subList(1, results.size())) {
+            assertEquals(500, result.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void unreadableAnswerFailsEveryReservationOfTheBatch() throws Exception {
+        stock = 100;
+        malformedBody = "{\"reserved\":[true]}";
+        List<CompletableFuture<Integer>> results = reserveBehindFirstCall(combiner(server.getAddress().getPort()));
+
+        assertEquals(200, results.get(0).get(10, TimeUnit.SECONDS));
+        for (CompletableFuture<Integer> result : results.subList(1, results.size())) {
+            assertThrows(CompletionException.class, () -> result.orTimeout(10, TimeUnit.SECONDS).join());
+        }
+    }
+
+    @Test
+    void connectionFailureFailsEveryReservation() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        OrderService.ReservationCombiner combiner = combiner(closedPort);
+        List<CompletableFuture<Integer>> results = List.of(combiner.reserve(PRODUCT_ID, 1),
+                combiner.reserve(PRODUCT_ID, 2), combiner.reserve(PRODUCT_ID, 3));
+
+        for (CompletableFuture<Integer> result : results) {
+            assertThrows(CompletionException.class, () -> result.orTimeout(10, TimeUnit.SECONDS).join());
+        }
+        // The product is idle again, so a later reservation goes out instead of waiting forever
+        CompletableFuture<Integer> later = combiner.reserve(PRODUCT_ID, 1);
+        assertThrows(CompletionException.class, () -> later.orTimeout(10, TimeUnit.SECONDS).join());
+    }
+}
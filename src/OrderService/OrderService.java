@@ -1,32 +1,146 @@
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.Headers;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import org.json.*;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.IMarkerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.BasicMDCAdapter;
+import org.slf4j.helpers.BasicMarkerFactory;
+import org.slf4j.helpers.LegacyAbstractLogger;
+import org.slf4j.helpers.MessageFormatter;
+import org.slf4j.spi.MDCAdapter;
+import org.slf4j.spi.SLF4JServiceProvider;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.net.URL;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
 
 
 public class OrderService {
 
-    static boolean isFirstCommandReceived = false;
+    static final AtomicBoolean isFirstCommandReceived = new AtomicBoolean(false);
+    // Released once the first command has dropped or kept the data, requests wait for it before touching any
+    private static final CountDownLatch initialized = new CountDownLatch(1);
+    // SLF4J has to be pointed at AsyncLogProvider before the first logger is created, by this class or by a library
+    static {
+        if (System.getProperty("slf4j.provider") == null) {
+            System.setProperty("slf4j.provider", AsyncLogProvider.class.getName());
+        }
+    }
+    private static final Logger log = LoggerFactory.getLogger(OrderService.class);
+
+    private static ConnectionPool connectionPool;
+    // Before every service had its own database they all used this one in the Database directory
+    private static final String LEGACY_DATABASE = "info.db";
+    private static final Metrics metrics = new Metrics();
+    // How long each stage of placing an order takes
+    private static final Metrics.Histogram lookupTimes = metrics.histogram("order_stage_seconds",
+            "Time spent in each stage of placing an order.", Metrics.labels("stage", "lookup"));
+    private static final Metrics.Histogram reserveTimes = metrics.histogram("order_stage_seconds",
+            "Time spent in each stage of placing an order.", Metrics.labels("stage", "reserve"));
+    private static final Metrics.Histogram recordTimes = metrics.histogram("order_stage_seconds",
+            "Time spent in each stage of placing an order.", Metrics.labels("stage", "record"));
+    private static int maxRequestBytes = 1048576;
+    private static int gzipMinBytes = 1024;
+
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+    // The messages this service answers with, already encoded
+    private static final Map<String, byte[]> CONSTANT_BODIES = new HashMap<>();
+    static {
+        for (String message : new String[] {
+            "Success",
+            "Invalid Request",
+            "Shutting down",
+            "Bad Gateway",
+            "Internal Server Error",
+            "Invalid Request: Missing required fields.",
+            "Invalid Request: User/Product ID does not exist.",
+            "Exceeded quantity limit.",
+            "Failed to update product quantity. Command refused.",
+            "Order placed successfully.",
+            "Order not found.",
+            "Too many orders in progress."}) {
+            CONSTANT_BODIES.put(message, message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    private static final String ORDER_COLUMNS = "id, product_id, user_id, quantity, status";
+    private static final int DEFAULT_ORDER_PAGE_SIZE = 100;
+    private static final int MAX_ORDER_PAGE_SIZE = 10000;
+    private static UpstreamClient userService;
+    private static UpstreamClient productService;
+    private static UserExistenceCache userCache;
+    private static OrderWriter orderWriter;
+    // Merges concurrent reservations of a product, null when combining is turned off
+    private static ReservationCombiner reservationCombiner;
+    // Places orders in the background when the order pipeline mode is "async", null otherwise
+    private static OrderPipeline orderPipeline;
+
+    // Headers that HttpClient and HttpServer manage themselves and that must not be copied between them
+    private static final Set<String> UNFORWARDED_HEADERS = Set.of(
+            "connection", "content-length", "expect", "host", "keep-alive", "transfer-encoding", "upgrade");
 
     /**
      * Class to hold the configuration details for a service
@@ -38,6 +152,34 @@ public class OrderService {
         String ip;
         String user_ip;
         String product_ip;
+        String executorMode = "platform";
+        int executorThreads = 20;
+        int executorQueueCapacity = 1000;
+        int poolSize = 8;
+        long poolWaitTimeoutMillis = 5000;
+        String journalMode = "WAL";
+        String synchronous = "NORMAL";
+        long busyTimeoutMillis = 5000;
+        long mmapSizeBytes = 268435456;
+        long cacheSizeKib = 16384;
+        int maxRequestBytes = 1048576;
+        int gzipMinBytes = 1024;
+        String logLevel = "INFO";
+        int userPoolSize = 32;
+        int productPoolSize = 32;
+        long upstreamConnectTimeoutMillis = 2000;
+        long upstreamRequestTimeoutMillis = 10000;
+        int userCacheMaxEntries = 10000;
+        long userCacheTtlMillis = 30000;
+        String orderDurability = "group";
+        int orderBatchSize = 100;
+        long orderFlushIntervalMillis = 2;
+        String database = "orders.db";
+        boolean combineReservations = true;
+        int reservationBatchSize = 256;
+        String orderPipelineMode = "sync";
+        int orderPipelineCapacity = 10000;
+        int orderPipelineWorkers = 16;
 
         public ServiceConfig(int user, int product, int port, String ip, String user_ip, String product_ip) {
             this.user_port = user;
@@ -99,10 +241,89 @@ public class OrderService {
             int orderPort = orderServiceConfig.getInt("port");
             String orderIp = orderServiceConfig.getString("ip");
     
-            return new ServiceConfig(userPort, productPort, orderPort, orderIp, userIp, productIp);
+            ServiceConfig config = new ServiceConfig(userPort, productPort, orderPort, orderIp, userIp, productIp);
+            config.database = orderServiceConfig.optString("database", config.database);
+
+            // Extracting the optional executor configuration shared by all services
+            JSONObject executorConfig = json.optJSONObject("Executor");
+            if (executorConfig != null) {
+                config.executorMode = executorConfig.optString("mode", config.executorMode);
+                config.executorThreads = executorConfig.optInt("threads", config.executorThreads);
+                config.executorQueueCapacity = executorConfig.optInt("queueCapacity", config.executorQueueCapacity);
+            }
+
+            // The connection pool configuration is optional and shared by all services
+            JSONObject poolConfig = json.optJSONObject("ConnectionPool");
+            if (poolConfig != null) {
+                config.poolSize = poolConfig.optInt("size", config.poolSize);
+                config.poolWaitTimeoutMillis = poolConfig.optLong("waitTimeoutMs", config.poolWaitTimeoutMillis);
+            }
+
+            // The SQLite storage settings are optional and shared by all services
+            JSONObject storageConfig = json.optJSONObject("Storage");
+            if (storageConfig != null) {
+                config.journalMode = storageConfig.optString("journalMode", config.journalMode);
+                config.synchronous = storageConfig.optString("synchronous", config.synchronous);
+                config.busyTimeoutMillis = storageConfig.optLong("busyTimeoutMs", config.busyTimeoutMillis);
+                config.mmapSizeBytes = storageConfig.optLong("mmapSizeBytes", config.mmapSizeBytes);
+                config.cacheSizeKib = storageConfig.optLong("cacheSizeKb", config.cacheSizeKib);
+            }
+
+            // Extracting the optional HTTP limits shared by all services
+            JSONObject httpConfig = json.optJSONObject("Http");
+            if (httpConfig != null) {
+                config.maxRequestBytes = httpConfig.optInt("maxRequestBytes", config.maxRequestBytes);
+                config.gzipMinBytes = httpConfig.optInt("gzipMinBytes", config.gzipMinBytes);
+            }
+
+            // The log level is optional and shared by all services
+            JSONObject loggingConfig = json.optJSONObject("Logging");
+            if (loggingConfig != null) {
+                config.logLevel = loggingConfig.optString("level", config.logLevel);
+            }
+
+            // Extracting the optional configuration of the connections to UserService and ProductService
+            JSONObject upstreamConfig = json.optJSONObject("Upstream");
+            if (upstreamConfig != null) {
+                config.userPoolSize = upstreamConfig.optInt("userPoolSize", config.userPoolSize);
+                config.productPoolSize = upstreamConfig.optInt("productPoolSize", config.productPoolSize);
+                config.upstreamConnectTimeoutMillis = upstreamConfig.optLong("connectTimeoutMs", config.upstreamConnectTimeoutMillis);
+                config.upstreamRequestTimeoutMillis = upstreamConfig.optLong("requestTimeoutMs", config.upstreamRequestTimeoutMillis);
+            }
+
+            // Extracting the optional configuration of the user existence cache
+            JSONObject userCacheConfig = json.optJSONObject("UserCache");
+            if (userCacheConfig != null) {
+                config.userCacheMaxEntries = userCacheConfig.optInt("maxEntries", config.userCacheMaxEntries);
+                config.userCacheTtlMillis = userCacheConfig.optLong("ttlMs", config.userCacheTtlMillis);
+            }
+
+            // Extracting the optional configuration of how orders are written to the database
+            JSONObject orderWriterConfig = json.optJSONObject("OrderWriter");
+            if (orderWriterConfig != null) {
+                config.orderDurability = orderWriterConfig.optString("durability", config.orderDurability);
+                config.orderBatchSize = orderWriterConfig.optInt("batchSize", config.orderBatchSize);
+                config.orderFlushIntervalMillis = orderWriterConfig.optLong("flushIntervalMs", config.orderFlushIntervalMillis);
+            }
+
+            // Extracting the optional configuration of how reservations of the same product are merged
+            JSONObject reservationConfig = json.optJSONObject("Reservations");
+            if (reservationConfig != null) {
+                config.combineReservations = reservationConfig.optBoolean("combine", config.combineReservations);
+                config.reservationBatchSize = reservationConfig.optInt("maxBatchSize", config.reservationBatchSize);
+            }
+
+            // Extracting the optional configuration of the background order pipeline
+            JSONObject pipelineConfig = json.optJSONObject("OrderPipeline");
+            if (pipelineConfig != null) {
+                config.orderPipelineMode = pipelineConfig.optString("mode", config.orderPipelineMode);
+                config.orderPipelineCapacity = pipelineConfig.optInt("capacity", config.orderPipelineCapacity);
+                config.orderPipelineWorkers = pipelineConfig.optInt("workers", config.orderPipelineWorkers);
+            }
+            return config;
 
         } catch (Exception e) {
-            System.err.println("Error reading config: " + e.getMessage());
+            log.error("Error reading config: {}", e.getMessage());
             return null;
         }
     }
@@ -130,556 +351,2928 @@ public class OrderService {
         path = parentPath.getParent().toString();  
         ServiceConfig orderServiceConfig = readConfig(path + "/config.json");
         if (orderServiceConfig == null) {
-            System.out.println("Failed to read config for OrderService. Using default settings.");
+            log.warn("Failed to read config for OrderService. Using default settings.");
             orderServiceConfig = new ServiceConfig(8080, 8081, 8082, "127.0.0.1", "127.0.0.1","127.0.0.1");
         }
-        String url = getDatabaseUrl();
-        try (Connection conn = DriverManager.getConnection(url);
-             Statement stmt = conn.createStatement()) {
-                initTables(conn);
-             }catch(SQLException e){
-                System.err.println(e.getMessage());
-             }
+        AsyncLogProvider.setLevel(orderServiceConfig.logLevel);
+        metrics.counter("log_messages_dropped_total", "Log messages dropped because the log queue was full.", "",
+                AsyncLogProvider::getDroppedCount);
+        Path database = getDatabaseDirectory().resolve(orderServiceConfig.database);
+        try {
+            connectionPool = new ConnectionPool("jdbc:sqlite:" + database, getStorageProperties(orderServiceConfig),
+                    orderServiceConfig.poolSize, orderServiceConfig.poolWaitTimeoutMillis);
+            log.info("Storage: {}", connectionPool.describeStorage());
+            connectionPool.registerMetrics(metrics);
+        } catch (SQLException e) {
+            log.error("Error opening database connections: {}", e.getMessage());
+            return;
+        }
+        try (PooledConnection conn = connectionPool.borrow()) {
+            initTables(conn.getConnection(), database);
+        } catch (SQLException e) {
+            log.error("Error initializing tables: {}", e.getMessage());
+        }
+        orderWriter = new OrderWriter(connectionPool, orderServiceConfig.orderDurability,
+                orderServiceConfig.orderBatchSize, orderServiceConfig.orderFlushIntervalMillis);
         int port = orderServiceConfig.getPort(2);
+        // Send the response headers and body without waiting for the client to acknowledge the headers first
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         HttpServer server = HttpServer.create(new InetSocketAddress(orderServiceConfig.getIp(2), port), 0);
-        server.setExecutor(Executors.newFixedThreadPool(20)); 
-        server.createContext("/order", new OrderHandler(orderServiceConfig, server));
-        server.createContext("/user", new UserHandler(orderServiceConfig));
-        server.createContext("/product", new ProductHandler(orderServiceConfig));
-    
-        server.setExecutor(null);
+        server.setExecutor(createExecutor(orderServiceConfig));
+        maxRequestBytes = Math.max(0, Math.min(orderServiceConfig.maxRequestBytes, Integer.MAX_VALUE - 1));
+        gzipMinBytes = orderServiceConfig.gzipMinBytes;
+        userService = new UpstreamClient(orderServiceConfig.getIp(0), orderServiceConfig.getPort(0), orderServiceConfig.userPoolSize,
+                orderServiceConfig.upstreamConnectTimeoutMillis, orderServiceConfig.upstreamRequestTimeoutMillis);
+        productService = new UpstreamClient(orderServiceConfig.getIp(1), orderServiceConfig.getPort(1), orderServiceConfig.productPoolSize,
+                orderServiceConfig.upstreamConnectTimeoutMillis, orderServiceConfig.upstreamRequestTimeoutMillis);
+        userCache = new UserExistenceCache(orderServiceConfig.userCacheMaxEntries, orderServiceConfig.userCacheTtlMillis);
+        userService.registerMetrics(metrics, "user");
+        productService.registerMetrics(metrics, "product");
+        userCache.registerMetrics(metrics);
+        orderWriter.registerMetrics(metrics);
+        if (orderServiceConfig.combineReservations) {
+            reservationCombiner = new ReservationCombiner(productService, orderServiceConfig.reservationBatchSize);
+            reservationCombiner.registerMetrics(metrics);
+        }
+        if ("async".equalsIgnoreCase(orderServiceConfig.orderPipelineMode)) {
+            // Only orders that were pending before this start are resumed, the others are already in the pipeline
+            long lastOrderId = 0;
+            try (PooledConnection conn = connectionPool.borrow();
+                 ResultSet rs = conn.prepare("SELECT COALESCE(MAX(id), 0) FROM orders").executeQuery()) {
+                lastOrderId = rs.next() ? rs.getLong(1) : 0;
+            } catch (SQLException e) {
+                log.error("Error reading the last order ID: {}", e.getMessage());
+            }
+            orderPipeline = new OrderPipeline(connectionPool, orderServiceConfig.orderPipelineCapacity,
+                    orderServiceConfig.orderPipelineWorkers, lastOrderId);
+            orderPipeline.registerMetrics(metrics);
+            log.info("Placing orders in the background with at most {} in progress", orderServiceConfig.orderPipelineCapacity);
+        }
+        server.createContext("/order", new InstrumentedHandler("/order",
+                Set.of("place order", "place orders", "shutdown", "restart"), new OrderHandler(orderServiceConfig, server)));
+        server.createContext("/user", new InstrumentedHandler("/user",
+                Set.of("create", "update", "delete", "shutdown"), new UserHandler(userService)));
+        server.createContext("/product", new InstrumentedHandler("/product", Set.of(), new ProductHandler(productService)));
+        server.createContext("/metrics", new MetricsHandler());
         server.start();
 
-        System.out.println("Server started on port " + port);
+        log.info("Server started on port {}", port);
     }
     
     
     /**
-     * Returns the database URL for the SQLite database.
+     * Creates the executor that the HttpServer runs its handlers on.
      * 
-     * @return  The database URL
+     * In "platform" mode requests run on a fixed pool of executorThreads threads with at most executorQueueCapacity
+     * requests waiting. When the queue is full the dispatcher thread runs the request itself, so it stops accepting
+     * new connections until the pool catches up.
+     * 
+     * In "virtual" mode every request gets its own virtual thread and at most executorQueueCapacity requests are in
+     * flight at once. Virtual threads need Java 21, so older runtimes fall back to the platform pool.
+     * 
+     * @param config    The service configuration
+     * @return          The executor for the HttpServer
      */
-    private static String getDatabaseUrl() {
-        String path = System.getProperty("user.dir");
-
-        // Convert the string path to a Path object
-        Path currentPath = Paths.get(path);
-
-        // Get the parent of the current path
-        path = currentPath.getParent().toString();
-        String databasePath = path + "/Database/info.db";
-        return "jdbc:sqlite:" + databasePath;
-    }
-
+    private static Executor createExecutor(ServiceConfig config) {
+        int threads = Math.max(1, config.executorThreads);
+        int queueCapacity = Math.max(1, config.executorQueueCapacity);
 
-    /**
-     * Handler class for the OrderService.
-     */
-    static class OrderHandler implements HttpHandler {
-        private ServiceConfig config; 
-        private HttpServer server;
-    
-        public OrderHandler(ServiceConfig config, HttpServer server) {
-            this.config = config;
-            this.server = server;
+        if ("virtual".equalsIgnoreCase(config.executorMode)) {
+            try {
+                Executor virtualExecutor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                Semaphore inFlight = new Semaphore(queueCapacity);
+                log.info("Using virtual threads with at most {} requests in flight", queueCapacity);
+                return task -> {
+                    inFlight.acquireUninterruptibly();
+                    try {
+                        virtualExecutor.execute(() -> {
+                            try {
+                                task.run();
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        inFlight.release();
+                        throw e;
+                    }
+                };
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not available on this JVM. Using a platform thread pool.");
+            }
         }
-    
 
-        /**
-         * This method handles the following HTTP requests:
-         * 
-         * For a POST request: It performs different operations based on the command specified in the request body.
-         *    - place order: Creates a new order in the database if every field is provided correctly and value 
-         *      of the quantity field does not exceed the available quantity.
-         *    - shutdown: Shuts down the server.
-         *    - restart: Restarts the server.
-         * @param exchange  The HttpExchange object
-         * @throws IOException
-         */
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {  
-            if ("POST".equals(exchange.getRequestMethod())) {   
-                JSONObject requestJson = new JSONObject(getRequestBody(exchange));  
-                String command = requestJson.optString("command");  
-                System.out.println(command);
-                if (!isFirstCommandReceived) {
-                    isFirstCommandReceived = true; 
-
-                    if (!"restart".equalsIgnoreCase(command)) {
-                        // If the first command is not 'restart', drop all tables
-                        System.out.println("First command");
-                        dropAllTables();
-                        sendResponse(exchange, "restarted", 200);
-                    }
-                }
-                    
-                switch (command) {  
-                    case "place order":  
-                        System.out.println("Place Order");
-                        placeOrder(requestJson, this.config, exchange); 
-                        break;  
-                    case "shutdown":
-                        System.out.println("Shutting down");
-                        sendShutdownCommand(config.getIp(0), config.getPort(0), "user"); 
-                        sendShutdownCommand(config.getIp(1), config.getPort(1), "product"); 
-                        sendResponse(exchange, "Shutting down", 200);
-                        server.stop(4);
-                    case "restart":
-                        break;
-                    default:    
-                        sendResponse(exchange, "Invalid Request", 400); 
-                        return; 
-                }   
-    
-                sendResponse(exchange, "Success", 200);    
-            } else {    
-                exchange.sendResponseHeaders(400, 0);   
-                exchange.close();   
-            }   
-        }   
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "OrderService-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true); // Let the JVM exit once the server has been stopped
+            return thread;
+        };
+        log.info("Using {} platform threads with a queue of {} requests", threads, queueCapacity);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
     }
 
 
     /**
-     * This method drops all tables in the database and re-initializes them.
-     */
-    private static void dropAllTables() {
-        System.out.println("Dropping all tables...");
-        String url = getDatabaseUrl();
-        try (Connection conn = DriverManager.getConnection(url);
-             Statement stmt = conn.createStatement()) {
-            
-            stmt.executeUpdate("DROP TABLE IF EXISTS orders;");
-            stmt.executeUpdate("DROP TABLE IF EXISTS users;");
-            stmt.executeUpdate("DROP TABLE IF EXISTS products;");
-        
-            // Initialize tables after dropping them
-            initTables(conn); // Pass the existing connection to initTables
-        } catch (SQLException e) {
-            System.err.println("Error dropping tables: " + e.getMessage());
-        }
-    }
-    
-
-    /**
-     * This method initializes the tables in the database.
+     * Returns the configured SQLite pragmas as connection properties. The driver applies them to every connection
+     * it opens, so all pooled connections share the same settings.
      * 
-     * @param conn  The connection to the database
+     * @param config    The service configuration
+     * @return          The connection properties
      */
-    private static void initTables(Connection conn) {
-        try (Statement stmt = conn.createStatement()) {
-            // Fixed SQL statement with the added comma
-            String sql = "CREATE TABLE IF NOT EXISTS products (" +
-                         "id INTEGER PRIMARY KEY, " +
-                         "name TEXT NOT NULL, " +
-                         "description TEXT NOT NULL, " + // Added comma here
-                         "price REAL NOT NULL, " +
-                         "quantity INTEGER NOT NULL);";
-            stmt.execute(sql);
-    
-            sql = "CREATE TABLE IF NOT EXISTS orders (" +
-                  "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                  "product_id INTEGER NOT NULL, " +
-                  "user_id INTEGER NOT NULL, " +
-                  "quantity INTEGER NOT NULL, " +
-                  "status TEXT NOT NULL);";
-            stmt.execute(sql);
-    
-            sql = "CREATE TABLE IF NOT EXISTS users (" +
-                  "id INTEGER PRIMARY KEY, " +
-                  "username TEXT NOT NULL, " +
-                  "email TEXT NOT NULL, " +
-                  "password TEXT NOT NULL);";
-            stmt.execute(sql);
-        } catch (SQLException e) {
-            System.err.println("Error initializing tables: " + e.getMessage());
-        }
+    private static Properties getStorageProperties(ServiceConfig config) {
+        Properties properties = new Properties();
+        properties.setProperty("journal_mode", config.journalMode);
+        properties.setProperty("synchronous", config.synchronous);
+        properties.setProperty("busy_timeout", Long.toString(config.busyTimeoutMillis));
+        properties.setProperty("mmap_size", Long.toString(config.mmapSizeBytes));
+        // SQLite reads a negative cache size as KiB instead of pages
+        properties.setProperty("cache_size", Long.toString(-config.cacheSizeKib));
+        return properties;
     }
-    
-    
+
+
     /**
-     * This method sends the shutdown command to a specified service.
+     * Returns the directory of the databases, Database in the parent of the working directory.
      * 
-     * @param ip        The IP address of the service
-     * @param port      The port of the service
-     * @param service   The name of the service
+     * @return  The directory of the databases
      */
-    private static void sendShutdownCommand(String ip, int port, String service) {
-        try {
-            URL url = new URL("http://" + ip + ":" + port + "/" + service);
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("POST");
-            con.setDoOutput(true);
-            con.setRequestProperty("Content-Type", "application/json");
-    
-            JSONObject shutdownCommand = new JSONObject();
-            shutdownCommand.put("command", "shutdown");
-    
-            try (OutputStream os = con.getOutputStream()) {
-                byte[] input = shutdownCommand.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
-    
-            int responseCode = con.getResponseCode();
-            System.out.println("Shutdown command sent with response code: " + responseCode);
-    
-            con.disconnect();
-        } catch (Exception e) {
-            System.err.println("Error sending shutdown command: " + e.getMessage());
-        }
+    private static Path getDatabaseDirectory() {
+        return Paths.get(System.getProperty("user.dir")).getParent().resolve("Database");
     }
-    
+
 
     /**
-     * Handler class for the UserService.
+     * A fixed-size pool of long-lived SQLite connections shared by all handlers of the service.
+     * 
+     * Every connection is opened once at startup and keeps a cache of the prepared statements for the fixed SQL
+     * strings it has executed, so a request neither reopens the database file nor recompiles its statements.
      */
-    static class UserHandler implements HttpHandler {
-        private ServiceConfig config;
+    static class ConnectionPool {
+        private final BlockingQueue<PooledConnection> idleConnections;
+        private final int size;
+        private final long waitTimeoutMillis;
+        private final AtomicLong borrowCount = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        // Time spent waiting for a connection and time it was held, which is mostly spent in SQLite
+        final Metrics.Histogram waitTimes = new Metrics.Histogram();
+        final Metrics.Histogram holdTimes = new Metrics.Histogram();
 
-        public UserHandler(ServiceConfig config) {
-            this.config = config;
+        public ConnectionPool(String url, Properties properties, int size, long waitTimeoutMillis) throws SQLException {
+            this.size = Math.max(1, size);
+            this.waitTimeoutMillis = waitTimeoutMillis;
+            this.idleConnections = new ArrayBlockingQueue<>(this.size);
+            for (int i = 0; i < this.size; i++) {
+                idleConnections.add(new PooledConnection(DriverManager.getConnection(url, properties), this));
+            }
         }
 
         /**
-         * This method handles the HTTP requests for the UserService. It will forward the request to the UserService.
+         * Reads back the storage settings SQLite is actually using on a pooled connection. They can differ from
+         * the requested ones, e.g. when the file system does not support WAL.
+         * 
+         * @return  The effective pragma values
+         * @throws SQLException If the settings could not be read
          */
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            String requestBody = getRequestBody(exchange); 
-            JSONObject requestJson = new JSONObject(requestBody); 
-            String command = requestJson.optString("command");
-
-            if (!isFirstCommandReceived) {
-                isFirstCommandReceived = true;
-
-                if (!"restart".equalsIgnoreCase(command)) {
-                    dropAllTables();
+        public String describeStorage() throws SQLException {
+            StringBuilder settings = new StringBuilder();
+            try (PooledConnection conn = borrow(); Statement stmt = conn.getConnection().createStatement()) {
+                for (String pragma : new String[] {"journal_mode", "synchronous", "busy_timeout", "mmap_size", "cache_size"}) {
+                    try (ResultSet rs = stmt.executeQuery("PRAGMA " + pragma)) {
+                        if (settings.length() > 0) {
+                            settings.append(' ');
+                        }
+                        settings.append(pragma).append('=').append(rs.next() ? rs.getString(1) : "?");
+                    }
                 }
             }
+            return settings.toString();
+        }
 
+        /**
+         * Takes a connection from the pool, waiting up to the configured timeout for one to be returned.
+         * 
+         * @return  A connection that goes back to the pool when it is closed
+         * @throws SQLException If no connection became available in time
+         */
+        public PooledConnection borrow() throws SQLException {
+            long start = System.nanoTime();
+            PooledConnection connection;
             try {
-                URI uri = new URI("http", null, config.getIp(0), config.getPort(0), exchange.getRequestURI().getPath(), null, null);
-                URL url = uri.toURL();
-                forwardRequest(exchange, url, requestBody);
-            } catch (Exception e) {
-                System.err.println(e.getMessage());
+                connection = idleConnections.poll(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", e);
             }
+            long waited = System.nanoTime() - start;
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+            borrowCount.incrementAndGet();
+            totalWaitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            waitTimes.observeNanos(waited);
+            connection.borrowedAtNanos = System.nanoTime();
+            return connection;
+        }
+
+        private void release(PooledConnection connection) {
+            holdTimes.observeNanos(System.nanoTime() - connection.borrowedAtNanos);
+            idleConnections.offer(connection);
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getIdleCount() {
+            return idleConnections.size();
+        }
+
+        public int getActiveCount() {
+            return size - idleConnections.size();
+        }
+
+        public long getBorrowCount() {
+            return borrowCount.get();
+        }
+
+        public long getTotalWaitNanos() {
+            return totalWaitNanos.get();
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            long borrows = borrowCount.get();
+            double averageWaitMillis = borrows == 0 ? 0 : totalWaitNanos.get() / 1_000_000.0 / borrows;
+            return String.format("size=%d active=%d idle=%d borrows=%d avgWaitMs=%.3f maxWaitMs=%.3f",
+                    size, getActiveCount(), getIdleCount(), borrows, averageWaitMillis, maxWaitNanos.get() / 1_000_000.0);
+        }
+
+        /**
+         * Exports the pool's size, usage and timings to the given registry.
+         */
+        public void registerMetrics(Metrics metrics) {
+            metrics.gauge("db_pool_connections", "Connections in the pool.", "", () -> size);
+            metrics.gauge("db_pool_active_connections", "Connections currently borrowed.", "", this::getActiveCount);
+            metrics.counter("db_pool_borrows_total", "Connections borrowed from the pool.", "", borrowCount::get);
+            metrics.histogram("db_pool_wait_seconds", "Time spent waiting for a connection.", "", waitTimes);
+            metrics.histogram("db_pool_hold_seconds", "Time a connection was held, including its SQL statements.", "", holdTimes);
         }
     }
 
-    
+
     /**
-     * Handler class for the ProductService.
+     * A connection borrowed from the ConnectionPool. Closing it returns it to the pool instead of closing the database.
      */
-    static class ProductHandler implements HttpHandler {
-        private ServiceConfig config;
-    
-        public ProductHandler(ServiceConfig config) {
-            this.config = config;
+    static class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final ConnectionPool pool;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long borrowedAtNanos;
+
+        PooledConnection(Connection connection, ConnectionPool pool) {
+            this.connection = connection;
+            this.pool = pool;
         }
-        
+
         /**
-         * This method handles the HTTP requests for the ProductService. It will forward the request to the ProductService.
+         * Returns the cached prepared statement for the given SQL, preparing it on first use.
+         * 
+         * Only use this for fixed SQL strings. The statement belongs to the connection and must not be closed by the caller.
+         * 
+         * @param sql   The SQL statement
+         * @return      The prepared statement with its parameters cleared
+         * @throws SQLException
          */
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            String requestBody = getRequestBody(exchange); 
-            JSONObject requestJson = new JSONObject(requestBody); 
-            String command = requestJson.optString("command");
-    
-            if (!isFirstCommandReceived) {
-                isFirstCommandReceived = true;
-    
-                if (!"restart".equalsIgnoreCase(command)) {
-                    dropAllTables();
-                }
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return prepare(sql, Statement.NO_GENERATED_KEYS);
+        }
+
+        public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
             }
-    
+            return statement;
+        }
+
+        /**
+         * Returns the underlying connection, for statements built at runtime that cannot be cached.
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public void close() throws SQLException {
             try {
-                URI uri = new URI("http", null, config.getIp(1), config.getPort(1), exchange.getRequestURI().getPath(), null, null);
-                URL url = uri.toURL();
-                forwardRequest(exchange, url, requestBody);
-            } catch (Exception e) {
-                System.err.println(e.getMessage());
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } finally {
+                pool.release(this);
             }
         }
     }
-    
+
 
     /**
-     * This method forwards the HTTP request to the specified URL.
+     * A keep-alive HTTP/1.1 client for one of the services that OrderService calls.
      * 
-     * @param exchange      The HttpExchange object
-     * @param url           The URL to forward the request to
-     * @param requestBody   The request body
-     * @throws IOException
+     * Connections stay open between requests and are reused. At most poolSize requests are sent to the service at
+     * once, so the client never opens more than poolSize connections to it. Callers wait when all of them are in use.
      */
-    private static void forwardRequest(HttpExchange exchange, URL url, String requestBody) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod(exchange.getRequestMethod());
-    
-        // Forward all headers from the incoming request
-        exchange.getRequestHeaders().forEach((key, value) -> connection.setRequestProperty(key, String.join(",", value)));
-    
-        // Only set doOutput for methods that have a body
-        if ("POST".equals(exchange.getRequestMethod())) {
-            connection.setDoOutput(true);
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+    static class UpstreamClient {
+        private final HttpClient client;
+        private final String baseUrl;
+        private final Semaphore permits;
+        private final Duration requestTimeout;
+        private final Metrics.Histogram latency = new Metrics.Histogram();
+        private final LongAdder failures = new LongAdder();
+
+        public UpstreamClient(String ip, int port, int poolSize, long connectTimeoutMillis, long requestTimeoutMillis) {
+            this.client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                    .build();
+            this.baseUrl = "http://" + ip + ":" + port;
+            this.permits = new Semaphore(Math.max(1, poolSize));
+            this.requestTimeout = Duration.ofMillis(requestTimeoutMillis);
         }
-    
-        int responseCode = connection.getResponseCode();
-        InputStream inputStream = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
-    
-        // Forward response headers and body
-        exchange.getResponseHeaders().clear();
-        connection.getHeaderFields().forEach((key, values) -> {
-            if (key != null && values != null) {
-                values.forEach(value -> exchange.getResponseHeaders().add(key, value));
-            }
-        });
-    
-        exchange.sendResponseHeaders(responseCode, 0);
-        try (OutputStream os = exchange.getResponseBody()) {
-            byte[] buffer = new byte[1024];
-            int count;
-            while ((count = inputStream.read(buffer)) != -1) {
-                os.write(buffer, 0, count);
+
+        /**
+         * Starts building a request to the given path of the service.
+         * 
+         * @param path  The path, starting with a slash
+         * @return      A request builder with the configured timeout
+         */
+        public HttpRequest.Builder request(String path) {
+            return HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(requestTimeout);
+        }
+
+        /**
+         * Sends the request without blocking the caller, unless all connections to the service are in use.
+         */
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+            permits.acquireUninterruptibly();
+            try {
+                long start = System.nanoTime();
+                return client.sendAsync(request, bodyHandler).whenComplete((response, error) -> {
+                    permits.release();
+                    latency.observeNanos(System.nanoTime() - start);
+                    if (error != null) {
+                        failures.increment();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
             }
-        } finally {
-            connection.disconnect();
         }
-    }
-    
-    
-    /**
-     * This method reads the request body from the given HttpExchange object and returns it as a string.
-     * 
-     * @param exchange  The HttpExchange object
-     * @return          The request body as a string
-     * @throws IOException
-     */
-    private static String getRequestBody(HttpExchange exchange) throws IOException {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
-            StringBuilder requestBody = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                requestBody.append(line);
+
+        /**
+         * Sends the request and waits for the response.
+         */
+        public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+            permits.acquireUninterruptibly();
+            long start = System.nanoTime();
+            try {
+                return client.send(request, bodyHandler);
+            } catch (IOException e) {
+                failures.increment();
+                throw e;
+            } catch (InterruptedException e) {
+                failures.increment();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + request.uri(), e);
+            } finally {
+                permits.release();
+                latency.observeNanos(System.nanoTime() - start);
             }
-            return requestBody.toString();
+        }
+
+        /**
+         * Exports the time until the service's response headers arrived and the number of requests that got none.
+         * 
+         * @param metrics   The registry to export to
+         * @param service   The value of the service label
+         */
+        public void registerMetrics(Metrics metrics, String service) {
+            String labels = Metrics.labels("service", service);
+            metrics.histogram("upstream_request_duration_seconds", "Time until an upstream service answered.", labels, latency);
+            metrics.counter("upstream_request_failures_total", "Upstream requests that got no response.", labels, failures::sum);
         }
     }
 
 
     /**
-     * This method sends the given response string to the client.
+     * A bounded cache of whether user IDs exist, so placing an order for a known user does not call UserService.
      * 
-     * @param exchange  The HttpExchange object
-     * @param response  The response string
-     * @param code      The response code
-     * @throws IOException
+     * The least recently used entry is evicted when the cache is full, and entries expire after ttlMillis to bound
+     * how long a change made directly on UserService can go unnoticed. Changes forwarded by the UserHandler update
+     * the cache right away.
      */
-    private static void sendResponse(HttpExchange exchange, String response, int code) throws IOException {
-        if( code == 200){
-        exchange.sendResponseHeaders(200, response.length());
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes(StandardCharsets.UTF_8));
-        os.close();}
-        else{
-            exchange.sendResponseHeaders(code, response.length());
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes(StandardCharsets.UTF_8));
-            os.close();
+    static class UserExistenceCache {
+        private final int maxEntries;
+        private final long ttlNanos;
+        private final LinkedHashMap<Integer, CachedExistence> entries;
+        private long generation = 0;
+        private long hits = 0;
+        private long misses = 0;
+
+        private static class CachedExistence {
+            final boolean exists;
+            final long expiresAt;
+
+            CachedExistence(boolean exists, long expiresAt) {
+                this.exists = exists;
+                this.expiresAt = expiresAt;
+            }
         }
-    }
 
+        public UserExistenceCache(int maxEntries, long ttlMillis) {
+            this.maxEntries = Math.max(1, maxEntries);
+            this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, CachedExistence> eldest) {
+                    return size() > UserExistenceCache.this.maxEntries;
+                }
+            };
+        }
 
-    /**
+        /**
+         * Returns whether the user exists, or null if that is not cached or the entry has expired.
+         */
+        public synchronized Boolean get(int userId) {
+            CachedExistence entry = entries.get(userId);
+            if (entry == null || entry.expiresAt - System.nanoTime() < 0) {
+                if (entry != null) {
+                    entries.remove(userId);
+                }
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.exists;
+        }
+
+        /**
+         * Returns the current generation, which changes whenever the cache is updated from a user mutation.
+         * A lookup reads it before calling UserService and passes it to putIfUnchanged.
+         */
+        public synchronized long generation() {
+            return generation;
+        }
+
+        /**
+         * Caches the result of a lookup, unless a user mutation happened while the lookup was in flight.
+         */
+        public synchronized void putIfUnchanged(int userId, boolean exists, long lookupGeneration) {
+            if (generation == lookupGeneration) {
+                entries.put(userId, new CachedExistence(exists, System.nanoTime() + ttlNanos));
+            }
+        }
+
+        /**
+         * Records the outcome of a user mutation that UserService accepted.
+         */
+        public synchronized void put(int userId, boolean exists) {
+            generation++;
+            entries.put(userId, new CachedExistence(exists, System.nanoTime() + ttlNanos));
+        }
+
+        public synchronized void clear() {
+            generation++;
+            entries.clear();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "size=" + entries.size() + " hits=" + hits + " misses=" + misses;
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        public synchronized long hits() {
+            return hits;
+        }
+
+        public synchronized long misses() {
+            return misses;
+        }
+
+        public void registerMetrics(Metrics metrics) {
+            metrics.gauge("user_cache_entries", "User IDs in the existence cache.", "", this::size);
+            metrics.counter("user_cache_hits_total", "User checks answered from the cache.", "", this::hits);
+            metrics.counter("user_cache_misses_total", "User checks that called UserService.", "", this::misses);
+        }
+    }
+
+
+    /**
+     * Writes order rows to the database.
+     * 
+     * With "sync" durability every order is inserted and committed on its own, which costs one fsync per order.
+     * With "group" durability orders are queued and a single writer thread inserts them in batches, one transaction
+     * per batch. A batch is flushed once it holds batchSize orders or flushIntervalMillis after its first order
+     * arrived. In both modes write returns only after the order has been committed.
+     * 
+     * writeAll inserts the orders of one request together in a transaction of their own, in either mode.
+     */
+    static class OrderWriter {
+        private static final String INSERT_ORDER_SQL = "INSERT INTO orders (product_id, user_id, quantity, status) VALUES (?, ?, ?, ?)";
+
+        private final ConnectionPool pool;
+        private final boolean groupCommit;
+        private final int batchSize;
+        private final long flushIntervalNanos;
+        private final BlockingQueue<PendingOrder> queue;
+        private final AtomicLong ordersWritten = new AtomicLong();
+        private final AtomicLong batchesWritten = new AtomicLong();
+
+        static class PendingOrder {
+            final int productId;
+            final int userId;
+            final int quantity;
+            final String status;
+            final CompletableFuture<Long> orderId = new CompletableFuture<>();
+
+            PendingOrder(int productId, int userId, int quantity, String status) {
+                this.productId = productId;
+                this.userId = userId;
+                this.quantity = quantity;
+                this.status = status;
+            }
+        }
+
+        public OrderWriter(ConnectionPool pool, String durability, int batchSize, long flushIntervalMillis) {
+            this.pool = pool;
+            this.groupCommit = !"sync".equalsIgnoreCase(durability);
+            this.batchSize = Math.max(1, batchSize);
+            this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushIntervalMillis));
+            this.queue = new LinkedBlockingQueue<>();
+            if (groupCommit) {
+                Thread flusher = new Thread(this::runFlusher, "OrderService-order-writer");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+        }
+
+        /**
+         * Inserts an order and waits until it is committed.
+         * 
+         * @return  The ID of the new order
+         * @throws SQLException If the order could not be inserted
+         */
+        public long write(int productId, int userId, int quantity, String status) throws SQLException {
+            if (!groupCommit) {
+                try (PooledConnection conn = pool.borrow()) {
+                    PreparedStatement pstmt = conn.prepare(INSERT_ORDER_SQL);
+                    bind(pstmt, productId, userId, quantity, status);
+                    if (pstmt.executeUpdate() == 0) {
+                        throw new SQLException("Creating order failed, no rows affected.");
+                    }
+                    ordersWritten.incrementAndGet();
+                    batchesWritten.incrementAndGet();
+                    return lastInsertId(conn);
+                }
+            }
+
+            PendingOrder order = new PendingOrder(productId, userId, quantity, status);
+            queue.add(order);
+            try {
+                return order.orderId.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the order to be written", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+            }
+        }
+
+        private void runFlusher() {
+            List<PendingOrder> batch = new ArrayList<>(batchSize);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + flushIntervalNanos;
+                    while (batch.size() < batchSize) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long remaining = deadline - System.nanoTime();
+                        if (batch.size() >= batchSize || remaining <= 0) {
+                            break;
+                        }
+                        PendingOrder next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    flush(batch);
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        /**
+         * Inserts the orders in a single transaction and completes their orderId futures.
+         * 
+         * @param orders    The orders to insert
+         * @throws SQLException If the transaction failed, in which case none of the orders was inserted
+         */
+        public void writeAll(List<PendingOrder> orders) throws SQLException {
+            if (orders.isEmpty()) {
+                return;
+            }
+            try {
+                long firstId = insertBatch(orders);
+                for (int i = 0; i < orders.size(); i++) {
+                    orders.get(i).orderId.complete(firstId + i);
+                }
+            } catch (SQLException e) {
+                for (PendingOrder order : orders) {
+                    order.orderId.completeExceptionally(e);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Inserts the batch in one transaction and hands every waiting caller the ID of its order.
+         */
+        private void flush(List<PendingOrder> batch) {
+            try {
+                writeAll(batch);
+            } catch (SQLException e) {
+                // The callers waiting for these orders get the exception
+            }
+        }
+
+        /**
+         * Inserts the orders in one transaction.
+         * 
+         * @return  The ID of the first order, the others follow it consecutively
+         */
+        private long insertBatch(List<PendingOrder> orders) throws SQLException {
+            try (PooledConnection conn = pool.borrow()) {
+                conn.getConnection().setAutoCommit(false);
+                PreparedStatement pstmt = conn.prepare(INSERT_ORDER_SQL);
+                for (PendingOrder order : orders) {
+                    bind(pstmt, order.productId, order.userId, order.quantity, order.status);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                // The transaction holds the write lock, so the new IDs are consecutive and end at the last insert
+                long firstId = lastInsertId(conn) - orders.size() + 1;
+                conn.getConnection().commit();
+
+                ordersWritten.addAndGet(orders.size());
+                batchesWritten.incrementAndGet();
+                return firstId;
+            }
+        }
+
+        private static void bind(PreparedStatement pstmt, int productId, int userId, int quantity, String status) throws SQLException {
+            pstmt.setInt(1, productId);
+            pstmt.setInt(2, userId);
+            pstmt.setInt(3, quantity);
+            pstmt.setString(4, status);
+        }
+
+        private static long lastInsertId(PooledConnection conn) throws SQLException {
+            try (ResultSet rs = conn.prepare("SELECT last_insert_rowid()").executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Creating order failed, no ID obtained.");
+                }
+                return rs.getLong(1);
+            }
+        }
+
+        @Override
+        public String toString() {
+            long batches = batchesWritten.get();
+            double averageBatch = batches == 0 ? 0 : (double) ordersWritten.get() / batches;
+            return String.format("mode=%s orders=%d batches=%d avgBatch=%.1f",
+                    groupCommit ? "group" : "sync", ordersWritten.get(), batches, averageBatch);
+        }
+
+        public void registerMetrics(Metrics metrics) {
+            metrics.counter("orders_written_total", "Order rows committed.", "", ordersWritten::get);
+            metrics.counter("order_batches_written_total", "Transactions that committed order rows.", "", batchesWritten::get);
+            metrics.gauge("order_writer_queue_length", "Orders waiting for the group commit.", "", queue::size);
+        }
+    }
+
+
+    /**
+     * Merges concurrent reservations of the same product into one call to ProductService.
+     * 
+     * At most one reservation call per product is in flight. Reservations that arrive meanwhile wait in the queue
+     * of their product and go out together, up to maxBatchSize of them, when the call returns. ProductService takes
+     * the quantities of a batch out of the stock with one decrement, each one if it still fits after those before
+     * it, and answers which ones it took. A hot product therefore costs one round trip per batch instead of one per
+     * order, and its batches grow as more orders wait, while a product ordered alone still goes out right away.
+     */
+    static class ReservationCombiner {
+        private final UpstreamClient upstream;
+        private final int maxBatchSize;
+        private final Map<Integer, ProductQueue> queues = new ConcurrentHashMap<>();
+        private final LongAdder reservations = new LongAdder();
+        private final LongAdder calls = new LongAdder();
+
+        private static class Reservation {
+            final int quantity;
+            final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+            Reservation(int quantity) {
+                this.quantity = quantity;
+            }
+        }
+
+        // Guarded by its own monitor
+        private static class ProductQueue {
+            final ArrayDeque<Reservation> waiting = new ArrayDeque<>();
+            boolean inFlight;
+            // Set when an idle queue is removed from queues, new reservations then need a new queue
+            boolean retired;
+        }
+
+        public ReservationCombiner(UpstreamClient upstream, int maxBatchSize) {
+            this.upstream = upstream;
+            this.maxBatchSize = Math.max(1, maxBatchSize);
+        }
+
+        /**
+         * Reserves the quantity of a product together with the other reservations of that product waiting at the
+         * same time.
+         * 
+         * @param productId The product ID
+         * @param quantity  The quantity to reserve
+         * @return          A future that completes with 200 if the quantity was reserved, 409 if not enough stock
+         *                  was left for it, or the status code ProductService answered the whole batch with
+         */
+        public CompletableFuture<Integer> reserve(int productId, int quantity) {
+            Reservation reservation = new Reservation(quantity);
+            while (true) {
+                ProductQueue queue = queues.computeIfAbsent(productId, id -> new ProductQueue());
+                List<Reservation> batch;
+                synchronized (queue) {
+                    if (queue.retired) {
+                        continue;
+                    }
+                    queue.waiting.add(reservation);
+                    if (queue.inFlight) {
+                        return reservation.result;
+                    }
+                    queue.inFlight = true;
+                    batch = takeBatch(queue);
+                }
+                send(productId, queue, batch);
+                return reservation.result;
+            }
+        }
+
+        private List<Reservation> takeBatch(ProductQueue queue) {
+            List<Reservation> batch = new ArrayList<>(Math.min(queue.waiting.size(), maxBatchSize));
+            while (batch.size() < maxBatchSize && !queue.waiting.isEmpty()) {
+                batch.add(queue.waiting.poll());
+            }
+            return batch;
+        }
+
+        private void send(int productId, ProductQueue queue, List<Reservation> batch) {
+            JSONArray quantities = new JSONArray();
+            for (Reservation reservation : batch) {
+                quantities.put(reservation.quantity);
+            }
+            JSONObject body = new JSONObject();
+            body.put("command", "reserve");
+            body.put("id", productId);
+            body.put("quantities", quantities);
+            HttpRequest request = upstream.request("/product/" + productId)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                    .build();
+
+            calls.increment();
+            reservations.add(batch.size());
+            CompletableFuture<HttpResponse<String>> response;
+            try {
+                response = upstream.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+            } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            response.whenComplete((result, error) -> {
+                try {
+                    complete(batch, result, error);
+                } finally {
+                    sendNext(productId, queue);
+                }
+            });
+        }
+
+        /**
+         * Hands every reservation of the batch its own outcome.
+         */
+        private static void complete(List<Reservation> batch, HttpResponse<String> response, Throwable error) {
+            try {
+                if (error != null) {
+                    throw error;
+                }
+                if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+                    for (Reservation reservation : batch) {
+                        reservation.result.complete(response.statusCode());
+                    }
+                    return;
+                }
+                // Read the whole answer first, so one that does not cover the batch fails all of it
+                JSONArray reserved = new JSONObject(response.body()).getJSONArray("reserved");
+                if (reserved.length() != batch.size()) {
+                    throw new IllegalStateException("Got " + reserved.length() + " outcomes for " + batch.size() + " reservations");
+                }
+                int[] codes = new int[batch.size()];
+                for (int i = 0; i < codes.length; i++) {
+                    codes[i] = reserved.getBoolean(i) ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_CONFLICT;
+                }
+                for (int i = 0; i < codes.length; i++) {
+                    batch.get(i).result.complete(codes[i]);
+                }
+            } catch (Throwable e) {
+                for (Reservation reservation : batch) {
+                    reservation.result.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * Sends the reservations that arrived while the last call was out, or marks the product idle.
+         */
+        private void sendNext(int productId, ProductQueue queue) {
+            List<Reservation> batch;
+            synchronized (queue) {
+                if (queue.waiting.isEmpty()) {
+                    queue.inFlight = false;
+                    queue.retired = true;
+                    queues.remove(productId, queue);
+                    return;
+                }
+                batch = takeBatch(queue);
+            }
+            send(productId, queue, batch);
+        }
+
+        @Override
+        public String toString() {
+            long callCount = calls.sum();
+            double averageBatch = callCount == 0 ? 0 : (double) reservations.sum() / callCount;
+            return String.format("reservations=%d calls=%d avgBatch=%.1f", reservations.sum(), callCount, averageBatch);
+        }
+
+        public void registerMetrics(Metrics metrics) {
+            metrics.counter("stock_reservations_total", "Reservations sent to ProductService.", "", reservations::sum);
+            metrics.counter("stock_reservation_calls_total", "Calls to ProductService that carried reservations.", "", calls::sum);
+            metrics.gauge("stock_reservation_products_in_flight", "Products with a reservation call in flight.", "", queues::size);
+        }
+    }
+
+
+    /**
+     * Places the orders accepted in "async" mode in the background, in three stages with their own threads:
+     * validate looks up the user and the product, reserve takes the quantity out of the product's stock and persist
+     * writes the outcome into the order's row. The row holds "Pending" until then, or "Reserved" once the stock was
+     * taken and the outcome is about to be written.
+     * 
+     * At most capacity orders are in the pipeline at once, counted from when they are accepted until their outcome
+     * is committed. Each stage hands orders on through a bounded queue, and persist commits all the outcomes that
+     * are waiting in one transaction, retrying until it goes through.
+     * 
+     * Orders still pending when the service stops are resumed by resumePending once the first command after the
+     * next start keeps the data. Those already reserved are only persisted, so their stock is not reserved twice.
+     */
+    static class OrderPipeline {
+        static final String PENDING = "Pending";
+        static final String RESERVED = "Reserved";
+        private static final int PERSIST_BATCH_SIZE = 500;
+        private static final long MIN_RETRY_MILLIS = 10;
+        private static final long MAX_RETRY_MILLIS = 1000;
+
+        private final ConnectionPool pool;
+        private final int capacity;
+        private final Semaphore permits;
+        private final long lastOrderIdAtStart;
+        private final BlockingQueue<PipelineOrder> validateQueue;
+        private final BlockingQueue<PipelineOrder> reserveQueue;
+        private final BlockingQueue<PipelineOrder> persistQueue;
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder placed = new LongAdder();
+        private final Metrics.Histogram placeTimes = new Metrics.Histogram();
+
+        static class PipelineOrder {
+            final long id;
+            final int productId;
+            final int userId;
+            final int quantity;
+            final long acceptedNanos = System.nanoTime();
+            // Set by the stage that decided the outcome
+            String status;
+
+            PipelineOrder(long id, int productId, int userId, int quantity) {
+                this.id = id;
+                this.productId = productId;
+                this.userId = userId;
+                this.quantity = quantity;
+            }
+        }
+
+        /**
+         * @param pool                  The connection pool of the orders database
+         * @param capacity              The most orders in the pipeline at once
+         * @param workers               The threads of the validate stage and of the reserve stage each
+         * @param lastOrderIdAtStart    The highest order ID before this start, later orders are never resumed
+         */
+        public OrderPipeline(ConnectionPool pool, int capacity, int workers, long lastOrderIdAtStart) {
+            this.pool = pool;
+            this.capacity = Math.max(1, capacity);
+            this.permits = new Semaphore(this.capacity);
+            this.lastOrderIdAtStart = lastOrderIdAtStart;
+            this.validateQueue = new ArrayBlockingQueue<>(this.capacity);
+            this.reserveQueue = new ArrayBlockingQueue<>(this.capacity);
+            this.persistQueue = new ArrayBlockingQueue<>(this.capacity);
+            for (int i = 1; i <= Math.max(1, workers); i++) {
+                startThread(this::runValidator, "OrderService-pipeline-validate-" + i);
+                startThread(this::runReserver, "OrderService-pipeline-reserve-" + i);
+            }
+            startThread(this::runPersister, "OrderService-pipeline-persist");
+        }
+
+        private static void startThread(Runnable task, String name) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Makes room for an order if the pipeline is not full. The caller then submits the order or releases the room.
+         * 
+         * @return  Whether there was room
+         */
+        public boolean tryAccept() {
+            if (permits.tryAcquire()) {
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+
+        public void release() {
+            permits.release();
+        }
+
+        /**
+         * Starts placing an order that tryAccept made room for. Every queue holds capacity orders, so this never waits.
+         */
+        public void submit(PipelineOrder order) {
+            accepted.increment();
+            validateQueue.add(order);
+        }
+
+        private void runValidator() {
+            while (true) {
+                PipelineOrder order = takeUninterruptibly(validateQueue);
+                long start = System.nanoTime();
+                try {
+                    CompletableFuture<Boolean> userLookup = checkUserExistence(order.userId);
+                    CompletableFuture<JSONObject> productLookup = fetchProduct(productService, order.productId);
+                    boolean userExists = userLookup.join();
+                    JSONObject product = productLookup.join();
+                    // Orders accepted before negative quantities were refused can still be resumed
+                    if (!userExists || product == null || order.quantity < 0) {
+                        order.status = "Invalid Request";
+                    } else if (product.getInt("quantity") < order.quantity) {
+                        order.status = "Exceeded quantity limit";
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Error validating order {}: {}", order.id, e.getMessage());
+                    order.status = "Internal Server Error";
+                }
+                lookupTimes.observeNanos(System.nanoTime() - start);
+                putUninterruptibly(order.status == null ? reserveQueue : persistQueue, order);
+            }
+        }
+
+        private void runReserver() {
+            while (true) {
+                PipelineOrder order = takeUninterruptibly(reserveQueue);
+                long start = System.nanoTime();
+                try {
+                    int reserveCode = reserveStock(order.productId, order.quantity).join();
+                    if (reserveCode == HttpURLConnection.HTTP_OK) {
+                        order.status = RESERVED;
+                    } else if (reserveCode == HttpURLConnection.HTTP_CONFLICT) {
+                        order.status = "Exceeded quantity limit";
+                    } else {
+                        order.status = "Failed to update product quantity";
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Error reserving stock for order {}: {}", order.id, e.getMessage());
+                    order.status = "Failed to update product quantity";
+                }
+                reserveTimes.observeNanos(System.nanoTime() - start);
+                if (RESERVED.equals(order.status)) {
+                    // Recorded before going on, so a restart places the order without reserving its stock again
+                    writeStatuses(List.of(order));
+                    order.status = "Success";
+                }
+                putUninterruptibly(persistQueue, order);
+            }
+        }
+
+        private void runPersister() {
+            List<PipelineOrder> batch = new ArrayList<>(PERSIST_BATCH_SIZE);
+            while (true) {
+                batch.add(takeUninterruptibly(persistQueue));
+                persistQueue.drainTo(batch, PERSIST_BATCH_SIZE - 1);
+                long start = System.nanoTime();
+                writeStatuses(batch);
+                placed.add(batch.size());
+                long end = System.nanoTime();
+                recordTimes.observeNanos(end - start);
+                for (PipelineOrder order : batch) {
+                    placeTimes.observeNanos(end - order.acceptedNanos);
+                }
+                permits.release(batch.size());
+                batch.clear();
+            }
+        }
+
+        /**
+         * Writes the status of every order into its row in one transaction. Once stock may have been reserved for
+         * an order its outcome must not be lost, so a failed write is retried, waiting a little longer each time,
+         * until it commits. The orders keep their room in the pipeline meanwhile.
+         */
+        private void writeStatuses(List<PipelineOrder> orders) {
+            long backoffMillis = MIN_RETRY_MILLIS;
+            while (true) {
+                try (PooledConnection conn = pool.borrow()) {
+                    conn.getConnection().setAutoCommit(false);
+                    PreparedStatement pstmt = conn.prepare("UPDATE orders SET status = ? WHERE id = ?");
+                    for (PipelineOrder order : orders) {
+                        pstmt.setString(1, order.status);
+                        pstmt.setLong(2, order.id);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                    conn.getConnection().commit();
+                    return;
+                } catch (SQLException e) {
+                    log.error("Error recording the status of {} orders, retrying in {} ms: {}", orders.size(),
+                            backoffMillis, e.getMessage());
+                }
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    // The stage threads run until the JVM exits
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_RETRY_MILLIS);
+            }
+        }
+
+        /**
+         * Puts the orders that were not placed before this start back into the pipeline. They are read before this
+         * returns, so none of them runs alongside the requests that wait for the first command, and then submitted
+         * on a thread of its own since that waits for room. Orders whose stock was already reserved skip straight
+         * to persist.
+         */
+        public void resumePending() {
+            List<PipelineOrder> unplaced = new ArrayList<>();
+            try (PooledConnection conn = pool.borrow()) {
+                PreparedStatement query = conn.prepare("SELECT id, product_id, user_id, quantity, status FROM orders " +
+                                                       "WHERE status IN ('Pending', 'Reserved') AND id <= ? ORDER BY id");
+                query.setLong(1, lastOrderIdAtStart);
+                try (ResultSet rs = query.executeQuery()) {
+                    while (rs.next()) {
+                        PipelineOrder order = new PipelineOrder(rs.getLong(1), rs.getInt(2), rs.getInt(3), rs.getInt(4));
+                        if (RESERVED.equals(rs.getString(5))) {
+                            order.status = "Success";
+                        }
+                        unplaced.add(order);
+                    }
+                }
+            } catch (SQLException e) {
+                log.error("Error reading the pending orders: {}", e.getMessage());
+                return;
+            }
+            if (unplaced.isEmpty()) {
+                return;
+            }
+            log.info("Resuming {} pending orders", unplaced.size());
+            startThread(() -> {
+                for (PipelineOrder order : unplaced) {
+                    permits.acquireUninterruptibly();
+                    accepted.increment();
+                    putUninterruptibly(order.status == null ? validateQueue : persistQueue, order);
+                }
+            }, "OrderService-pipeline-resume");
+        }
+
+        private static PipelineOrder takeUninterruptibly(BlockingQueue<PipelineOrder> queue) {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    // The stage threads run until the JVM exits
+                }
+            }
+        }
+
+        private static void putUninterruptibly(BlockingQueue<PipelineOrder> queue, PipelineOrder order) {
+            while (true) {
+                try {
+                    queue.put(order);
+                    return;
+                } catch (InterruptedException e) {
+                    // The stage threads run until the JVM exits
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "accepted=" + accepted.sum() + " rejected=" + rejected.sum() + " placed=" + placed.sum()
+                    + " inProgress=" + (capacity - permits.availablePermits());
+        }
+
+        public void registerMetrics(Metrics metrics) {
+            metrics.counter("order_pipeline_accepted_total", "Orders accepted with 202 or resumed after a restart.", "", accepted::sum);
+            metrics.counter("order_pipeline_rejected_total", "Orders refused with 503 because the pipeline was full.", "", rejected::sum);
+            metrics.counter("order_pipeline_placed_total", "Orders whose outcome the pipeline committed.", "", placed::sum);
+            metrics.gauge("order_pipeline_in_progress", "Orders accepted and not placed yet.", "",
+                    () -> capacity - permits.availablePermits());
+            metrics.gauge("order_pipeline_queue_length", "Orders waiting for a pipeline stage.", Metrics.labels("stage", "validate"), validateQueue::size);
+            metrics.gauge("order_pipeline_queue_length", "Orders waiting for a pipeline stage.", Metrics.labels("stage", "reserve"), reserveQueue::size);
+            metrics.gauge("order_pipeline_queue_length", "Orders waiting for a pipeline stage.", Metrics.labels("stage", "persist"), persistQueue::size);
+            metrics.histogram("order_pipeline_place_seconds", "Time from accepting an order until its outcome was committed.", "", placeTimes);
+        }
+    }
+
+
+    /**
+     * Handler class for the OrderService.
+     */
+    static class OrderHandler implements HttpHandler {
+        private ServiceConfig config; 
+        private HttpServer server;
+    
+        public OrderHandler(ServiceConfig config, HttpServer server) {
+            this.config = config;
+            this.server = server;
+        }
+    
+
+        /**
+         * This method handles the following HTTP requests:
+         * 
+         * For a POST request: It performs different operations based on the command specified in the request body.
+         *    - place order: Creates a new order in the database if every field is provided correctly and value 
+         *      of the quantity field does not exceed the available quantity.
+         *      In async mode it only records the order as pending and responds 202, the order pipeline places it.
+         *    - place orders: Places every order in the "orders" array and reports the outcome of each.
+         *    - shutdown: Shuts down the server.
+         *    - restart: Restarts the server.
+         * 
+         * For a GET request on /order/{id}: It responds with the order as JSON, or 404 if there is no such order.
+         * @param exchange  The HttpExchange object
+         * @throws IOException
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {  
+            if ("POST".equals(exchange.getRequestMethod())) {   
+                JSONObject requestJson;
+                try {
+                    requestJson = readRequestJson(exchange);
+                } catch (RequestTooLargeException e) {
+                    sendResponse(exchange, e.getMessage(), 413);
+                    return;
+                }
+                String command = requestJson.optString("command");  
+                log.debug("Command: {}", command);
+                exchange.setAttribute(InstrumentedHandler.COMMAND_ATTRIBUTE, command);
+                // If the first command is not 'restart', all tables are dropped before it runs
+                checkFirstCommand(command);
+
+                switch (command) {  
+                    case "place order":  
+                        log.debug("Place Order");
+                        placeOrder(requestJson, exchange); 
+                        break;  
+                    case "place orders":
+                        placeOrders(requestJson, exchange);
+                        break;
+                    case "shutdown":
+                        log.info("Shutting down");
+                        sendCommand(userService, "user", "shutdown"); 
+                        sendCommand(productService, "product", "shutdown"); 
+                        sendResponse(exchange, "Shutting down", 200);
+                        log.info("Connection pool: {}", connectionPool);
+                        log.info("User cache: {}", userCache);
+                        log.info("Order writer: {}", orderWriter);
+                        if (reservationCombiner != null) {
+                            log.info("Reservation combiner: {}", reservationCombiner);
+                        }
+                        if (orderPipeline != null) {
+                            log.info("Order pipeline: {}", orderPipeline);
+                        }
+                        server.stop(4);
+                        break;
+                    case "restart":
+                        sendResponse(exchange, "Success", 200);
+                        break;
+                    default:    
+                        sendResponse(exchange, "Invalid Request", 400); 
+                        break; 
+                }   
+            } else if ("GET".equals(exchange.getRequestMethod())) {
+                checkFirstCommand("");
+                getOrder(exchange);
+            } else {    
+                exchange.sendResponseHeaders(400, -1);   
+                exchange.close();   
+            }   
+        }   
+    }
+
+
+    /**
+     * This method drops the orders and has UserService and ProductService drop their users and products, each in
+     * its own database.
+     */
+    private static void dropAllTables() {
+        log.info("Dropping all tables...");
+        try (PooledConnection conn = connectionPool.borrow();
+             Statement stmt = conn.getConnection().createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS orders;");
+            createTables(conn.getConnection());
+        } catch (SQLException e) {
+            log.error("Error dropping tables: {}", e.getMessage());
+        }
+        userCache.clear();
+
+        sendCommand(userService, "user", "reset");
+        sendCommand(productService, "product", "reset");
+    }
+    
+
+    /**
+     * This method creates the orders table and its indexes if they do not exist.
+     * 
+     * When the table is new and the database the services shared before, info.db, still has orders, they are
+     * copied over with their IDs, so order IDs keep counting up from where they were.
+     * 
+     * @param conn      A connection to the database of this service
+     * @param database  The path of that database
+     * @throws SQLException
+     */
+    private static void initTables(Connection conn, Path database) throws SQLException {
+        boolean isNew;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'orders'")) {
+            isNew = !rs.next();
+        }
+        createTables(conn);
+
+        Path legacy = getDatabaseDirectory().resolve(LEGACY_DATABASE);
+        if (!isNew || !Files.exists(legacy) || legacy.equals(database.normalize())) {
+            return;
+        }
+        try (PreparedStatement attach = conn.prepareStatement("ATTACH DATABASE ? AS legacy")) {
+            attach.setString(1, legacy.toString());
+            attach.execute();
+        }
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM legacy.sqlite_master WHERE type = 'table' AND name = 'orders'")) {
+                if (!rs.next()) {
+                    return;
+                }
+            }
+            int copied = stmt.executeUpdate("INSERT INTO main.orders (" + ORDER_COLUMNS + ") " +
+                                            "SELECT " + ORDER_COLUMNS + " FROM legacy.orders");
+            log.info("Copied {} orders from {}", copied, legacy);
+        } finally {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DETACH DATABASE legacy");
+            }
+        }
+    }
+
+
+    /**
+     * This method creates the orders table and its indexes if they do not exist. The users and products tables
+     * belong to UserService and ProductService, which create them in their own databases.
+     * 
+     * @param conn  The connection to the database
+     * @throws SQLException
+     */
+    private static void createTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS orders (" +
+                         "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                         "product_id INTEGER NOT NULL, " +
+                         "user_id INTEGER NOT NULL, " +
+                         "quantity INTEGER NOT NULL, " +
+                         "status TEXT NOT NULL);");
+
+            // The order queries look orders up by user, and by product with or without a status, each in ID order
+            stmt.execute("CREATE INDEX IF NOT EXISTS orders_user_id ON orders (user_id);");
+            stmt.execute("CREATE INDEX IF NOT EXISTS orders_product_id ON orders (product_id, id);");
+            stmt.execute("CREATE INDEX IF NOT EXISTS orders_product_id_status ON orders (product_id, status);");
+            // Only holds the orders the pipeline has not placed yet, so resuming them does not scan the table
+            stmt.execute("CREATE INDEX IF NOT EXISTS orders_pending ON orders (id) WHERE status IN ('Pending', 'Reserved');");
+        }
+    }
+    
+    
+    /**
+     * This method sends a command without any other fields, e.g. shutdown, to a specified service.
+     * 
+     * @param upstream  The client of the service
+     * @param service   The name of the service
+     * @param command   The command to send
+     */
+    private static void sendCommand(UpstreamClient upstream, String service, String command) {
+        try {
+            JSONObject commandJson = new JSONObject();
+            commandJson.put("command", command);
+
+            HttpRequest request = upstream.request("/" + service)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(commandJson.toString()))
+                    .build();
+            int responseCode = upstream.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            log.info("{} command sent with response code: {}", command, responseCode);
+        } catch (Exception e) {
+            log.warn("Error sending {} command: {}", command, e.getMessage());
+        }
+    }
+    
+
+    /**
+     * Handler class for the UserService.
+     */
+    static class UserHandler implements HttpHandler {
+        private UpstreamClient upstream;
+
+        public UserHandler(UpstreamClient upstream) {
+            this.upstream = upstream;
+        }
+
+        /**
+         * This method handles the HTTP requests for the UserService. It will forward the request to the UserService.
+         * 
+         * Users that UserService created or deleted are recorded in the user existence cache, so POST bodies are
+         * read and parsed before they are forwarded. Once the first command has been seen, GET requests are
+         * passed through without looking at them.
+         * 
+         * GET /user/{id}/orders lists the orders of a user and is answered by OrderService itself.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (isOrdersPath(exchange)) {
+                    checkFirstCommand("");
+                    listOrders(exchange, "user");
+                    return;
+                }
+                if (isInitialized() && !"POST".equals(exchange.getRequestMethod())) {
+                    forwardRequest(exchange, upstream, streamRequestBody(exchange));
+                    return;
+                }
+
+                byte[] requestBody = readRequestBody(exchange);
+                // GET requests have no body to parse
+                JSONObject requestJson = requestBody.length == 0 ? new JSONObject() : parseJson(requestBody);
+                String command = requestJson.optString("command");
+                exchange.setAttribute(InstrumentedHandler.COMMAND_ATTRIBUTE, command);
+                if (!isForwardable(command)) {
+                    sendResponse(exchange, "Invalid command", 400);
+                    return;
+                }
+                checkFirstCommand(command);
+
+                int responseCode = forwardRequest(exchange, upstream, HttpRequest.BodyPublishers.ofByteArray(requestBody));
+                if (responseCode == HttpURLConnection.HTTP_OK && requestJson.has("id")) {
+                    if ("create".equals(command)) {
+                        userCache.put(requestJson.getInt("id"), true);
+                    } else if ("delete".equals(command)) {
+                        userCache.put(requestJson.getInt("id"), false);
+                    }
+                } else if (responseCode == HttpURLConnection.HTTP_OK && "create".equals(command)) {
+                    // A batch of users was created
+                    JSONArray users = requestJson.optJSONArray("users");
+                    for (int i = 0; users != null && i < users.length(); i++) {
+                        userCache.put(users.getJSONObject(i).getInt("id"), true);
+                    }
+                }
+            } catch (RequestTooLargeException e) {
+                sendResponse(exchange, e.getMessage(), 413);
+            } catch (Exception e) {
+                log.warn("Error forwarding {} to UserService: {}", exchange.getRequestURI(), e.getMessage());
+                sendBadGateway(exchange);
+            }
+        }
+    }
+
+    
+    /**
+     * Handler class for the ProductService.
+     */
+    static class ProductHandler implements HttpHandler {
+        private UpstreamClient upstream;
+    
+        public ProductHandler(UpstreamClient upstream) {
+            this.upstream = upstream;
+        }
+        
+        /**
+         * This method handles the HTTP requests for the ProductService. It will forward the request to the ProductService.
+         * 
+         * POST bodies are read and parsed before they are forwarded, to see whether the very first one is a restart
+         * and to refuse the commands clients may not send. Once the first command has been seen, GET requests are
+         * streamed to the ProductService as they arrive.
+         * 
+         * GET /product/{id}/orders lists the orders of a product and is answered by OrderService itself.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (isOrdersPath(exchange)) {
+                    checkFirstCommand("");
+                    listOrders(exchange, "product");
+                    return;
+                }
+                if (isInitialized() && !"POST".equals(exchange.getRequestMethod())) {
+                    forwardRequest(exchange, upstream, streamRequestBody(exchange));
+                    return;
+                }
+
+                byte[] requestBody = readRequestBody(exchange);
+                // GET requests have no body to parse
+                JSONObject requestJson = requestBody.length == 0 ? new JSONObject() : parseJson(requestBody);
+                String command = requestJson.optString("command");
+                if (!isForwardable(command)) {
+                    sendResponse(exchange, "Invalid command", 400);
+                    return;
+                }
+                checkFirstCommand(command);
+                forwardRequest(exchange, upstream, HttpRequest.BodyPublishers.ofByteArray(requestBody));
+            } catch (RequestTooLargeException e) {
+                sendResponse(exchange, e.getMessage(), 413);
+            } catch (Exception e) {
+                log.warn("Error forwarding {} to ProductService: {}", exchange.getRequestURI(), e.getMessage());
+                sendBadGateway(exchange);
+            }
+        }
+    }
+
+
+    /**
+     * Tells whether a command may be forwarded to UserService or ProductService for a client. "reset" drops the whole
+     * table there, so only dropAllTables sends it.
+     * 
+     * @param command   The command of the current request
+     * @return          Whether the request may be forwarded
+     */
+    private static boolean isForwardable(String command) {
+        return !"reset".equals(command);
+    }
+
+
+    /**
+     * Drops all tables if this is the first command the service received and it is not a restart.
+     * 
+     * Requests that arrive while the first command is still dropping or keeping the data wait until it is done,
+     * so none of them runs against tables that are about to be dropped.
+     * 
+     * @param command   The command of the current request
+     */
+    private static void checkFirstCommand(String command) {
+        if (isFirstCommandReceived.compareAndSet(false, true)) {
+            try {
+                if (!"restart".equalsIgnoreCase(command)) {
+                    dropAllTables();
+                } else if (orderPipeline != null) {
+                    // The orders were kept, so finish those the last run accepted but did not place
+                    orderPipeline.resumePending();
+                }
+            } finally {
+                initialized.countDown();
+            }
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                initialized.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Returns whether the first command has been handled, after which requests can skip checkFirstCommand.
+     */
+    private static boolean isInitialized() {
+        return initialized.getCount() == 0;
+    }
+    
+
+    /**
+     * This method forwards the HTTP request to the same path and query on the given service and streams the
+     * response back.
+     * 
+     * The response keeps the Content-Length of the service's response when it has one, and is only sent chunked
+     * when the service sent it chunked.
+     * 
+     * @param exchange      The HttpExchange object
+     * @param upstream      The client of the service to forward the request to
+     * @param requestBody   The body to send to the service
+     * @return              The response code of the service
+     * @throws IOException
+     */
+    private static int forwardRequest(HttpExchange exchange, UpstreamClient upstream, HttpRequest.BodyPublisher requestBody) throws IOException {
+        URI requestUri = exchange.getRequestURI();
+        String target = requestUri.getRawQuery() == null ? requestUri.getRawPath() : requestUri.getRawPath() + "?" + requestUri.getRawQuery();
+        HttpRequest.Builder builder = upstream.request(target);
+    
+        // Forward the headers from the incoming request, except the ones HttpClient sets itself
+        exchange.getRequestHeaders().forEach((key, value) -> {
+            if (!UNFORWARDED_HEADERS.contains(key.toLowerCase())) {
+                builder.header(key, String.join(",", value));
+            }
+        });
+        builder.method(exchange.getRequestMethod(), requestBody);
+    
+        HttpResponse<InputStream> response;
+        try {
+            response = upstream.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            // A streamed body that outgrew the limit fails the upstream request, answer that instead of a 502
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof RequestTooLargeException) {
+                    throw (RequestTooLargeException) cause;
+                }
+            }
+            throw e;
+        }
+    
+        // Forward response headers and body
+        exchange.getResponseHeaders().clear();
+        response.headers().map().forEach((key, values) -> {
+            if (!UNFORWARDED_HEADERS.contains(key.toLowerCase())) {
+                values.forEach(value -> exchange.getResponseHeaders().add(key, value));
+            }
+        });
+    
+        // HttpServer takes -1 to mean no body and 0 to mean a chunked body
+        int statusCode = response.statusCode();
+        long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(0);
+        if (contentLength == 0 && response.headers().firstValue("Content-Length").isPresent()
+                || statusCode == HttpURLConnection.HTTP_NO_CONTENT || statusCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                || "HEAD".equals(exchange.getRequestMethod())) {
+            contentLength = -1;
+        }
+        exchange.sendResponseHeaders(statusCode, contentLength);
+        try (InputStream inputStream = response.body();
+             OutputStream os = exchange.getResponseBody()) {
+            if (contentLength >= 0) {
+                inputStream.transferTo(os);
+            }
+        }
+        return statusCode;
+    }
+
+
+    /**
+     * Returns a body publisher that streams the request body to the service while it is being received, without
+     * buffering it. A Content-Length sent by the client is passed on, otherwise the body is sent chunked and
+     * counted on the way, so a chunked body longer than maxRequestBytes fails the forwarded request.
+     * 
+     * @param exchange  The HttpExchange object
+     * @return          The body publisher
+     * @throws RequestTooLargeException If the Content-Length is larger than maxRequestBytes
+     * @throws IOException
+     */
+    private static HttpRequest.BodyPublisher streamRequestBody(HttpExchange exchange) throws IOException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength == null) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                return HttpRequest.BodyPublishers.noBody();
+            }
+            return HttpRequest.BodyPublishers.ofInputStream(() -> new LimitedInputStream(exchange.getRequestBody()));
+        }
+
+        long length;
+        try {
+            length = Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + contentLength);
+        }
+        if (length > maxRequestBytes) {
+            throw new RequestTooLargeException(length);
+        }
+        if (length == 0) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        return HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody), length);
+    }
+
+
+    /**
+     * Passes a request body of unknown length through and throws RequestTooLargeException once more than
+     * maxRequestBytes have been read from it.
+     */
+    static class LimitedInputStream extends FilterInputStream {
+        private long bytesRead;
+
+        LimitedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) throws RequestTooLargeException {
+            bytesRead += n;
+            if (bytesRead > maxRequestBytes) {
+                throw new RequestTooLargeException(bytesRead);
+            }
+        }
+    }
+
+
+    /**
+     * Answers with 502 if forwarding failed before the service's response could be passed on. Once the response
+     * headers have been sent there is nothing left to tell the client, so the connection is just closed.
+     * 
+     * @param exchange  The HttpExchange object
+     * @throws IOException
+     */
+    private static void sendBadGateway(HttpExchange exchange) throws IOException {
+        if (exchange.getResponseCode() == -1) {
+            sendResponse(exchange, "Bad Gateway", 502);
+        } else {
+            exchange.close();
+        }
+    }
+    
+    
+    /**
+     * Thrown when a request body is longer than maxRequestBytes.
+     */
+    static class RequestTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestTooLargeException(long length) {
+            super("Request body of " + length + " bytes exceeds the limit of " + maxRequestBytes + " bytes");
+        }
+    }
+
+
+    /**
+     * This method reads the request body from the given HttpExchange object.
+     * 
+     * If the client sent a Content-Length the body is read straight into an array of exactly that size, otherwise
+     * it is read up to the end of the stream. Bodies longer than maxRequestBytes are refused before they are read.
+     * 
+     * @param exchange  The HttpExchange object
+     * @return          The request body as bytes
+     * @throws RequestTooLargeException If the body is longer than maxRequestBytes
+     * @throws IOException
+     */
+    private static byte[] readRequestBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength == null) {
+                byte[] body = in.readNBytes(maxRequestBytes + 1);
+                if (body.length > maxRequestBytes) {
+                    throw new RequestTooLargeException(body.length);
+                }
+                return body;
+            }
+
+            long length;
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            if (length > maxRequestBytes) {
+                throw new RequestTooLargeException(length);
+            }
+            byte[] body = new byte[(int) length];
+            if (in.readNBytes(body, 0, body.length) < body.length) {
+                throw new IOException("Request body ended before Content-Length bytes were read");
+            }
+            return body;
+        }
+    }
+
+
+    /**
+     * This method reads the request body from the given HttpExchange object and parses it as a JSON object.
+     * 
+     * The bytes are decoded while they are parsed, so the body is never copied into a String.
+     * 
+     * @param exchange  The HttpExchange object
+     * @return          The request body as a JSON object
+     * @throws RequestTooLargeException If the body is longer than maxRequestBytes
+     * @throws IOException
+     */
+    private static JSONObject readRequestJson(HttpExchange exchange) throws IOException {
+        return parseJson(readRequestBody(exchange));
+    }
+
+
+    private static JSONObject parseJson(byte[] body) {
+        return new JSONObject(new JSONTokener(new Utf8Reader(body)));
+    }
+
+
+    /**
+     * Decodes UTF-8 bytes one character at a time for JSONTokener. It supports mark, so the tokener uses it as is
+     * instead of wrapping it in a BufferedReader, and it is not synchronized like the JDK readers.
+     * Malformed input decodes to U+FFFD.
+     */
+    static class Utf8Reader extends Reader {
+        private final byte[] bytes;
+        private int position;
+        private int markedPosition;
+        // The second half of a surrogate pair, or -1 if none is waiting
+        private int pendingLowSurrogate = -1;
+        private int markedLowSurrogate = -1;
+
+        public Utf8Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            if (pendingLowSurrogate >= 0) {
+                int low = pendingLowSurrogate;
+                pendingLowSurrogate = -1;
+                return low;
+            }
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int b = bytes[position++];
+            if (b >= 0) {
+                return b;
+            }
+            int extra;
+            int codePoint;
+            if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                return 0xFFFD;
+            }
+            for (int i = 0; i < extra; i++) {
+                if (position >= bytes.length || (bytes[position] & 0xC0) != 0x80) {
+                    return 0xFFFD;
+                }
+                codePoint = (codePoint << 6) | (bytes[position++] & 0x3F);
+            }
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                return Character.highSurrogate(codePoint);
+            }
+            return codePoint;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            int count = 0;
+            while (count < length) {
+                int c = read();
+                if (c < 0) {
+                    return count == 0 ? -1 : count;
+                }
+                buffer[offset + count++] = (char) c;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) {
+            markedPosition = position;
+            markedLowSurrogate = pendingLowSurrogate;
+        }
+
+        @Override
+        public void reset() {
+            position = markedPosition;
+            pendingLowSurrogate = markedLowSurrogate;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    /**
+     * This method sends the given message to the client as plain text.
+     * 
+     * The fixed messages of this service are encoded only once.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param response  The response string
+     * @param code      The response code
+     * @throws IOException
+     */
+    private static void sendResponse(HttpExchange exchange, String response, int code) throws IOException {
+        byte[] body = CONSTANT_BODIES.get(response);
+        sendResponse(exchange, body != null ? body : response.getBytes(StandardCharsets.UTF_8), code, TEXT_CONTENT_TYPE);
+    }
+
+
+    /**
+     * This method sends the given JSON object to the client.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param json      The response body
+     * @param code      The response code
+     * @throws IOException
+     */
+    private static void sendJson(HttpExchange exchange, JSONObject json, int code) throws IOException {
+        sendResponse(exchange, json.toString().getBytes(StandardCharsets.UTF_8), code, JSON_CONTENT_TYPE);
+    }
+
+
+    /**
+     * This method sends an encoded body to the client with its exact length.
+     * 
+     * Bodies of at least gzipMinBytes are compressed for clients that accept gzip. An empty body is sent as no body.
+     * 
+     * @param exchange      The HttpExchange object
+     * @param body          The encoded response body
+     * @param code          The response code
+     * @param contentType   The Content-Type of the body
+     * @throws IOException
+     */
+    private static void sendResponse(HttpExchange exchange, byte[] body, int code, String contentType) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", contentType);
+        if (body.length >= gzipMinBytes) {
+            headers.set("Vary", "Accept-Encoding");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                }
+                body = compressed.toByteArray();
+                headers.set("Content-Encoding", "gzip");
+            }
+        }
+        if (body.length == 0) {
+            // There is no body stream to write to after announcing an empty body
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+
+    /**
      * This method creates a new order in the database if every required field is provided correctly.
      * 
      * For the product ID and user ID, they must exist in the database.
      * For the quantity, it must not exceed the available quantity of the product.
      * 
-     * No matter the order is created successfully or not, it will response with the information of the order and the corresponding status code.
+     * No matter the order is created successfully or not, it will response with the information of the order and the corresponding status code.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param json      The request body as a JSONObject
+     */
+    private static void placeOrder(JSONObject json, HttpExchange exchange) {
+        try {
+            if (!json.has("product_id") || !json.has("quantity")) {
+                sendResponse(exchange, "Invalid Request: Missing required fields.", 400);
+                return;
+            }
+            int productId = json.getInt("product_id");
+            int userId = 1;
+            int quantity = json.getInt("quantity");
+            if (json.has("user_id")){
+                userId = json.getInt("user_id");
+            }
+            if (orderPipeline != null) {
+                acceptOrder(exchange, productId, userId, quantity);
+                return;
+            }
+
+            // Refused here, like in placeOrders, so it never joins the reservations of other orders for the product
+            if (quantity < 0) {
+                sendResponse(exchange, "Invalid Request: Quantity must not be negative.", 400);
+                createOrder(productId, userId, quantity, "Invalid Request");
+                return;
+            }
+
+            // Check if user exists, asking UserService in parallel with the product lookup if it is not cached
+            long stageStart = System.nanoTime();
+            CompletableFuture<Boolean> userLookup = checkUserExistence(userId);
+    
+            // Fetch the product once, it tells us both whether it exists and how much stock it has
+            CompletableFuture<JSONObject> productLookup = fetchProduct(productService, productId);
+            boolean userExists = userLookup.join();
+            JSONObject product = productLookup.join();
+            lookupTimes.observeNanos(System.nanoTime() - stageStart);
+            
+            // If the user or product don't exist
+            if (!userExists || product == null) {
+                sendResponse(exchange, "Invalid Request: User/Product ID does not exist.", 400);
+                createOrder(productId, userId, quantity, "Invalid Request");
+                return;
+            }
+    
+            // Skip the reservation if the stock we just fetched is already too low
+            if (product.getInt("quantity") < quantity) {
+                sendResponse(exchange, "Exceeded quantity limit.", 400);
+                createOrder(productId, userId, quantity, "Exceeded quantity limit");
+                return;
+            }
+    
+            // Take the quantity out of the product's stock, ProductService refuses if not enough is available
+            stageStart = System.nanoTime();
+            int reserveCode = reserveStock(productId, quantity).join();
+            reserveTimes.observeNanos(System.nanoTime() - stageStart);
+            if (reserveCode == HttpURLConnection.HTTP_CONFLICT) {
+                sendResponse(exchange, "Exceeded quantity limit.", 400);
+                createOrder(productId, userId, quantity, "Exceeded quantity limit");
+                return;
+            }
+            if (reserveCode != HttpURLConnection.HTTP_OK) {
+                sendResponse(exchange, "Failed to update product quantity. Command refused.", 400);
+                createOrder(productId, userId, quantity, "Failed to update product quantity");
+                return;
+            }
+            stageStart = System.nanoTime();
+            createOrder(productId, userId, quantity, "Success");
+            recordTimes.observeNanos(System.nanoTime() - stageStart);
+            
+            sendResponse(exchange, "Order placed successfully.", 200);
+        } catch (Exception e) {
+            log.error("Error placing order: {}", e.getMessage());
+            try {
+                sendResponse(exchange, "Internal Server Error", 500);
+            } catch (IOException ioException) {
+                log.warn("Error sending error response: {}", ioException.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * This method records an order as pending and leaves placing it to the order pipeline. It responds with status
+     * code 202 and the order ID, under which GET /order/{id} reports the outcome once the order is placed.
+     * 
+     * When the pipeline is full it responds with status code 503 and records nothing, so clients back off instead
+     * of piling up orders the service cannot keep up with. A negative quantity is refused with status code 400 and
+     * recorded as "Invalid Request" without entering the pipeline.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param productId The product ID
+     * @param userId    The user ID
+     * @param quantity  The ordered quantity
+     * @throws IOException
+     */
+    private static void acceptOrder(HttpExchange exchange, int productId, int userId, int quantity) throws IOException {
+        // Answered right away like in sync mode, a 202 would let it reach a combined reservation and fail the others
+        if (quantity < 0) {
+            sendResponse(exchange, "Invalid Request: Quantity must not be negative.", 400);
+            createOrder(productId, userId, quantity, "Invalid Request");
+            return;
+        }
+        if (!orderPipeline.tryAccept()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendResponse(exchange, "Too many orders in progress.", 503);
+            return;
+        }
+        long orderId;
+        try {
+            orderId = orderWriter.write(productId, userId, quantity, OrderPipeline.PENDING);
+        } catch (SQLException e) {
+            orderPipeline.release();
+            log.error("Error recording order: {}", e.getMessage());
+            sendResponse(exchange, "Internal Server Error", 500);
+            return;
+        }
+        orderPipeline.submit(new OrderPipeline.PipelineOrder(orderId, productId, userId, quantity));
+
+        JSONObject responseJson = new JSONObject();
+        responseJson.put("id", orderId);
+        responseJson.put("status", OrderPipeline.PENDING);
+        exchange.getResponseHeaders().set("Location", "/order/" + orderId);
+        sendJson(exchange, responseJson, 202);
+    }
+
+
+    /**
+     * This method places a batch of orders, e.g. a shopping cart, and responds with the outcome of every order.
+     * 
+     * Every distinct user and product is looked up once, all in parallel. The orders are then served in the order
+     * given from the stock that was fetched, and the total quantity taken from each product is reserved with one
+     * call per product. If a reservation fails, every order of that product fails with it. All orders, including
+     * the failed ones, are recorded in a single transaction.
+     * 
+     * The request holds an "orders" array of {"product_id", "quantity", "user_id"} objects, where "user_id" is
+     * optional as for "place order". The response holds an "orders" array with the status of each order and the
+     * ID it was recorded under, in the same order.
+     * 
+     * @param json      The request body as a JSONObject
+     * @param exchange  The HttpExchange object
+     */
+    private static void placeOrders(JSONObject json, HttpExchange exchange) {
+        try {
+            JSONArray items = json.optJSONArray("orders");
+            if (items == null || items.isEmpty()) {
+                sendResponse(exchange, "Invalid Request: Missing required fields.", 400);
+                return;
+            }
+
+            // Parse every order first, those without the required fields are reported but not recorded
+            int count = items.length();
+            OrderWriter.PendingOrder[] orders = new OrderWriter.PendingOrder[count];
+            String[] statuses = new String[count];
+            Map<Integer, CompletableFuture<Boolean>> userLookups = new HashMap<>();
+            Map<Integer, CompletableFuture<JSONObject>> productLookups = new HashMap<>();
+            int[] productIds = new int[count];
+            int[] userIds = new int[count];
+            int[] quantities = new int[count];
+            for (int i = 0; i < count; i++) {
+                JSONObject item = items.optJSONObject(i);
+                if (item == null || !item.has("product_id") || !item.has("quantity")) {
+                    statuses[i] = "Invalid Request: Missing required fields.";
+                    continue;
+                }
+                productIds[i] = item.getInt("product_id");
+                userIds[i] = item.optInt("user_id", 1);
+                quantities[i] = item.getInt("quantity");
+                userLookups.computeIfAbsent(userIds[i], OrderService::checkUserExistence);
+                productLookups.computeIfAbsent(productIds[i], productId -> fetchProduct(productService, productId));
+            }
+
+            // Serve the orders from the stock fetched for each product
+            Map<Integer, Integer> remainingStock = new HashMap<>();
+            Map<Integer, Integer> reservedQuantities = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                if (statuses[i] != null) {
+                    continue;
+                }
+                JSONObject product = productLookups.get(productIds[i]).join();
+                if (!userLookups.get(userIds[i]).join() || product == null || quantities[i] < 0) {
+                    statuses[i] = "Invalid Request";
+                    continue;
+                }
+                int remaining = remainingStock.computeIfAbsent(productIds[i], productId -> product.getInt("quantity"));
+                if (remaining < quantities[i]) {
+                    statuses[i] = "Exceeded quantity limit";
+                    continue;
+                }
+                remainingStock.put(productIds[i], remaining - quantities[i]);
+                reservedQuantities.merge(productIds[i], quantities[i], Integer::sum);
+            }
+
+            Map<Integer, CompletableFuture<Integer>> reservations = new HashMap<>();
+            reservedQuantities.forEach((productId, quantity) ->
+                    reservations.put(productId, reserveStock(productId, quantity)
+                            .exceptionally(error -> -1)));
+
+            List<OrderWriter.PendingOrder> toRecord = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (statuses[i] == null) {
+                    int reserveCode = reservations.get(productIds[i]).join();
+                    if (reserveCode == HttpURLConnection.HTTP_OK) {
+                        statuses[i] = "Success";
+                    } else if (reserveCode == HttpURLConnection.HTTP_CONFLICT) {
+                        statuses[i] = "Exceeded quantity limit";
+                    } else {
+                        statuses[i] = "Failed to update product quantity";
+                    }
+                } else if (statuses[i].startsWith("Invalid Request:")) {
+                    continue;
+                }
+                orders[i] = new OrderWriter.PendingOrder(productIds[i], userIds[i], quantities[i], statuses[i]);
+                toRecord.add(orders[i]);
+            }
+            orderWriter.writeAll(toRecord);
+
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < count; i++) {
+                JSONObject result = new JSONObject();
+                if (orders[i] != null) {
+                    result.put("id", orders[i].orderId.join());
+                    result.put("product_id", productIds[i]);
+                    result.put("user_id", userIds[i]);
+                    result.put("quantity", quantities[i]);
+                }
+                result.put("status", statuses[i]);
+                results.put(result);
+            }
+            sendJson(exchange, new JSONObject().put("orders", results), 200);
+        } catch (Exception e) {
+            log.error("Error placing orders: {}", e.getMessage());
+            try {
+                sendResponse(exchange, "Internal Server Error", 500);
+            } catch (IOException ioException) {
+                log.warn("Error sending error response: {}", ioException.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * This method responds with the order whose ID is the last segment of the path, e.g. /order/12.
+     * 
+     * @param exchange  The HttpExchange object
+     * @throws IOException
+     */
+    private static void getOrder(HttpExchange exchange) throws IOException {
+        String[] parts = exchange.getRequestURI().getPath().split("/");
+        long orderId;
+        try {
+            orderId = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+        } catch (NumberFormatException e) {
+            orderId = -1;
+        }
+        if (orderId < 0) {
+            sendResponse(exchange, "Invalid Request", 400);
+            return;
+        }
+
+        JSONObject order = null;
+        try (PooledConnection conn = connectionPool.borrow()) {
+            PreparedStatement pstmt = conn.prepare("SELECT " + ORDER_COLUMNS + " FROM orders WHERE id = ?");
+            pstmt.setLong(1, orderId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    order = new JSONObject(orderJson(rs));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error reading order {}: {}", orderId, e.getMessage());
+            sendResponse(exchange, "Internal Server Error", 500);
+            return;
+        }
+        if (order == null) {
+            sendResponse(exchange, "Order not found.", 404);
+        } else {
+            sendJson(exchange, order, 200);
+        }
+    }
+
+
+    /**
+     * Tells whether the request is a GET on /{entity}/{id}/orders.
+     */
+    private static boolean isOrdersPath(HttpExchange exchange) {
+        String[] parts = exchange.getRequestURI().getPath().split("/");
+        return "GET".equals(exchange.getRequestMethod()) && parts.length == 4 && "orders".equals(parts[3]);
+    }
+
+
+    /**
+     * This method lists one page of the orders of a user or product, e.g. GET /user/1/orders?after=250&limit=50.
+     * 
+     * Orders are listed by ascending ID. The page starts after the order ID in "after", so each page is a range
+     * scan of an index no matter how deep into the orders it is, and holds at most "limit" orders. The "next" field
+     * of the response is the "after" of the following page, or null on the last page. Orders of a product can be
+     * filtered by "status".
+     * 
+     * The orders are written to the client while they are read from the database, so the connection stays borrowed
+     * until the whole page has been sent.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param entity    "user" or "product"
+     * @throws IOException
+     */
+    private static void listOrders(HttpExchange exchange, String entity) throws IOException {
+        Map<String, String> parameters = queryParameters(exchange.getRequestURI());
+        int entityId;
+        long after;
+        int limit;
+        try {
+            entityId = Integer.parseInt(exchange.getRequestURI().getPath().split("/")[2]);
+            after = Long.parseLong(parameters.getOrDefault("after", "0"));
+            limit = Integer.parseInt(parameters.getOrDefault("limit", String.valueOf(DEFAULT_ORDER_PAGE_SIZE)));
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, "Invalid Request", 400);
+            return;
+        }
+        if (limit < 1 || limit > MAX_ORDER_PAGE_SIZE) {
+            sendResponse(exchange, "Invalid Request: limit must be between 1 and " + MAX_ORDER_PAGE_SIZE + ".", 400);
+            return;
+        }
+        String status = parameters.get("status");
+
+        try (PooledConnection conn = connectionPool.borrow()) {
+            PreparedStatement query;
+            if ("user".equals(entity)) {
+                query = conn.prepare("SELECT " + ORDER_COLUMNS + " FROM orders WHERE user_id = ? AND id > ? ORDER BY id LIMIT ?");
+                query.setInt(1, entityId);
+                query.setLong(2, after);
+                query.setInt(3, limit + 1);
+            } else if (status != null) {
+                query = conn.prepare("SELECT " + ORDER_COLUMNS + " FROM orders WHERE product_id = ? AND status = ? AND id > ? ORDER BY id LIMIT ?");
+                query.setInt(1, entityId);
+                query.setString(2, status);
+                query.setLong(3, after);
+                query.setInt(4, limit + 1);
+            } else {
+                query = conn.prepare("SELECT " + ORDER_COLUMNS + " FROM orders WHERE product_id = ? AND id > ? ORDER BY id LIMIT ?");
+                query.setInt(1, entityId);
+                query.setLong(2, after);
+                query.setInt(3, limit + 1);
+            }
+            try (ResultSet rs = query.executeQuery()) {
+                streamOrders(exchange, rs, limit);
+            }
+        } catch (SQLException | IOException e) {
+            log.error("Error listing the orders of {} {}: {}", entity, entityId, e.getMessage());
+            if (exchange.getResponseCode() == -1) {
+                sendResponse(exchange, "Internal Server Error", 500);
+            } else {
+                exchange.close();
+            }
+        }
+    }
+
+
+    /**
+     * This method writes a page of orders to the client as {"orders": [...], "next": ...} while reading them.
+     * 
+     * The response is sent chunked, and gzip-compressed for clients that accept it.
      * 
      * @param exchange  The HttpExchange object
-     * @param json      The request body as a JSONObject
+     * @param rs        The orders, with one more row than the page holds if there is a next page
+     * @param limit     The number of orders in a page
+     * @throws SQLException
+     * @throws IOException
      */
-    private static void placeOrder(JSONObject json, ServiceConfig config, HttpExchange exchange) {
-        try {
-            if (!json.has("product_id") || !json.has("quantity")) {
-                sendResponse(exchange, "Invalid Request: Missing required fields.", 400);
-                return;
+    private static void streamOrders(HttpExchange exchange, ResultSet rs, int limit) throws SQLException, IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", JSON_CONTENT_TYPE);
+        headers.set("Vary", "Accept-Encoding");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        if (gzip) {
+            headers.set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, 0);
+
+        OutputStream body = exchange.getResponseBody();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(gzip ? new GZIPOutputStream(body) : body,
+                StandardCharsets.UTF_8), 8192)) {
+            writer.write("{\"orders\":[");
+            int count = 0;
+            long lastId = 0;
+            boolean hasNext = false;
+            while (rs.next()) {
+                if (count == limit) {
+                    hasNext = true;
+                    break;
+                }
+                if (count++ > 0) {
+                    writer.write(',');
+                }
+                lastId = rs.getLong(1);
+                writer.write(orderJson(rs));
             }
-            int productId = json.getInt("product_id");
-            int userId = 1;
-            int quantity = json.getInt("quantity");
-            if (json.has("user_id")){
-                userId = json.getInt("user_id");
+            writer.write("],\"next\":");
+            writer.write(hasNext ? String.valueOf(lastId) : "null");
+            writer.write('}');
+        }
+    }
+
+
+    /**
+     * Formats the current row of a query over ORDER_COLUMNS as a JSON object.
+     */
+    private static String orderJson(ResultSet rs) throws SQLException {
+        return "{\"id\":" + rs.getLong(1) +
+               ",\"product_id\":" + rs.getInt(2) +
+               ",\"user_id\":" + rs.getInt(3) +
+               ",\"quantity\":" + rs.getInt(4) +
+               ",\"status\":" + JSONObject.quote(rs.getString(5)) + "}";
+    }
+
+
+    /**
+     * Parses the query string of a URI. Later values of a repeated parameter win.
+     * 
+     * @param uri   The request URI
+     * @return      The decoded parameters
+     */
+    private static Map<String, String> queryParameters(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
             }
+        }
+        return parameters;
+    }
+
+
+    /**
+     * This method records an order with the given status in the database.
+     * 
+     * @param productId The product ID
+     * @param userId    The user ID
+     * @param quantity  The ordered quantity
+     * @param status    The outcome of the order
+     * @return          The ID of the new order, or -1 if it could not be recorded
+     */
+    private static long createOrder(int productId, int userId, int quantity, String status) {
+        try {
+            return orderWriter.write(productId, userId, quantity, status);
+        } catch (SQLException e) {
+            log.error("Error recording order: {}", e.getMessage());
+            return -1;
+        }
+    }
     
-            // Check if user exists by sending GET request to UserService
-            boolean userExists = checkEntityExistence(config.getIp(0), config.getPort(0), "user", userId);
-    
-            // Check if product exists and has enough quantity
-            boolean productExists = checkEntityExistence(config.getIp(1), config.getPort(1), "product", productId);
-            int availableQuantity = getProductQuantity(config.getIp(1), config.getPort(1), productId);
-            
-            // If the user or product don't exist
-            if (!userExists || !productExists) {
-                sendResponse(exchange, "Invalid Request: User/Product ID does not exist.", 400);
-                createOrder(json, "Invalid Request");
-                return;
-            }
     
-            // If requested quantity exceeds available quantity
-            if (availableQuantity < quantity) {
-                sendResponse(exchange, "Exceeded quantity limit.", 400);
-                createOrder(json, "Exceeded quantity limit");
-                return;
-            }
+    /**
+     * This method checks whether an entity exists by sending a GET request to the service that owns it.
+     * 
+     * @param upstream  The client of the service
+     * @param endpoint  The endpoint of the entity, e.g. "user"
+     * @param entityId  The entity ID
+     * @return          A future that completes with whether the entity exists
+     */
+    private static CompletableFuture<Boolean> checkEntityExistence(UpstreamClient upstream, String endpoint, int entityId) {
+        HttpRequest request = upstream.request("/" + endpoint + "/" + entityId).GET().build();
+        return upstream.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .thenApply(response -> response.statusCode() == HttpURLConnection.HTTP_OK);
+    }
     
-            int newQuantity = availableQuantity - quantity;
+
+    /**
+     * This method checks whether a user exists, using the user existence cache before asking UserService.
+     * 
+     * @param userId    The user ID
+     * @return          A future that completes with whether the user exists
+     */
+    private static CompletableFuture<Boolean> checkUserExistence(int userId) {
+        Boolean cached = userCache.get(userId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long generation = userCache.generation();
+        return checkEntityExistence(userService, "user", userId).thenApply(exists -> {
+            userCache.putIfUnchanged(userId, exists, generation);
+            return exists;
+        });
+    }
+
+
+    /**
+     * This method fetches a product from ProductService.
+     * 
+     * @param upstream  The client of the ProductService
+     * @param productId The product ID
+     * @return          A future that completes with the product as a JSONObject, or null if it does not exist
+     */
+    private static CompletableFuture<JSONObject> fetchProduct(UpstreamClient upstream, int productId) {
+        HttpRequest request = upstream.request("/product/" + productId).GET().build();
+        return upstream.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> response.statusCode() == HttpURLConnection.HTTP_OK ? new JSONObject(response.body()) : null);
+    }
+
+
+    /**
+     * This method takes the given quantity out of the stock of a product, through the reservation combiner
+     * unless combining is turned off.
+     * 
+     * @param productId The product ID
+     * @param quantity  The quantity to reserve
+     * @return          A future that completes with the response code, 200 if reserved and 409 if not enough
+     *                  stock is available
+     */
+    private static CompletableFuture<Integer> reserveStock(int productId, int quantity) {
+        if (reservationCombiner != null) {
+            return reservationCombiner.reserve(productId, quantity);
+        }
+        return reserveProductQuantityAsync(productService, productId, quantity);
+    }
+
+
+    /**
+     * This method asks ProductService to take the given quantity out of the stock of a product without waiting
+     * for the answer.
+     * 
+     * @param upstream  The client of the ProductService
+     * @param productId The product ID
+     * @param quantity  The quantity to reserve
+     * @return          A future that completes with the response code
+     */
+    private static CompletableFuture<Integer> reserveProductQuantityAsync(UpstreamClient upstream, int productId, int quantity) {
+        return upstream.sendAsync(reservationRequest(upstream, productId, quantity), HttpResponse.BodyHandlers.discarding())
+                .thenApply(HttpResponse::statusCode);
+    }
+
+
+    private static HttpRequest reservationRequest(UpstreamClient upstream, int productId, int quantity) {
+        JSONObject reservation = new JSONObject();
+        reservation.put("command", "reserve"); // Include the command field
+        reservation.put("id", productId);
+        reservation.put("quantity", quantity);
+
+        return upstream.request("/product/" + productId)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(reservation.toString()))
+                .build();
+    }
     
-            // Update product quantity
-            boolean updateSuccess = updateProductQuantity(config.getIp(1), config.getPort(1), productId, newQuantity);
-            createOrder(json, "Success");
-            if (!updateSuccess) {
-                sendResponse(exchange, "Failed to update product quantity. Command refused.", 400);
-                return;
+
+
+    /**
+     * Holds the measurements this service exports on /metrics and renders them in the Prometheus text format.
+     * 
+     * A metric is registered once with its name, labels and the object that holds its value: a LongAdder or
+     * LongSupplier for counters, an AtomicLong or LongSupplier for gauges, and a Histogram for latencies.
+     */
+    static class Metrics {
+        private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+        /**
+         * A latency histogram with fixed buckets from 0.5 ms to 10 s.
+         */
+        static class Histogram {
+            // Upper bounds of the buckets in seconds, the +Inf bucket is the total count
+            private static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+            private final LongAdder[] bucketCounts = new LongAdder[BUCKETS.length];
+            private final LongAdder count = new LongAdder();
+            private final DoubleAdder sumSeconds = new DoubleAdder();
+
+            Histogram() {
+                for (int i = 0; i < bucketCounts.length; i++) {
+                    bucketCounts[i] = new LongAdder();
+                }
             }
-            
-            sendResponse(exchange, "Order placed successfully.", 200);
-        } catch (Exception e) {
-            System.err.println("Error placing order: " + e.getMessage());
-            try {
-                sendResponse(exchange, "Internal Server Error", 500);
-            } catch (IOException ioException) {
-                System.err.println("Error sending error response: " + ioException.getMessage());
+
+            void observeNanos(long nanos) {
+                double seconds = nanos / 1e9;
+                int bucket = 0;
+                while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                    bucket++;
+                }
+                if (bucket < BUCKETS.length) {
+                    bucketCounts[bucket].increment();
+                }
+                count.increment();
+                sumSeconds.add(seconds);
+            }
+
+            void write(StringBuilder out, String name, String labels) {
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                long cumulative = 0;
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    cumulative += bucketCounts[i].sum();
+                    out.append(name).append("_bucket{").append(prefix).append("le=\"").append(BUCKETS[i]).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+                long total = count.sum();
+                out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(total).append('\n');
+                out.append(name).append("_sum").append(braces(labels)).append(' ').append(sumSeconds.sum()).append('\n');
+                out.append(name).append("_count").append(braces(labels)).append(' ').append(total).append('\n');
             }
         }
-    }
-    
-    private static void createOrder(JSONObject json, String status) {
-        String url = getDatabaseUrl();
-    
-        // SQL statement to insert a new order
-        String insertOrderSQL = "INSERT INTO orders (product_id, user_id, quantity, status) VALUES (?, ?, ?, ?)";
-    
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement pstmt = conn.prepareStatement(insertOrderSQL, Statement.RETURN_GENERATED_KEYS)) {
-    
-            // Set values for the insert statement
-            pstmt.setInt(1, json.getInt("product_id"));
-            pstmt.setInt(2, json.getInt("user_id"));
-            pstmt.setInt(3, json.getInt("quantity"));
-            pstmt.setString(4, status); 
-            System.out.println(pstmt);
-            // Execute the insert statement
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
-                throw new SQLException("Creating order failed, no rows affected.");
+
+        private static class Family {
+            final String type;
+            final String help;
+            final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+            Family(String type, String help) {
+                this.type = type;
+                this.help = help;
             }
-    
-            // Retrieve the generated order ID
-            try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    long orderId = generatedKeys.getLong(1);
-                    // Construct a JSON response with the order details
-                    JSONObject responseJson = new JSONObject();
-                    responseJson.put("id", orderId);
-                    responseJson.put("product_id", json.getInt("product_id"));
-                    responseJson.put("user_id", json.getInt("user_id"));
-                    responseJson.put("quantity", json.getInt("quantity"));
-                    responseJson.put("status", status);
+        }
+
+        /**
+         * Formats label pairs, e.g. labels("handler", "/user", "command", "create").
+         */
+        static String labels(String... namesAndValues) {
+            StringBuilder labels = new StringBuilder();
+            for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+                if (labels.length() > 0) {
+                    labels.append(',');
+                }
+                String value = namesAndValues[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+                labels.append(namesAndValues[i]).append("=\"").append(value).append('"');
+            }
+            return labels.toString();
+        }
+
+        private static String braces(String labels) {
+            return labels.isEmpty() ? "" : "{" + labels + "}";
+        }
+
+        /**
+         * Returns the value already registered under the name and labels, or registers the given one.
+         */
+        @SuppressWarnings("unchecked")
+        private <T> T register(String name, String type, String help, String labels, T value) {
+            Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+            return (T) family.series.computeIfAbsent(labels, key -> value);
+        }
+
+        LongAdder counter(String name, String help, String labels) {
+            return register(name, "counter", help, labels, new LongAdder());
+        }
+
+        void counter(String name, String help, String labels, LongSupplier value) {
+            register(name, "counter", help, labels, value);
+        }
+
+        AtomicLong gauge(String name, String help, String labels) {
+            return register(name, "gauge", help, labels, new AtomicLong());
+        }
+
+        void gauge(String name, String help, String labels, LongSupplier value) {
+            register(name, "gauge", help, labels, value);
+        }
+
+        Histogram histogram(String name, String help, String labels) {
+            return register(name, "histogram", help, labels, new Histogram());
+        }
+
+        void histogram(String name, String help, String labels, Histogram histogram) {
+            register(name, "histogram", help, labels, histogram);
+        }
+
+        String render() {
+            StringBuilder out = new StringBuilder(4096);
+            families.forEach((name, family) -> {
+                out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+                family.series.forEach((labels, value) -> {
+                    if (value instanceof Histogram) {
+                        ((Histogram) value).write(out, name, labels);
+                        return;
+                    }
+                    long number;
+                    if (value instanceof LongAdder) {
+                        number = ((LongAdder) value).sum();
+                    } else if (value instanceof AtomicLong) {
+                        number = ((AtomicLong) value).get();
+                    } else {
+                        number = ((LongSupplier) value).getAsLong();
+                    }
+                    out.append(name).append(braces(labels)).append(' ').append(number).append('\n');
+                });
+            });
+            return out.toString();
+        }
+    }
+
+
+    /**
+     * Wraps a handler to count its requests and errors, track how many are in flight and time them, per command.
+     * 
+     * The wrapped handler reports the command of a POST request through the "command" exchange attribute. Commands
+     * outside the expected set are counted as "other", so clients cannot create new series. With no expected
+     * commands, requests are counted by method only.
+     */
+    static class InstrumentedHandler implements HttpHandler {
+        static final String COMMAND_ATTRIBUTE = "command";
+
+        private final String path;
+        private final Set<String> commands;
+        private final HttpHandler handler;
+        private final AtomicLong inFlight;
+
+        public InstrumentedHandler(String path, Set<String> commands, HttpHandler handler) {
+            this.path = path;
+            this.commands = commands;
+            this.handler = handler;
+            this.inFlight = metrics.gauge("http_requests_in_flight", "Requests currently being handled.",
+                    Metrics.labels("handler", path));
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            inFlight.incrementAndGet();
+            boolean failed = true;
+            try {
+                handler.handle(exchange);
+                failed = exchange.getResponseCode() == -1 || exchange.getResponseCode() >= 500;
+            } finally {
+                inFlight.decrementAndGet();
+                Object command = exchange.getAttribute(COMMAND_ATTRIBUTE);
+                String label;
+                if (!"POST".equals(exchange.getRequestMethod()) || commands.isEmpty()) {
+                    label = exchange.getRequestMethod();
                 } else {
-                    throw new SQLException("Creating order failed, no ID obtained.");
+                    label = command != null && commands.contains(command) ? (String) command : "other";
+                }
+                String labels = Metrics.labels("handler", path, "command", label);
+                metrics.counter("http_requests_total", "Requests handled.", labels).increment();
+                if (failed) {
+                    metrics.counter("http_request_errors_total", "Requests that failed or were answered with a 5xx status.", labels).increment();
                 }
+                metrics.histogram("http_request_duration_seconds", "Time to handle a request.", labels).observeNanos(System.nanoTime() - start);
             }
-        } catch (SQLException e) {
-            System.err.println("SQLException: " + e.getMessage());
         }
     }
-    
-    
-    private static boolean checkEntityExistence(String ip, int port, String endpoint, int entityId) throws IOException {
-        try {
-            URI uri = new URI("http", null, ip, port, "/" + endpoint + "/" + entityId, null, null);
-            URL url = uri.toURL();
-            System.out.println(url);
-    
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-            int responseCode = con.getResponseCode();
-            con.disconnect();
-            return responseCode == HttpURLConnection.HTTP_OK;
-        } catch (Exception e) { // Catch URISyntaxException and IOException
-            throw new IOException("Error constructing URL or opening connection", e);
+
+
+    /**
+     * Serves the metrics of this service in the Prometheus text format.
+     */
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, metrics.render().getBytes(StandardCharsets.UTF_8), 200, "text/plain; version=0.0.4; charset=utf-8");
         }
     }
-    
 
-    private static int getProductQuantity(String ip, int port, int productId) throws IOException {
-        try {
-            URI uri = new URI("http", null, ip, port, "/product/" + productId, null, null);
-            URL url = uri.toURL();
-    
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-    
-            if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                con.disconnect();
-                return -1; // Error case
+
+    /**
+     * The SLF4J provider of this service. Its loggers format enabled messages on the calling thread and queue them
+     * for a single writer thread, so a request never waits for the console.
+     * 
+     * The writer drains the queue in batches and writes each batch with one call per stream. When the queue is full,
+     * messages below WARN are dropped and counted rather than holding up the request; warnings and errors wait.
+     * Disabled levels cost only a volatile read, and the messages of disabled levels are never formatted.
+     * 
+     * Each service is a single source file compiled against lib/, which holds only slf4j-api, so a stock
+     * asynchronous appender such as logback's AsyncAppender would add a logging backend and its configuration
+     * file to every service. Instead this provider is copied into each service, and the copies are kept identical.
+     */
+    public static class AsyncLogProvider implements SLF4JServiceProvider {
+        private static final int QUEUE_CAPACITY = 8192;
+        private static final int BATCH_SIZE = 512;
+        // Named after the service, so this class is the same in every service
+        private static final String WRITER_THREAD = AsyncLogProvider.class.getEnclosingClass().getSimpleName() + "-log-writer";
+        private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+        private static final BlockingQueue<LogLine> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private static final AtomicLong dropped = new AtomicLong();
+        private static final Object writeLock = new Object();
+        private static long reportedDrops = 0; // Guarded by writeLock
+        private static volatile int threshold = Level.INFO.toInt();
+
+        private final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+        private final ILoggerFactory loggerFactory = name -> loggers.computeIfAbsent(name, AsyncLogger::new);
+        private final IMarkerFactory markerFactory = new BasicMarkerFactory();
+        private final MDCAdapter mdcAdapter = new BasicMDCAdapter();
+
+        private static class LogLine {
+            final long timeMillis = System.currentTimeMillis();
+            final String thread = Thread.currentThread().getName();
+            final Level level;
+            final String logger;
+            final String message;
+            final Throwable throwable;
+
+            LogLine(Level level, String logger, String message, Throwable throwable) {
+                this.level = level;
+                this.logger = logger;
+                this.message = message;
+                this.throwable = throwable;
             }
-    
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()))) {
-                String inputLine;
-                StringBuilder content = new StringBuilder();
-                while ((inputLine = in.readLine()) != null) {
-                    content.append(inputLine);
+        }
+
+        private static class AsyncLogger extends LegacyAbstractLogger {
+            private static final long serialVersionUID = 1L;
+
+            AsyncLogger(String name) {
+                this.name = name;
+            }
+
+            @Override
+            public boolean isTraceEnabled() {
+                return threshold <= Level.TRACE.toInt();
+            }
+
+            @Override
+            public boolean isDebugEnabled() {
+                return threshold <= Level.DEBUG.toInt();
+            }
+
+            @Override
+            public boolean isInfoEnabled() {
+                return threshold <= Level.INFO.toInt();
+            }
+
+            @Override
+            public boolean isWarnEnabled() {
+                return threshold <= Level.WARN.toInt();
+            }
+
+            @Override
+            public boolean isErrorEnabled() {
+                return threshold <= Level.ERROR.toInt();
+            }
+
+            @Override
+            protected String getFullyQualifiedCallerName() {
+                return null;
+            }
+
+            @Override
+            protected void handleNormalizedLoggingCall(Level level, Marker marker, String pattern, Object[] arguments, Throwable throwable) {
+                String message = arguments == null || arguments.length == 0 ? pattern : MessageFormatter.basicArrayFormat(pattern, arguments);
+                LogLine line = new LogLine(level, name, message, throwable);
+                if (level.toInt() >= Level.WARN.toInt()) {
+                    try {
+                        queue.put(line);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (!queue.offer(line)) {
+                    dropped.incrementAndGet();
                 }
-    
-                JSONObject response = new JSONObject(content.toString());
-                return response.getInt("quantity");
-            } finally {
-                con.disconnect();
             }
-        } catch (Exception e) { // Catch URISyntaxException, IOException, JSONException
-            throw new IOException("Error fetching product quantity", e);
         }
-    }
-    
-    
-    private static boolean updateProductQuantity(String ip, int port, int productId, int newQuantity) throws IOException {
-        try {
-            URI uri = new URI("http", null, ip, port, "/product/" + productId, null, null);
-            URL url = uri.toURL();
-    
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("POST");
-            con.setDoOutput(true);
-            con.setRequestProperty("Content-Type", "application/json");
-    
-            JSONObject productUpdate = new JSONObject();
-            productUpdate.put("command", "update"); // Include the command field
-            productUpdate.put("id", productId);
-            productUpdate.put("quantity", newQuantity);
-    
-            try (OutputStream os = con.getOutputStream()) {
-                byte[] input = productUpdate.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+
+        /**
+         * Sets the lowest level that is logged: TRACE, DEBUG, INFO, WARN, ERROR or OFF.
+         */
+        static void setLevel(String levelName) {
+            if ("OFF".equalsIgnoreCase(levelName)) {
+                threshold = Integer.MAX_VALUE;
+                return;
             }
-    
-            int responseCode = con.getResponseCode();
-            con.disconnect();
-            return responseCode == HttpURLConnection.HTTP_OK;
-        } catch (Exception e) { // Catch URISyntaxException, IOException, JSONException
-            throw new IOException("Error updating product quantity", e);
+            try {
+                threshold = Level.valueOf(levelName.toUpperCase()).toInt();
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log level " + levelName + ", logging at INFO");
+                threshold = Level.INFO.toInt();
+            }
+        }
+
+        /**
+         * Returns how many messages were dropped since startup because the queue was full.
+         */
+        static long getDroppedCount() {
+            return dropped.get();
+        }
+
+        @Override
+        public void initialize() {
+            Thread writer = new Thread(AsyncLogProvider::runWriter, WRITER_THREAD);
+            writer.setDaemon(true);
+            writer.start();
+            // Write what is still queued when the JVM exits, a batch at a time
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                while (!queue.isEmpty()) {
+                    writeBatch(new ArrayList<>(BATCH_SIZE));
+                }
+            }));
+        }
+
+        private static void runWriter() {
+            List<LogLine> batch = new ArrayList<>(BATCH_SIZE);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+
+        private static void writeBatch(List<LogLine> batch) {
+            synchronized (writeLock) {
+                queue.drainTo(batch, BATCH_SIZE - batch.size());
+                StringBuilder out = new StringBuilder();
+                StringBuilder err = new StringBuilder();
+                for (LogLine line : batch) {
+                    StringBuilder target = line.level.toInt() >= Level.WARN.toInt() ? err : out;
+                    target.append(TIMESTAMP.format(Instant.ofEpochMilli(line.timeMillis))).append(' ')
+                            .append(line.level).append(line.level.toString().length() == 4 ? "  [" : " [")
+                            .append(line.thread).append("] ").append(line.logger).append(" - ").append(line.message)
+                            .append(System.lineSeparator());
+                    if (line.throwable != null) {
+                        StringWriter trace = new StringWriter();
+                        line.throwable.printStackTrace(new PrintWriter(trace));
+                        target.append(trace);
+                    }
+                }
+                long lost = dropped.get() - reportedDrops;
+                if (lost > 0) {
+                    reportedDrops += lost;
+                    err.append(TIMESTAMP.format(Instant.now())).append(" WARN  [").append(WRITER_THREAD).append("] ").append(AsyncLogProvider.class.getName())
+                            .append(" - Dropped ").append(lost).append(" log messages, the queue was full").append(System.lineSeparator());
+                }
+                if (out.length() > 0) {
+                    System.out.print(out);
+                    System.out.flush();
+                }
+                if (err.length() > 0) {
+                    System.err.print(err);
+                    System.err.flush();
+                }
+            }
+        }
+
+        @Override
+        public ILoggerFactory getLoggerFactory() {
+            return loggerFactory;
+        }
+
+        @Override
+        public IMarkerFactory getMarkerFactory() {
+            return markerFactory;
+        }
+
+        @Override
+        public MDCAdapter getMDCAdapter() {
+            return mdcAdapter;
+        }
+
+        @Override
+        public String getRequestedApiVersion() {
+            return "2.0.99";
         }
     }
-    
 }
-
-    
\ No newline at end of file
@@ -1,34 +1,160 @@
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.Headers;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.net.InetSocketAddress;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 import org.json.*;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.IMarkerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.BasicMDCAdapter;
+import org.slf4j.helpers.BasicMarkerFactory;
+import org.slf4j.helpers.LegacyAbstractLogger;
+import org.slf4j.helpers.MessageFormatter;
+import org.slf4j.spi.MDCAdapter;
+import org.slf4j.spi.SLF4JServiceProvider;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 
 
 public class ProductService {
 
+    // SLF4J has to be pointed at AsyncLogProvider before the first logger is created, by this class or by a library
+    static {
+        if (System.getProperty("slf4j.provider") == null) {
+            System.setProperty("slf4j.provider", AsyncLogProvider.class.getName());
+        }
+    }
+    private static final Logger log = LoggerFactory.getLogger(ProductService.class);
+
+    private static ConnectionPool connectionPool;
+    // Where the products table lived when all services shared one database
+    private static final String LEGACY_DATABASE = "info.db";
+    private static final Metrics metrics = new Metrics();
+    private static int maxRequestBytes = 1048576;
+    private static int gzipMinBytes = 1024;
+
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+    // The messages this service answers with, already encoded
+    private static final Map<String, byte[]> CONSTANT_BODIES = new HashMap<>();
+    static {
+        for (String message : new String[] {
+            "Bad Request",
+            "Bad Request: Missing required fields",
+            "Exceeded quantity limit",
+            "ID can't be negative",
+            "Internal Server Error",
+            "Invalid command",
+            "Missing product ID",
+            "Please enter Product ID",
+            "Price cannot be negative",
+            "Product ID already exists",
+            "Product not found",
+            "Product not found after update",
+            "Quantity cannot be negative",
+            "Success"}) {
+            CONSTANT_BODIES.put(message, message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    private static ProductCache productCache;
+    // Holds the stock in memory when the inventory mode is "memory", null otherwise
+    private static InventoryEngine inventory;
+
+    // Held while writing products and updating the cache, so the cache sees the writes in commit order
+    private static final Object productWriteLock = new Object();
+    // One of them is held while reserving the stock of a product in SQLite, so reservations of different products do
+    // not wait on each other. Updates and deletes take the one of their product inside productWriteLock, so the
+    // cache still sees every change of a product in commit order.
+    private static final Object[] productLocks = new Object[256];
+    static {
+        for (int i = 0; i < productLocks.length; i++) {
+            productLocks[i] = new Object();
+        }
+    }
+
+    private static Object productLock(int id) {
+        return productLocks[id & (productLocks.length - 1)];
+    }
+
     /**
      * Class to hold the configuration details for a service
      */
     static class ServiceConfig {
         int port;
         String ip;
+        String executorMode = "platform";
+        int executorThreads = 20;
+        int executorQueueCapacity = 1000;
+        int poolSize = 8;
+        long poolWaitTimeoutMillis = 5000;
+        String journalMode = "WAL";
+        String synchronous = "NORMAL";
+        long busyTimeoutMillis = 5000;
+        long mmapSizeBytes = 268435456;
+        long cacheSizeKib = 16384;
+        int maxRequestBytes = 1048576;
+        int gzipMinBytes = 1024;
+        String logLevel = "INFO";
+        int cacheMaxEntries = 10000;
+        String database = "products.db";
+        String inventoryMode = "sqlite";
+        long inventoryFlushIntervalMillis = 100;
 
         public ServiceConfig(int port, String ip) {
             this.port = port;
@@ -60,9 +186,62 @@ public class ProductService {
             JSONObject serviceConfig = jsonObject.getJSONObject(serviceName);
             int port = serviceConfig.getInt("port");
             String ip = serviceConfig.getString("ip");
-            return new ServiceConfig(port, ip);
+            ServiceConfig config = new ServiceConfig(port, ip);
+            config.database = serviceConfig.optString("database", config.database);
+
+            // The executor configuration is optional and shared by all services
+            JSONObject executorConfig = jsonObject.optJSONObject("Executor");
+            if (executorConfig != null) {
+                config.executorMode = executorConfig.optString("mode", config.executorMode);
+                config.executorThreads = executorConfig.optInt("threads", config.executorThreads);
+                config.executorQueueCapacity = executorConfig.optInt("queueCapacity", config.executorQueueCapacity);
+            }
+
+            // The connection pool configuration is optional and shared by all services
+            JSONObject poolConfig = jsonObject.optJSONObject("ConnectionPool");
+            if (poolConfig != null) {
+                config.poolSize = poolConfig.optInt("size", config.poolSize);
+                config.poolWaitTimeoutMillis = poolConfig.optLong("waitTimeoutMs", config.poolWaitTimeoutMillis);
+            }
+
+            // The SQLite storage settings are optional and shared by all services
+            JSONObject storageConfig = jsonObject.optJSONObject("Storage");
+            if (storageConfig != null) {
+                config.journalMode = storageConfig.optString("journalMode", config.journalMode);
+                config.synchronous = storageConfig.optString("synchronous", config.synchronous);
+                config.busyTimeoutMillis = storageConfig.optLong("busyTimeoutMs", config.busyTimeoutMillis);
+                config.mmapSizeBytes = storageConfig.optLong("mmapSizeBytes", config.mmapSizeBytes);
+                config.cacheSizeKib = storageConfig.optLong("cacheSizeKb", config.cacheSizeKib);
+            }
+
+            // Extracting the optional HTTP limits shared by all services
+            JSONObject httpConfig = jsonObject.optJSONObject("Http");
+            if (httpConfig != null) {
+                config.maxRequestBytes = httpConfig.optInt("maxRequestBytes", config.maxRequestBytes);
+                config.gzipMinBytes = httpConfig.optInt("gzipMinBytes", config.gzipMinBytes);
+            }
+
+            // The log level is optional and shared by all services
+            JSONObject loggingConfig = jsonObject.optJSONObject("Logging");
+            if (loggingConfig != null) {
+                config.logLevel = loggingConfig.optString("level", config.logLevel);
+            }
+
+            // The product cache configuration is optional
+            JSONObject cacheConfig = jsonObject.optJSONObject("ProductCache");
+            if (cacheConfig != null) {
+                config.cacheMaxEntries = cacheConfig.optInt("maxEntries", config.cacheMaxEntries);
+            }
+
+            // The inventory configuration is optional, "memory" keeps the stock in memory and writes it behind
+            JSONObject inventoryConfig = jsonObject.optJSONObject("Inventory");
+            if (inventoryConfig != null) {
+                config.inventoryMode = inventoryConfig.optString("mode", config.inventoryMode);
+                config.inventoryFlushIntervalMillis = inventoryConfig.optLong("flushIntervalMs", config.inventoryFlushIntervalMillis);
+            }
+            return config;
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Error reading config", e);
             return null;
         }
     }
@@ -90,343 +269,2015 @@ public class ProductService {
         path = parentPath.getParent().toString(); 
         ServiceConfig productServiceConfig = readConfig(path + "/config.json", "ProductService");
         if (productServiceConfig == null) {
-            System.err.println("Failed to read config for ProductService. Using default settings.");
+            log.warn("Failed to read config for ProductService. Using default settings.");
             productServiceConfig = new ServiceConfig(14000, "127.0.0.1"); 
         }
+        AsyncLogProvider.setLevel(productServiceConfig.logLevel);
+        metrics.counter("log_messages_dropped_total", "Log messages dropped because the log queue was full.", "",
+                AsyncLogProvider::getDroppedCount);
+        try {
+            Path database = getDatabaseDirectory().resolve(productServiceConfig.database);
+            connectionPool = new ConnectionPool("jdbc:sqlite:" + database, getStorageProperties(productServiceConfig),
+                    productServiceConfig.poolSize, productServiceConfig.poolWaitTimeoutMillis);
+            log.info("Storage: {}", connectionPool.describeStorage());
+            connectionPool.registerMetrics(metrics);
+            try (PooledConnection conn = connectionPool.borrow()) {
+                initTables(conn.getConnection(), database);
+            }
+            if ("memory".equalsIgnoreCase(productServiceConfig.inventoryMode)) {
+                // The log only needs forcing to disk when SQLite would force the same change
+                boolean forceLog = productServiceConfig.synchronous.equalsIgnoreCase("FULL")
+                        || productServiceConfig.synchronous.equalsIgnoreCase("EXTRA");
+                inventory = new InventoryEngine(connectionPool, database, forceLog,
+                        productServiceConfig.inventoryFlushIntervalMillis);
+                inventory.start();
+                inventory.registerMetrics(metrics);
+                Runtime.getRuntime().addShutdownHook(new Thread(inventory::close, "ProductService-inventory-shutdown"));
+                log.info("Keeping the inventory in memory, flushed every {} ms", productServiceConfig.inventoryFlushIntervalMillis);
+            }
+        } catch (SQLException | IOException e) {
+            log.error("Error preparing the database: {}", e.getMessage());
+            return;
+        }
+        productCache = new ProductCache(productServiceConfig.cacheMaxEntries);
+        productCache.registerMetrics(metrics);
         int port = productServiceConfig.getPort();
+        // Send the response headers and body without waiting for the client to acknowledge the headers first
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         HttpServer server = HttpServer.create(new InetSocketAddress(productServiceConfig.getIp(), port), 0);
-        server.setExecutor(Executors.newFixedThreadPool(20)); 
-        server.createContext("/product", new ProductHandler(server));
-        server.setExecutor(null);
+        server.setExecutor(createExecutor(productServiceConfig));
+        maxRequestBytes = Math.max(0, Math.min(productServiceConfig.maxRequestBytes, Integer.MAX_VALUE - 1));
+        gzipMinBytes = productServiceConfig.gzipMinBytes;
+        server.createContext("/product", new InstrumentedHandler("/product",
+                Set.of("create", "update", "delete", "reserve", "reset", "shutdown"), new ProductHandler(server)));
+        server.createContext("/metrics", new MetricsHandler());
         server.start();
 
-        System.out.println("Server started on port " + port);
+        log.info("Server started on port {}", port);
     }  
 
     
     /**
-     * Returns the database URL for the SQLite database.
+     * Creates the executor that the HttpServer runs its handlers on.
+     * 
+     * In "platform" mode requests run on a fixed pool of executorThreads threads with at most executorQueueCapacity
+     * requests waiting. When the queue is full the dispatcher thread runs the request itself, so it stops accepting
+     * new connections until the pool catches up.
      * 
-     * @return  The database URL
+     * In "virtual" mode every request gets its own virtual thread and at most executorQueueCapacity requests are in
+     * flight at once. Virtual threads need Java 21, so older runtimes fall back to the platform pool.
+     * 
+     * @param config    The service configuration
+     * @return          The executor for the HttpServer
      */
-    private static String getDatabaseUrl() {
-        String path = System.getProperty("user.dir");
+    private static Executor createExecutor(ServiceConfig config) {
+        int threads = Math.max(1, config.executorThreads);
+        int queueCapacity = Math.max(1, config.executorQueueCapacity);
 
-        // Convert the string path to a Path object
-        Path currentPath = Paths.get(path);
+        if ("virtual".equalsIgnoreCase(config.executorMode)) {
+            try {
+                Executor virtualExecutor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                Semaphore inFlight = new Semaphore(queueCapacity);
+                log.info("Using virtual threads with at most {} requests in flight", queueCapacity);
+                return task -> {
+                    inFlight.acquireUninterruptibly();
+                    try {
+                        virtualExecutor.execute(() -> {
+                            try {
+                                task.run();
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        inFlight.release();
+                        throw e;
+                    }
+                };
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not available on this JVM. Using a platform thread pool.");
+            }
+        }
 
-        // Get the parent of the current path
-        path = currentPath.getParent().toString();
-        String databasePath = path + "/Database/info.db";
-        return "jdbc:sqlite:" + databasePath;
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "ProductService-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true); // Let the JVM exit once the server has been stopped
+            return thread;
+        };
+        log.info("Using {} platform threads with a queue of {} requests", threads, queueCapacity);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
     }
 
 
     /**
-     * Handler class for the ProductService.
+     * Returns the configured SQLite pragmas as connection properties. The driver applies them to every connection
+     * it opens, so all pooled connections share the same settings.
+     * 
+     * @param config    The service configuration
+     * @return          The connection properties
      */
-    static class ProductHandler implements HttpHandler {
+    private static Properties getStorageProperties(ServiceConfig config) {
+        Properties properties = new Properties();
+        properties.setProperty("journal_mode", config.journalMode);
+        properties.setProperty("synchronous", config.synchronous);
+        properties.setProperty("busy_timeout", Long.toString(config.busyTimeoutMillis));
+        properties.setProperty("mmap_size", Long.toString(config.mmapSizeBytes));
+        // SQLite reads a negative cache size as KiB instead of pages
+        properties.setProperty("cache_size", Long.toString(-config.cacheSizeKib));
+        return properties;
+    }
 
-        HttpServer server;
-        ProductHandler(HttpServer server){
-            this.server = server;
-        }
 
-        /**
-         * This method handles the following HTTP requests:
-         * 
-         * For a GET request: It returns the product details for the product ID specified at the end of url if this ID exists in the database.
-         * 
-         * For a POST request: It performs different operations based on the command specified in the request body.
-         *    - create: Creates a new product in the database if every required field is provided correctly and the provided product ID does not already exist in the database.
-         *    - update: Updates the information of an existing product in the database if the provided product ID exists in the database.
-         *    - delete: Deletes an existing product from the database if every required field is matched correctly.
-         *    - shutdown: Shuts down the server.
-         * 
-         * @param exchange  The HttpExchange object
-         * @throws IOException
-         */
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
+    /**
+     * Returns the directory the databases are kept in, compiled/Database when the service runs from
+     * compiled/ProductService.
+     * 
+     * @return  The directory of the databases
+     */
+    private static Path getDatabaseDirectory() {
+        return Paths.get(System.getProperty("user.dir")).getParent().resolve("Database");
+    }
 
-            if ("POST".equals(exchange.getRequestMethod())) {
-                JSONObject requestJson = new JSONObject(getRequestBody(exchange));
-                String command = requestJson.optString("command");
 
-                switch (command) {
-                    case "create":
-                        createProduct(exchange, requestJson);
-                        break;
-                    case "update":
-                        updateProduct(exchange, requestJson);
-                        break;
-                    case "delete":
-                        deleteProduct(exchange, requestJson);
-                        break;
-                    case "shutdown":
-                        System.out.println("Shutting down");
-                        handleShutdownCommand(exchange, server);
-                        break;
-                    default:
-                        sendResponse(exchange, "Invalid command", 400);
-                        return;
-                }
-                sendResponse(exchange, "Product operation successful", 200);
-            } else if ("GET".equals(exchange.getRequestMethod())) {
-                String requestURI = exchange.getRequestURI().toString();
-                    String[] uri = requestURI.split("/");
-                    String idStr = "";
-                    try{
-                        idStr = uri[2];
-                    }catch(Exception e){
-                        System.err.println(e.getMessage());
-                        sendResponse(exchange, "Please enter Product ID", 400);
-                        exchange.close();
-                    }
-                    
-                    
-                    int id = Integer.parseInt(idStr); // Parse the string to an integer
-                    String url = getDatabaseUrl();
-                    
-                
-                    try (Connection conn = DriverManager.getConnection(url);
-                         PreparedStatement query = conn.prepareStatement("SELECT * FROM products WHERE id = ?")) {
-                        
-                        query.setInt(1, id); // Set the id as an integer
-                        ResultSet rs = query.executeQuery();
-                
-                        if (rs.next()) {
-                            // Assuming columns like name, email, etc. Adjust according to your schema
-                            String name = rs.getString("name");
-                            int price = rs.getInt("price");
-                            String quantity = rs.getString("quantity");
-                            String description = rs.getString("description");
+    /**
+     * This method creates the products table, and on the first start after the services stopped sharing info.db
+     * copies the products over from there.
+     * 
+     * @param conn      A connection to the database of this service
+     * @param database  The path of that database
+     * @throws SQLException
+     */
+    private static void initTables(Connection conn, Path database) throws SQLException {
+        boolean isNew;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'products'")) {
+            isNew = !rs.next();
+        }
+        createTables(conn);
 
-                
-                            JSONObject respond = new JSONObject();
-                            respond.put("id", id);
-                            respond.put("name", name);
-                            respond.put("description", description);
-                            respond.put("price", price);
-                            respond.put("quantity", quantity);
-                            
-                            sendResponse(exchange, respond.toString(), 200);
-                        } else {
-                            // Handle case where no product is found
-                            sendResponse(exchange, "Product not found", 400);
-                        }
-                    } catch (SQLException e) {
-                        System.err.println(e.getMessage());
-                        // Send an error response to client
-                        sendResponse(exchange, "Internal Server Error", 500);
-                    }
-                } else {
-                        // Send a 405 Method Not Allowed response for non-POST requests
-                        exchange.sendResponseHeaders(405, 0);
-                        exchange.close();
+        Path legacy = getDatabaseDirectory().resolve(LEGACY_DATABASE);
+        if (!isNew || !Files.exists(legacy) || legacy.equals(database.normalize())) {
+            return;
+        }
+        try (PreparedStatement attach = conn.prepareStatement("ATTACH DATABASE ? AS legacy")) {
+            attach.setString(1, legacy.toString());
+            attach.execute();
+        }
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM legacy.sqlite_master WHERE type = 'table' AND name = 'products'")) {
+                if (!rs.next()) {
+                    return;
+                }
+            }
+            int copied = stmt.executeUpdate("INSERT INTO main.products (id, name, description, price, quantity) " +
+                                            "SELECT id, name, description, price, quantity FROM legacy.products");
+            log.info("Copied {} products from {}", copied, legacy);
+        } finally {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DETACH DATABASE legacy");
             }
         }
     }
 
 
     /**
-     * This method handles the shutdown command by sending a response to the client and then shutting down the server.
+     * This method creates the products table if it does not exist.
      * 
-     * @param exchange  The HttpExchange object
-     * @param server    The HttpServer object
-     * @throws IOException
+     * @param conn  The connection to the database
+     * @throws SQLException
      */
-    private static void handleShutdownCommand(HttpExchange exchange, HttpServer server) throws IOException {
-        JSONObject responseJson = new JSONObject();
-        responseJson.put("command", "shutdown");
-    
-        // Send the shutdown command response
-        sendResponse(exchange, responseJson.toString(), 200);
-    
-        // Perform server shutdown operations
-        server.stop(4); // Gracefully stop the server with a delay of 1 second
+    private static void createTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS products (" +
+                         "id INTEGER PRIMARY KEY, " +
+                         "name TEXT NOT NULL, " +
+                         "description TEXT NOT NULL, " +
+                         "price REAL NOT NULL, " +
+                         "quantity INTEGER NOT NULL);");
+        }
     }
 
 
     /**
-     * This method reads the request body from the given HttpExchange object and returns it as a string.
+     * This method drops every product by recreating the products table, and empties the product cache with it.
      * 
      * @param exchange  The HttpExchange object
-     * @return          The request body as a string
      * @throws IOException
      */
-    private static String getRequestBody(HttpExchange exchange) throws IOException {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
-            StringBuilder requestBody = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                requestBody.append(line);
+    private static void resetProducts(HttpExchange exchange) throws IOException {
+        synchronized (productWriteLock) {
+            try (PooledConnection conn = connectionPool.borrow();
+                 Statement stmt = conn.getConnection().createStatement()) {
+                stmt.executeUpdate("DROP TABLE IF EXISTS products;");
+                createTables(conn.getConnection());
+                if (inventory != null) {
+                    inventory.reset();
+                }
+            } catch (SQLException e) {
+                log.error("Error resetting the products table: {}", e.getMessage());
+                sendResponse(exchange, "Internal Server Error", 500);
+                return;
+            } finally {
+                productCache.clear();
             }
-            return requestBody.toString();
         }
+        log.info("Products table reset");
+        sendResponse(exchange, "Success", 200);
     }
 
 
     /**
-     * This method sends the given response string to the client.
+     * A fixed-size pool of long-lived SQLite connections shared by all handlers of the service.
      * 
-     * @param exchange  The HttpExchange object
-     * @param response  The response string
-     * @param code      The response code
-     * @throws IOException
+     * Every connection is opened once at startup and keeps a cache of the prepared statements for the fixed SQL
+     * strings it has executed, so a request neither reopens the database file nor recompiles its statements.
      */
-    private static void sendResponse(HttpExchange exchange, String response, int code) throws IOException {
-        if( code == 200){
-        exchange.sendResponseHeaders(200, response.length());
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes(StandardCharsets.UTF_8));
-        os.close();}
-        else{
-            exchange.sendResponseHeaders(code, response.length());
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes(StandardCharsets.UTF_8));
-            os.close();
+    static class ConnectionPool {
+        private final BlockingQueue<PooledConnection> idleConnections;
+        private final int size;
+        private final long waitTimeoutMillis;
+        private final AtomicLong borrowCount = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        // Time spent waiting for a connection and time it was held, which is mostly spent in SQLite
+        final Metrics.Histogram waitTimes = new Metrics.Histogram();
+        final Metrics.Histogram holdTimes = new Metrics.Histogram();
+
+        public ConnectionPool(String url, Properties properties, int size, long waitTimeoutMillis) throws SQLException {
+            this.size = Math.max(1, size);
+            this.waitTimeoutMillis = waitTimeoutMillis;
+            this.idleConnections = new ArrayBlockingQueue<>(this.size);
+            for (int i = 0; i < this.size; i++) {
+                idleConnections.add(new PooledConnection(DriverManager.getConnection(url, properties), this));
+            }
         }
-    }
 
+        /**
+         * Reads back the storage settings SQLite is actually using on a pooled connection. They can differ from
+         * the requested ones, e.g. when the file system does not support WAL.
+         * 
+         * @return  The effective pragma values
+         * @throws SQLException If the settings could not be read
+         */
+        public String describeStorage() throws SQLException {
+            StringBuilder settings = new StringBuilder();
+            try (PooledConnection conn = borrow(); Statement stmt = conn.getConnection().createStatement()) {
+                for (String pragma : new String[] {"journal_mode", "synchronous", "busy_timeout", "mmap_size", "cache_size"}) {
+                    try (ResultSet rs = stmt.executeQuery("PRAGMA " + pragma)) {
+                        if (settings.length() > 0) {
+                            settings.append(' ');
+                        }
+                        settings.append(pragma).append('=').append(rs.next() ? rs.getString(1) : "?");
+                    }
+                }
+            }
+            return settings.toString();
+        }
 
-    /**
-     * This method creates a new product in the database if every required field is provided correctly and 
-     * the provided product ID does not already exist in the database.
-     * 
-     * For the price and quantity fields, they must be non-negative numbers.
-     * 
-     * If successfully created, it responds with the information of the product and status code 200.
-     * 
-     * @param exchange  The HttpExchange object
-     * @param json      The request body as a JSONObject
-     */
-    private static void createProduct(HttpExchange exchange, JSONObject json) {
-        String url = getDatabaseUrl();
-    
-        // Check for required fields and that quantity and price are not negative
-        if (!json.has("name") || json.optString("name").isEmpty() || 
-            !json.has("id") || 
-            !json.has("description") || json.optString("description").isEmpty() ||
-            !json.has("price") || json.optDouble("price", -1.0) < 0 ||
-            !json.has("quantity") || json.optInt("quantity", -1) < 0 || json.optInt("id") < 0) {
-            System.err.println("Missing or invalid fields. Command refused.");
+        /**
+         * Takes a connection from the pool, waiting up to the configured timeout for one to be returned.
+         * 
+         * @return  A connection that goes back to the pool when it is closed
+         * @throws SQLException If no connection became available in time
+         */
+        public PooledConnection borrow() throws SQLException {
+            long start = System.nanoTime();
+            PooledConnection connection;
             try {
-                sendResponse(exchange, "Bad Request", 400);
-            } catch (IOException e) {
-                e.printStackTrace();
+                connection = idleConnections.poll(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", e);
             }
-            return;
-        }
-    
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement pstmtCheck = conn.prepareStatement(
-                     "SELECT COUNT(*) FROM products WHERE id = ?");
-             PreparedStatement pstmtInsert = conn.prepareStatement(
-                     "INSERT INTO products (id, name, description, price, quantity) VALUES (?, ?, ?, ?, ?)")) {
-    
-            // Check if ID already exists
-            pstmtCheck.setInt(1, json.getInt("id"));
-            ResultSet rs = pstmtCheck.executeQuery();
-            if (rs.next() && rs.getInt(1) > 0) {
-                System.err.println("Product ID already exists. Command refused.");
-                sendResponse(exchange, "Product ID already exists", 409);
-                return;
+            long waited = System.nanoTime() - start;
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a database connection");
             }
-    
-            // Insert the new product
-            pstmtInsert.setInt(1, json.getInt("id"));
-            pstmtInsert.setString(2, json.getString("name"));
-            pstmtInsert.setString(3, json.getString("description"));
-            pstmtInsert.setDouble(4, json.getDouble("price"));
-            pstmtInsert.setInt(5, json.getInt("quantity"));
-            pstmtInsert.executeUpdate();
+            borrowCount.incrementAndGet();
+            totalWaitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            waitTimes.observeNanos(waited);
+            connection.borrowedAtNanos = System.nanoTime();
+            return connection;
+        }
 
-            // Send the success response with the product details
-            JSONObject responseJson = new JSONObject();
-            responseJson.put("id", json.getInt("id"));
-            responseJson.put("name", json.getString("name"));
-            responseJson.put("description", json.getString("description"));
-            responseJson.put("price", json.getDouble("price"));
-            responseJson.put("quantity", json.getInt("quantity"));
-            
-            sendResponse(exchange, responseJson.toString(), 200); 
+        private void release(PooledConnection connection) {
+            holdTimes.observeNanos(System.nanoTime() - connection.borrowedAtNanos);
+            idleConnections.offer(connection);
+        }
 
-        } catch (SQLException e) {
-            System.err.println(e.getMessage());
-            try {
-                sendResponse(exchange, "Internal Server Error", 500);
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
-        } catch (IOException e) {
-            System.err.println("IOException occurred while sending response: " + e.getMessage());
+        public int getSize() {
+            return size;
+        }
+
+        public int getIdleCount() {
+            return idleConnections.size();
+        }
+
+        public int getActiveCount() {
+            return size - idleConnections.size();
+        }
+
+        public long getBorrowCount() {
+            return borrowCount.get();
+        }
+
+        public long getTotalWaitNanos() {
+            return totalWaitNanos.get();
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            long borrows = borrowCount.get();
+            double averageWaitMillis = borrows == 0 ? 0 : totalWaitNanos.get() / 1_000_000.0 / borrows;
+            return String.format("size=%d active=%d idle=%d borrows=%d avgWaitMs=%.3f maxWaitMs=%.3f",
+                    size, getActiveCount(), getIdleCount(), borrows, averageWaitMillis, maxWaitNanos.get() / 1_000_000.0);
+        }
+
+        /**
+         * Exports the pool's size, usage and timings to the given registry.
+         */
+        public void registerMetrics(Metrics metrics) {
+            metrics.gauge("db_pool_connections", "Connections in the pool.", "", () -> size);
+            metrics.gauge("db_pool_active_connections", "Connections currently borrowed.", "", this::getActiveCount);
+            metrics.counter("db_pool_borrows_total", "Connections borrowed from the pool.", "", borrowCount::get);
+            metrics.histogram("db_pool_wait_seconds", "Time spent waiting for a connection.", "", waitTimes);
+            metrics.histogram("db_pool_hold_seconds", "Time a connection was held, including its SQL statements.", "", holdTimes);
         }
     }
-    
 
 
     /**
-     * This method updates the information of a product if the provided product ID does exist in the database.
-     * 
-     * Notice that not all of the fields are required. This method will only update the ones that are provided.
-     * 
-     * If successfully updated, it responds with the information of the user and status code 200.
-     * 
-     * @param exchange  The HttpExchange object
-     * @param json      The request body as a JSONObject
+     * A connection borrowed from the ConnectionPool. Closing it returns it to the pool instead of closing the database.
      */
-    private static void updateProduct(HttpExchange exchange, JSONObject json) {
-        String url = getDatabaseUrl();
-        System.out.println("Updating");
-    
-        // Check for the product ID, price, and quantity fields
-        if (!json.has("id")) {
-            System.err.println("Product ID is missing. Command refused.");
-            try {
-                sendResponse(exchange, "Missing product ID", 400);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            return;
+    static class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final ConnectionPool pool;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long borrowedAtNanos;
+
+        PooledConnection(Connection connection, ConnectionPool pool) {
+            this.connection = connection;
+            this.pool = pool;
         }
 
-        if (json.has("price") && json.optDouble("price", -1.0) < 0) {
-            System.err.println("Price cannot be negative. Command refused.");
-            try {
-                sendResponse(exchange, "Price cannot be negative", 400);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            return;
+        /**
+         * Returns the cached prepared statement for the given SQL, preparing it on first use.
+         * 
+         * Only use this for fixed SQL strings. The statement belongs to the connection and must not be closed by the caller.
+         * 
+         * @param sql   The SQL statement
+         * @return      The prepared statement with its parameters cleared
+         * @throws SQLException
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return prepare(sql, Statement.NO_GENERATED_KEYS);
         }
 
-        if (json.has("quantity") && json.optInt("quantity", -1) < 0) {
-            System.err.println("Quantity cannot be negative. Command refused.");
-            try {
-                sendResponse(exchange, "Quantity cannot be negative", 400);
-            } catch (IOException e) {
-                e.printStackTrace();
+        public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
             }
-            return;
+            return statement;
         }
-        int productId = json.getInt("id");
-        if(productId < 0){
+
+        /**
+         * Returns the underlying connection, for statements built at runtime that cannot be cached.
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public void close() throws SQLException {
             try {
-                sendResponse(exchange, "ID can't be negative", 400);
-            } catch (IOException e) {
-                e.printStackTrace();
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } finally {
+                pool.release(this);
             }
         }
-        
-        try (Connection conn = DriverManager.getConnection(url)) {
-            System.out.println("updating database");
-            StringBuilder sql = new StringBuilder("UPDATE products SET ");
+    }
+
+
+    /**
+     * A product row as returned by GET /product/{id}.
+     */
+    static class Product {
+        final int id;
+        final String name;
+        final String description;
+        final double price;
+        final int quantity;
+        // The encoded GET response, built on first use
+        private volatile byte[] encodedJson;
+
+        Product(int id, String name, String description, double price, int quantity) {
+            this.id = id;
+            this.name = name;
+            this.description = description;
+            this.price = price;
+            this.quantity = quantity;
+        }
+
+        Product withQuantity(int newQuantity) {
+            return new Product(id, name, description, price, newQuantity);
+        }
+
+        /**
+         * Tells whether the other product has the same ID, name, description and price, whatever its quantity.
+         */
+        boolean sameRowAs(Product other) {
+            return id == other.id && price == other.price && name.equals(other.name) && description.equals(other.description);
+        }
+
+        /**
+         * Returns the body of the GET response, which reports the price as an integer and the quantity as a string.
+         */
+        String toJson() {
+            JSONObject respond = new JSONObject();
+            respond.put("id", id);
+            respond.put("name", name);
+            respond.put("description", description);
+            respond.put("price", (int) price);
+            respond.put("quantity", String.valueOf(quantity));
+            return respond.toString();
+        }
+
+        /**
+         * Returns the body of the GET response as UTF-8 bytes. Products never change, so it is encoded only once.
+         */
+        byte[] toJsonBytes() {
+            byte[] json = encodedJson;
+            if (json == null) {
+                json = toJson().getBytes(StandardCharsets.UTF_8);
+                encodedJson = json;
+            }
+            return json;
+        }
+    }
+
+
+    /**
+     * An in-memory cache of products keyed by product ID, so reads of hot products do not touch SQLite.
+     * 
+     * The IDs live in an open-addressing int array, so a lookup never boxes an ID into an Integer. When the cache
+     * holds maxEntries products a clock hand sweeps the table and evicts the first product that has not been read
+     * since the hand last passed it.
+     * 
+     * Writers update the cache after committing while holding productWriteLock, or for a reservation the lock of
+     * its product, so the cache sees the changes of each product in commit order. A reader that missed passes the
+     * generation it saw before reading SQLite to putIfUnchanged, so a row read before a concurrent write committed
+     * is never cached after that write.
+     */
+    static class ProductCache {
+        private final int maxEntries;
+        private final int mask;
+        private final int[] keys;
+        private final Product[] values; // A null value marks a free slot
+        private final boolean[] referenced;
+        private int size = 0;
+        private int clockHand = 0;
+        private long generation = 0;
+        private long hits = 0;
+        private long misses = 0;
+
+        public ProductCache(int maxEntries) {
+            this.maxEntries = Math.max(1, maxEntries);
+            // Keep the table at most half full so probe sequences stay short
+            int capacity = Integer.highestOneBit(this.maxEntries * 2 - 1) << 1;
+            this.mask = capacity - 1;
+            this.keys = new int[capacity];
+            this.values = new Product[capacity];
+            this.referenced = new boolean[capacity];
+        }
+
+        private int indexFor(int id) {
+            int hash = id * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        private int slotOf(int id) {
+            int slot = indexFor(id);
+            while (values[slot] != null) {
+                if (keys[slot] == id) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the cached product, or null if it is not cached.
+         */
+        public synchronized Product get(int id) {
+            int slot = slotOf(id);
+            if (slot < 0) {
+                misses++;
+                return null;
+            }
+            hits++;
+            referenced[slot] = true;
+            return values[slot];
+        }
+
+        /**
+         * Returns the current generation, which changes on every write to the cache.
+         */
+        public synchronized long generation() {
+            return generation;
+        }
+
+        /**
+         * Caches a product read from SQLite, unless the cache was written since the reader saw lookupGeneration.
+         */
+        public synchronized void putIfUnchanged(Product product, long lookupGeneration) {
+            if (generation == lookupGeneration) {
+                store(product);
+            }
+        }
+
+        /**
+         * Caches a product that was just written to SQLite.
+         */
+        public synchronized void put(Product product) {
+            generation++;
+            store(product);
+        }
+
+        /**
+         * Updates the quantity of a cached product. Products that are not cached stay uncached.
+         */
+        public synchronized void updateQuantity(int id, int quantity) {
+            generation++;
+            int slot = slotOf(id);
+            if (slot >= 0) {
+                values[slot] = values[slot].withQuantity(quantity);
+            }
+        }
+
+        public synchronized void remove(int id) {
+            generation++;
+            int slot = slotOf(id);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+        }
+
+        public synchronized void clear() {
+            generation++;
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        private void store(Product product) {
+            int slot = slotOf(product.id);
+            if (slot >= 0) {
+                values[slot] = product;
+                return;
+            }
+            if (size >= maxEntries) {
+                evictOne();
+            }
+            slot = indexFor(product.id);
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = product.id;
+            values[slot] = product;
+            referenced[slot] = false;
+            size++;
+        }
+
+        private void evictOne() {
+            while (true) {
+                if (values[clockHand] != null) {
+                    if (!referenced[clockHand]) {
+                        removeSlot(clockHand);
+                        return;
+                    }
+                    referenced[clockHand] = false;
+                }
+                clockHand = (clockHand + 1) & mask;
+            }
+        }
+
+        /**
+         * Empties a slot and shifts back the entries after it that would otherwise no longer be found.
+         */
+        private void removeSlot(int slot) {
+            values[slot] = null;
+            size--;
+            int hole = slot;
+            int next = (slot + 1) & mask;
+            while (values[next] != null) {
+                int home = indexFor(keys[next]);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    referenced[hole] = referenced[next];
+                    values[next] = null;
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "size=" + size + " hits=" + hits + " misses=" + misses;
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+
+        public synchronized long hits() {
+            return hits;
+        }
+
+        public synchronized long misses() {
+            return misses;
+        }
+
+        public void registerMetrics(Metrics metrics) {
+            metrics.gauge("product_cache_entries", "Products in the cache.", "", this::size);
+            metrics.counter("product_cache_hits_total", "Product reads answered from the cache.", "", this::hits);
+            metrics.counter("product_cache_misses_total", "Product reads that went to SQLite.", "", this::misses);
+        }
+    }
+
+
+    /**
+     * Keeps the stock of every product in memory and writes it to SQLite behind the requests, for the "memory"
+     * inventory mode.
+     * 
+     * The stock of a product is an AtomicLong holding its quantity in the low 32 bits and a version in the high 32
+     * bits, so a reservation is a compare-and-set that never waits for another product. A quantity of -1 marks a
+     * deleted product.
+     * 
+     * A change is acknowledged once it is in the replay log. A writer thread writes the log records in batches, so
+     * concurrent changes share one write, and forces them to disk when synchronous is FULL or EXTRA. Changed products
+     * are marked dirty, and every flushIntervalMillis a flusher thread writes their current quantities to SQLite in
+     * one transaction, so a product that changed a thousand times since the last flush costs one UPDATE.
+     * 
+     * The log is split into numbered segment files next to the database. Each flush first moves the log on to a new
+     * segment, and deletes the older segments once SQLite has committed, as their changes are then in the database.
+     * At startup the segments a crash left behind are replayed into SQLite. Records of concurrent changes can reach
+     * the log in another order than their compare-and-sets, so the replay keeps the highest version of each product.
+     */
+    static class InventoryEngine {
+        static final int NOT_FOUND = -1;
+        static final int INSUFFICIENT = -2;
+        private static final int DELETED = -1;
+        // Product ID, version and quantity
+        private static final int RECORD_BYTES = 12;
+
+        private final ConnectionPool pool;
+        private final Path logDirectory;
+        private final String logPrefix;
+        private final boolean forceLog;
+        private final long flushIntervalMillis;
+        private final Map<Integer, AtomicLong> stock = new ConcurrentHashMap<>();
+        private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+        // The last product current() returned for each ID, with its quantity replaced
+        private final Map<Integer, Product> views = new ConcurrentHashMap<>();
+        // Held by flushes and resets, which move the log on to a new segment
+        private final Object checkpointLock = new Object();
+        private final LongAdder flushes = new LongAdder();
+        private final LongAdder flushedRows = new LongAdder();
+        private final Metrics.Histogram flushTimes = new Metrics.Histogram();
+        private Thread logWriter;
+        private Thread flusher;
+        private volatile boolean stopped;
+
+        // The replay log, guarded by logLock
+        private final ReentrantLock logLock = new ReentrantLock();
+        private final Condition recordsPending = logLock.newCondition();
+        private final Condition recordsWritten = logLock.newCondition();
+        private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+        private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+        private long appendedRecords;
+        private long writtenRecords;
+        private IOException logFailure;
+        private FileChannel logChannel;
+        private long segment;
+        private boolean closed;
+
+        /**
+         * @param pool                  The connection pool of the products database
+         * @param database              The path of the products database, the log segments are written next to it
+         * @param forceLog              Whether to force every log write to disk
+         * @param flushIntervalMillis   How often the changed quantities are written to SQLite
+         */
+        public InventoryEngine(ConnectionPool pool, Path database, boolean forceLog, long flushIntervalMillis) {
+            this.pool = pool;
+            this.logDirectory = database.toAbsolutePath().getParent();
+            this.logPrefix = database.getFileName() + ".inventory.";
+            this.forceLog = forceLog;
+            this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+        }
+
+        private static long pack(int version, int quantity) {
+            return ((long) version << 32) | (quantity & 0xFFFFFFFFL);
+        }
+
+        private static int versionOf(long state) {
+            return (int) (state >>> 32);
+        }
+
+        private static int quantityOf(long state) {
+            return (int) state;
+        }
+
+        /**
+         * Replays the log a crash left behind, loads the stock of every product and starts the log writer and
+         * the flusher.
+         * 
+         * @throws SQLException If the stock could not be read or the replayed quantities could not be written
+         * @throws IOException  If the log could not be read or a new segment could not be created
+         */
+        public void start() throws SQLException, IOException {
+            List<Path> segments = listSegments();
+            if (!segments.isEmpty()) {
+                int products = replay(segments);
+                log.info("Replayed the stock of {} products from {} inventory log segments", products, segments.size());
+            }
+            try (PooledConnection conn = pool.borrow();
+                 ResultSet rs = conn.prepare("SELECT id, quantity FROM products").executeQuery()) {
+                while (rs.next()) {
+                    stock.put(rs.getInt(1), new AtomicLong(pack(0, rs.getInt(2))));
+                }
+            }
+            for (Path path : segments) {
+                Files.delete(path);
+            }
+            segment = segments.isEmpty() ? 1 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+            logChannel = openSegment(segment);
+
+            logWriter = new Thread(this::runLogWriter, "ProductService-inventory-log");
+            flusher = new Thread(this::runFlusher, "ProductService-inventory-flusher");
+            logWriter.setDaemon(true);
+            flusher.setDaemon(true);
+            logWriter.start();
+            flusher.start();
+        }
+
+        /**
+         * Writes the last quantity each log record holds for a product to SQLite.
+         * 
+         * @return  The number of products replayed
+         */
+        private int replay(List<Path> segments) throws IOException, SQLException {
+            Map<Integer, int[]> latest = new HashMap<>();
+            for (Path path : segments) {
+                // A record the crash cut short was never acknowledged, so it is ignored
+                ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(path));
+                while (records.remaining() >= RECORD_BYTES) {
+                    int id = records.getInt();
+                    int version = records.getInt();
+                    int quantity = records.getInt();
+                    int[] seen = latest.get(id);
+                    if (seen == null || version - seen[0] > 0) {
+                        latest.put(id, new int[] {version, quantity});
+                    }
+                }
+            }
+            try (PooledConnection conn = pool.borrow()) {
+                conn.getConnection().setAutoCommit(false);
+                PreparedStatement update = conn.prepare("UPDATE products SET quantity = ? WHERE id = ?");
+                for (Map.Entry<Integer, int[]> entry : latest.entrySet()) {
+                    // Deletes went to SQLite straight away
+                    if (entry.getValue()[1] != DELETED) {
+                        update.setInt(1, entry.getValue()[1]);
+                        update.setInt(2, entry.getKey());
+                        update.addBatch();
+                    }
+                }
+                update.executeBatch();
+                conn.getConnection().commit();
+            }
+            return latest.size();
+        }
+
+        /**
+         * Returns the quantity of a product, or NOT_FOUND if there is no such product.
+         */
+        public int quantity(int id) {
+            AtomicLong state = stock.get(id);
+            int quantity = state == null ? DELETED : quantityOf(state.get());
+            return quantity == DELETED ? NOT_FOUND : quantity;
+        }
+
+        /**
+         * Returns the product with its quantity replaced by the one in memory, which SQLite may not have yet.
+         */
+        public Product current(Product product) {
+            int quantity = quantity(product.id);
+            if (quantity == NOT_FOUND || quantity == product.quantity) {
+                return product;
+            }
+            // Reuse the last copy while the stock does not change, so its encoded GET response is reused as well
+            Product view = views.get(product.id);
+            if (view == null || view.quantity != quantity || !view.sameRowAs(product)) {
+                view = product.withQuantity(quantity);
+                views.put(product.id, view);
+            }
+            return view;
+        }
+
+        /**
+         * Takes the quantity out of the stock of a product if that much is left.
+         * 
+         * @param id        The product ID
+         * @param quantity  The quantity to take
+         * @return          The quantity left, NOT_FOUND if there is no such product or INSUFFICIENT if less than
+         *                  the quantity is left
+         * @throws SQLException If the change could not be logged, in which case the stock is given back
+         */
+        public int reserve(int id, int quantity) throws SQLException {
+            AtomicLong state = stock.get(id);
+            if (state == null) {
+                return NOT_FOUND;
+            }
+            long current;
+            long next;
+            do {
+                current = state.get();
+                int available = quantityOf(current);
+                if (available == DELETED) {
+                    return NOT_FOUND;
+                }
+                if (available < quantity) {
+                    return INSUFFICIENT;
+                }
+                next = pack(versionOf(current) + 1, available - quantity);
+            } while (!state.compareAndSet(current, next));
+
+            try {
+                persist(id, next);
+            } catch (SQLException e) {
+                giveBack(state, quantity);
+                throw e;
+            }
+            return quantityOf(next);
+        }
+
+        /**
+         * Takes each quantity out of the stock of a product if it still fits, in the order given, with a single
+         * compare-and-set. The outcome is the same as reserving the quantities one by one. A negative quantity is
+         * never taken.
+         * 
+         * @param id            The product ID
+         * @param quantities    The quantities to take
+         * @param reserved      Set to whether each quantity was taken
+         * @return              The quantity left, or NOT_FOUND if there is no such product
+         * @throws SQLException If the change could not be logged, in which case the stock is given back
+         */
+        public int reserveInOrder(int id, int[] quantities, boolean[] reserved) throws SQLException {
+            AtomicLong state = stock.get(id);
+            if (state == null) {
+                return NOT_FOUND;
+            }
+            long current;
+            long next;
+            int taken;
+            do {
+                current = state.get();
+                int available = quantityOf(current);
+                if (available == DELETED) {
+                    return NOT_FOUND;
+                }
+                int left = available;
+                for (int i = 0; i < quantities.length; i++) {
+                    reserved[i] = quantities[i] >= 0 && quantities[i] <= left;
+                    if (reserved[i]) {
+                        left -= quantities[i];
+                    }
+                }
+                taken = available - left;
+                next = pack(versionOf(current) + 1, left);
+            } while (taken > 0 && !state.compareAndSet(current, next));
+            if (taken == 0) {
+                return quantityOf(current);
+            }
+
+            try {
+                persist(id, next);
+            } catch (SQLException e) {
+                giveBack(state, taken);
+                throw e;
+            }
+            return quantityOf(next);
+        }
+
+        /**
+         * Puts back stock whose reservation could not be logged, unless the product was deleted meanwhile.
+         */
+        private void giveBack(AtomicLong state, int quantity) {
+            long current;
+            long restored;
+            do {
+                current = state.get();
+                restored = quantityOf(current) == DELETED ? current : pack(versionOf(current) + 1, quantityOf(current) + quantity);
+            } while (!state.compareAndSet(current, restored));
+        }
+
+        /**
+         * Sets the quantity of a product that was just created in SQLite.
+         * 
+         * @throws SQLException If the change could not be logged
+         */
+        public void set(int id, int quantity) throws SQLException {
+            AtomicLong state = stock.computeIfAbsent(id, key -> new AtomicLong(pack(0, DELETED)));
+            long current;
+            long next;
+            do {
+                current = state.get();
+                next = pack(versionOf(current) + 1, quantity);
+            } while (!state.compareAndSet(current, next));
+            persist(id, next);
+        }
+
+        /**
+         * Moves the quantity of a product that was just updated in SQLite from the one it had when the update
+         * started to the new one. The difference is applied with the same compare-and-set loop as reservations, so
+         * a reservation made in between is kept instead of being overwritten. The quantity never goes below zero.
+         *
+         * @param  id              The product
+         * @param  quantityBefore  The quantity read before the row was updated, or NOT_FOUND
+         * @param  quantityAfter   The quantity written to the row
+         * @return                 The quantity now held in memory
+         * @throws SQLException    If the change could not be logged
+         */
+        public int update(int id, int quantityBefore, int quantityAfter) throws SQLException {
+            AtomicLong state = stock.get(id);
+            if (state == null || quantityBefore == NOT_FOUND) {
+                set(id, quantityAfter);
+                return quantityAfter;
+            }
+            long current;
+            long next;
+            do {
+                current = state.get();
+                int available = quantityOf(current);
+                long updated = available == DELETED ? quantityAfter
+                        : Math.max(0L, (long) available + quantityAfter - quantityBefore);
+                next = pack(versionOf(current) + 1, (int) Math.min(updated, Integer.MAX_VALUE));
+            } while (!state.compareAndSet(current, next));
+            persist(id, next);
+            return quantityOf(next);
+        }
+
+        /**
+         * Marks a product as deleted if its quantity is the expected one. The caller deletes its row from SQLite.
+         * 
+         * @return  Whether the product was marked as deleted
+         * @throws SQLException If the change could not be logged
+         */
+        public boolean remove(int id, int expectedQuantity) throws SQLException {
+            AtomicLong state = stock.get(id);
+            if (state == null) {
+                return false;
+            }
+            long current;
+            long next;
+            do {
+                current = state.get();
+                if (quantityOf(current) == DELETED || quantityOf(current) != expectedQuantity) {
+                    return false;
+                }
+                next = pack(versionOf(current) + 1, DELETED);
+            } while (!state.compareAndSet(current, next));
+            views.remove(id);
+            persist(id, next);
+            return true;
+        }
+
+        /**
+         * Marks the product for the next flush and waits until its new state is in the log.
+         * 
+         * The product is marked before the record is appended. A flush that moved the log on after the record was
+         * appended therefore also sees the mark, and writes this state or a later one.
+         */
+        private void persist(int id, long state) throws SQLException {
+            dirty.add(id);
+            logLock.lock();
+            try {
+                if (closed) {
+                    throw new SQLException("The inventory is closed");
+                }
+                if (pending.remaining() < RECORD_BYTES) {
+                    ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+                    pending.flip();
+                    pending = larger.put(pending);
+                }
+                pending.putInt(id).putInt(versionOf(state)).putInt(quantityOf(state));
+                long record = ++appendedRecords;
+                recordsPending.signal();
+                while (writtenRecords < record) {
+                    if (logFailure != null) {
+                        throw new SQLException("Could not write the inventory log", logFailure);
+                    }
+                    recordsWritten.awaitUninterruptibly();
+                }
+            } finally {
+                logLock.unlock();
+            }
+        }
+
+        private void runLogWriter() {
+            while (true) {
+                ByteBuffer batch;
+                long batchEnd;
+                FileChannel channel;
+                logLock.lock();
+                try {
+                    while (pending.position() == 0 && !closed) {
+                        recordsPending.awaitUninterruptibly();
+                    }
+                    if (pending.position() == 0) {
+                        return;
+                    }
+                    batch = pending;
+                    pending = spare;
+                    batchEnd = appendedRecords;
+                    channel = logChannel;
+                } finally {
+                    logLock.unlock();
+                }
+
+                IOException failure = null;
+                try {
+                    batch.flip();
+                    while (batch.hasRemaining()) {
+                        channel.write(batch);
+                    }
+                    if (forceLog) {
+                        channel.force(false);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+
+                logLock.lock();
+                try {
+                    spare = batch.clear();
+                    if (failure != null) {
+                        // Nothing can be acknowledged any more, the records already written are replayed after a restart
+                        log.error("Error writing the inventory log: {}", failure.getMessage());
+                        logFailure = failure;
+                    } else {
+                        writtenRecords = batchEnd;
+                    }
+                    recordsWritten.signalAll();
+                } finally {
+                    logLock.unlock();
+                }
+                if (failure != null) {
+                    return;
+                }
+            }
+        }
+
+        private void runFlusher() {
+            while (!stopped) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis));
+                if (stopped) {
+                    return;
+                }
+                try {
+                    flush();
+                } catch (SQLException | IOException e) {
+                    log.error("Error writing the inventory to the database: {}", e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Writes the current quantity of every changed product to SQLite in one transaction and deletes the log
+         * segments this makes redundant.
+         * 
+         * @throws SQLException If the transaction failed, in which case the products stay marked
+         * @throws IOException  If the log could not be moved on to a new segment
+         */
+        public void flush() throws SQLException, IOException {
+            synchronized (checkpointLock) {
+                if (dirty.isEmpty()) {
+                    return;
+                }
+                long start = System.nanoTime();
+                long previousSegment = rotate();
+                List<Integer> ids = new ArrayList<>();
+                for (Iterator<Integer> iterator = dirty.iterator(); iterator.hasNext(); ) {
+                    ids.add(iterator.next());
+                    iterator.remove();
+                }
+
+                int rows = 0;
+                try (PooledConnection conn = pool.borrow()) {
+                    conn.getConnection().setAutoCommit(false);
+                    PreparedStatement update = conn.prepare("UPDATE products SET quantity = ? WHERE id = ?");
+                    for (Integer id : ids) {
+                        AtomicLong state = stock.get(id);
+                        int quantity = state == null ? DELETED : quantityOf(state.get());
+                        if (quantity != DELETED) {
+                            update.setInt(1, quantity);
+                            update.setInt(2, id);
+                            update.addBatch();
+                            rows++;
+                        }
+                    }
+                    update.executeBatch();
+                    conn.getConnection().commit();
+                } catch (SQLException e) {
+                    dirty.addAll(ids);
+                    throw e;
+                }
+                deleteSegments(previousSegment);
+                flushes.increment();
+                flushedRows.add(rows);
+                flushTimes.observeNanos(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Drops the stock of every product and the whole log, after the products table was recreated.
+         * 
+         * @throws SQLException If the log could not be moved on to a new segment
+         */
+        public void reset() throws SQLException {
+            synchronized (checkpointLock) {
+                try {
+                    long previousSegment = rotate();
+                    stock.clear();
+                    dirty.clear();
+                    views.clear();
+                    deleteSegments(previousSegment);
+                } catch (IOException e) {
+                    throw new SQLException("Could not reset the inventory log", e);
+                }
+            }
+        }
+
+        /**
+         * Waits until every appended record is written and starts a new segment.
+         * 
+         * @return  The number of the segment that was current until now
+         */
+        private long rotate() throws IOException {
+            logLock.lock();
+            try {
+                while (writtenRecords < appendedRecords && logFailure == null) {
+                    recordsWritten.awaitUninterruptibly();
+                }
+                if (logFailure != null) {
+                    throw new IOException("The inventory log failed earlier", logFailure);
+                }
+                FileChannel next = openSegment(segment + 1);
+                logChannel.close();
+                logChannel = next;
+                return segment++;
+            } finally {
+                logLock.unlock();
+            }
+        }
+
+        private FileChannel openSegment(long number) throws IOException {
+            return FileChannel.open(logDirectory.resolve(logPrefix + number),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        private long segmentNumber(Path path) {
+            return Long.parseLong(path.getFileName().toString().substring(logPrefix.length()));
+        }
+
+        /**
+         * Returns the log segments in the order they were written.
+         */
+        private List<Path> listSegments() throws IOException {
+            List<Path> segments = new ArrayList<>();
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(logDirectory, logPrefix + "*")) {
+                for (Path path : paths) {
+                    segments.add(path);
+                }
+            }
+            segments.sort(Comparator.comparingLong(this::segmentNumber));
+            return segments;
+        }
+
+        private void deleteSegments(long upTo) throws IOException {
+            for (Path path : listSegments()) {
+                if (segmentNumber(path) <= upTo) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+
+        /**
+         * Stops the flusher, writes the last changes to SQLite and closes the log. Changes made after that fail.
+         */
+        public synchronized void close() {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SQLException | IOException e) {
+                log.error("Error writing the inventory to the database: {}", e.getMessage());
+            }
+
+            logLock.lock();
+            try {
+                closed = true;
+                recordsPending.signal();
+            } finally {
+                logLock.unlock();
+            }
+            try {
+                logWriter.join();
+                logChannel.close();
+                // Keep the last segment only if changes arrived after the last flush
+                Path last = logDirectory.resolve(logPrefix + segment);
+                if (Files.size(last) == 0) {
+                    Files.delete(last);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                log.warn("Error closing the inventory log: {}", e.getMessage());
+            }
+        }
+
+        private long loggedRecords() {
+            logLock.lock();
+            try {
+                return writtenRecords;
+            } finally {
+                logLock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "products=" + stock.size() + " dirty=" + dirty.size() + " logged=" + loggedRecords()
+                    + " flushes=" + flushes.sum() + " flushedRows=" + flushedRows.sum();
+        }
+
+        public void registerMetrics(Metrics metrics) {
+            metrics.gauge("inventory_products", "Products whose stock is held in memory.", "", stock::size);
+            metrics.gauge("inventory_dirty_products", "Products changed since the last flush to SQLite.", "", dirty::size);
+            metrics.counter("inventory_log_records_total", "Stock changes written to the replay log.", "", this::loggedRecords);
+            metrics.counter("inventory_flushes_total", "Flushes of the changed stock to SQLite.", "", flushes::sum);
+            metrics.counter("inventory_flushed_rows_total", "Product rows updated by flushes.", "", flushedRows::sum);
+            metrics.histogram("inventory_flush_seconds", "Time to flush the changed stock to SQLite.", "", flushTimes);
+        }
+    }
+
+
+    /**
+     * Handler class for the ProductService.
+     */
+    static class ProductHandler implements HttpHandler {
+
+        HttpServer server;
+        ProductHandler(HttpServer server){
+            this.server = server;
+        }
+
+        /**
+         * This method handles the following HTTP requests:
+         * 
+         * For a GET request: It returns the product details for the product ID specified at the end of url if this ID exists in the database.
+         * 
+         * For a POST request: It performs different operations based on the command specified in the request body.
+         *    - create: Creates a new product in the database if every required field is provided correctly and the provided product ID does not already exist in the database.
+         *    - update: Updates the information of an existing product in the database if the provided product ID exists in the database.
+         *    - delete: Deletes an existing product from the database if every required field is matched correctly.
+         *    - reserve: Takes the given quantity out of the stock of a product if enough of it is available.
+         *    - reset: Drops every product, sent by OrderService when it starts without a restart.
+         *    - shutdown: Shuts down the server.
+         * 
+         * @param exchange  The HttpExchange object
+         * @throws IOException
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+
+            if ("POST".equals(exchange.getRequestMethod())) {
+                JSONObject requestJson;
+                try {
+                    requestJson = readRequestJson(exchange);
+                } catch (RequestTooLargeException e) {
+                    sendResponse(exchange, e.getMessage(), 413);
+                    return;
+                }
+                String command = requestJson.optString("command");
+                exchange.setAttribute(InstrumentedHandler.COMMAND_ATTRIBUTE, command);
+
+                switch (command) {
+                    case "create":
+                        if (requestJson.has("products")) {
+                            createProducts(exchange, requestJson.optJSONArray("products"));
+                        } else {
+                            createProduct(exchange, requestJson);
+                        }
+                        break;
+                    case "update":
+                        updateProduct(exchange, requestJson);
+                        break;
+                    case "delete":
+                        deleteProduct(exchange, requestJson);
+                        break;
+                    case "reserve":
+                        reserveProduct(exchange, requestJson);
+                        break;
+                    case "reset":
+                        resetProducts(exchange);
+                        break;
+                    case "shutdown":
+                        log.info("Shutting down");
+                        handleShutdownCommand(exchange, server);
+                        break;
+                    default:
+                        sendResponse(exchange, "Invalid command", 400);
+                        return;
+                }
+            } else if ("GET".equals(exchange.getRequestMethod())) {
+                int[] ids;
+                try {
+                    ids = parseIds(exchange.getRequestURI());
+                } catch (NumberFormatException e) {
+                    sendResponse(exchange, "Bad Request", 400);
+                    return;
+                }
+                if (ids != null) {
+                    getProducts(exchange, ids);
+                    return;
+                }
+                String requestURI = exchange.getRequestURI().toString();
+                    String[] uri = requestURI.split("/");
+                    String idStr = "";
+                    try{
+                        idStr = uri[2];
+                    }catch(Exception e){
+                        log.debug("No product ID in {}", requestURI);
+                        sendResponse(exchange, "Please enter Product ID", 400);
+                        exchange.close();
+                        return;
+                    }
+                    
+                    
+                    int id = Integer.parseInt(idStr); // Parse the string to an integer
+                
+                    // Only read the product from the database if it is not cached
+                    Product product = productCache.get(id);
+                    if (product == null) {
+                        long generation = productCache.generation();
+                        try (PooledConnection conn = connectionPool.borrow()) {
+                            PreparedStatement query = conn.prepare("SELECT * FROM products WHERE id = ?");
+                            query.setInt(1, id); // Set the id as an integer
+                
+                            try (ResultSet rs = query.executeQuery()) {
+                                if (rs.next()) {
+                                    product = new Product(id, rs.getString("name"), rs.getString("description"),
+                                            rs.getDouble("price"), rs.getInt("quantity"));
+                                    productCache.putIfUnchanged(product, generation);
+                                }
+                            }
+                        } catch (SQLException e) {
+                            log.error("Error reading product {}: {}", id, e.getMessage());
+                            // Send an error response to client
+                            sendResponse(exchange, "Internal Server Error", 500);
+                            return;
+                        }
+                    }
+
+                    if (product != null) {
+                        if (inventory != null) {
+                            product = inventory.current(product);
+                        }
+                        sendResponse(exchange, product.toJsonBytes(), 200, JSON_CONTENT_TYPE);
+                    } else {
+                        // Handle case where no product is found
+                        sendResponse(exchange, "Product not found", 400);
+                    }
+                } else {
+                        // Send a 405 Method Not Allowed response for non-POST requests
+                        exchange.sendResponseHeaders(405, -1);
+                        exchange.close();
+            }
+        }
+    }
+
+
+    /**
+     * This method handles the shutdown command by sending a response to the client and then shutting down the server.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param server    The HttpServer object
+     * @throws IOException
+     */
+    private static void handleShutdownCommand(HttpExchange exchange, HttpServer server) throws IOException {
+        JSONObject responseJson = new JSONObject();
+        responseJson.put("command", "shutdown");
+    
+        // Send the shutdown command response
+        sendJson(exchange, responseJson, 200);
+    
+        log.info("Connection pool: {}", connectionPool);
+        log.info("Product cache: {}", productCache);
+
+        // Perform server shutdown operations
+        server.stop(4); // Gracefully stop the server with a delay of 1 second
+        if (inventory != null) {
+            inventory.close();
+            log.info("Inventory: {}", inventory);
+        }
+    }
+
+
+    /**
+     * Thrown when a request body is longer than maxRequestBytes.
+     */
+    static class RequestTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestTooLargeException(long length) {
+            super("Request body of " + length + " bytes exceeds the limit of " + maxRequestBytes + " bytes");
+        }
+    }
+
+
+    /**
+     * This method reads the request body from the given HttpExchange object.
+     * 
+     * If the client sent a Content-Length the body is read straight into an array of exactly that size, otherwise
+     * it is read up to the end of the stream. Bodies longer than maxRequestBytes are refused before they are read.
+     * 
+     * @param exchange  The HttpExchange object
+     * @return          The request body as bytes
+     * @throws RequestTooLargeException If the body is longer than maxRequestBytes
+     * @throws IOException
+     */
+    private static byte[] readRequestBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength == null) {
+                byte[] body = in.readNBytes(maxRequestBytes + 1);
+                if (body.length > maxRequestBytes) {
+                    throw new RequestTooLargeException(body.length);
+                }
+                return body;
+            }
+
+            long length;
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            if (length > maxRequestBytes) {
+                throw new RequestTooLargeException(length);
+            }
+            byte[] body = new byte[(int) length];
+            if (in.readNBytes(body, 0, body.length) < body.length) {
+                throw new IOException("Request body ended before Content-Length bytes were read");
+            }
+            return body;
+        }
+    }
+
+
+    /**
+     * This method reads the request body from the given HttpExchange object and parses it as a JSON object.
+     * 
+     * The bytes are decoded while they are parsed, so the body is never copied into a String.
+     * 
+     * @param exchange  The HttpExchange object
+     * @return          The request body as a JSON object
+     * @throws RequestTooLargeException If the body is longer than maxRequestBytes
+     * @throws IOException
+     */
+    private static JSONObject readRequestJson(HttpExchange exchange) throws IOException {
+        return parseJson(readRequestBody(exchange));
+    }
+
+
+    private static JSONObject parseJson(byte[] body) {
+        return new JSONObject(new JSONTokener(new Utf8Reader(body)));
+    }
+
+
+    /**
+     * Decodes UTF-8 bytes one character at a time for JSONTokener. It supports mark, so the tokener uses it as is
+     * instead of wrapping it in a BufferedReader, and it is not synchronized like the JDK readers.
+     * Malformed input decodes to U+FFFD.
+     */
+    static class Utf8Reader extends Reader {
+        private final byte[] bytes;
+        private int position;
+        private int markedPosition;
+        // The second half of a surrogate pair, or -1 if none is waiting
+        private int pendingLowSurrogate = -1;
+        private int markedLowSurrogate = -1;
+
+        public Utf8Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            if (pendingLowSurrogate >= 0) {
+                int low = pendingLowSurrogate;
+                pendingLowSurrogate = -1;
+                return low;
+            }
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int b = bytes[position++];
+            if (b >= 0) {
+                return b;
+            }
+            int extra;
+            int codePoint;
+            if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                return 0xFFFD;
+            }
+            for (int i = 0; i < extra; i++) {
+                if (position >= bytes.length || (bytes[position] & 0xC0) != 0x80) {
+                    return 0xFFFD;
+                }
+                codePoint = (codePoint << 6) | (bytes[position++] & 0x3F);
+            }
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                return Character.highSurrogate(codePoint);
+            }
+            return codePoint;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            int count = 0;
+            while (count < length) {
+                int c = read();
+                if (c < 0) {
+                    return count == 0 ? -1 : count;
+                }
+                buffer[offset + count++] = (char) c;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) {
+            markedPosition = position;
+            markedLowSurrogate = pendingLowSurrogate;
+        }
+
+        @Override
+        public void reset() {
+            position = markedPosition;
+            pendingLowSurrogate = markedLowSurrogate;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    /**
+     * This method sends the given message to the client as plain text.
+     * 
+     * The fixed messages of this service are encoded only once.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param response  The response string
+     * @param code      The response code
+     * @throws IOException
+     */
+    private static void sendResponse(HttpExchange exchange, String response, int code) throws IOException {
+        byte[] body = CONSTANT_BODIES.get(response);
+        sendResponse(exchange, body != null ? body : response.getBytes(StandardCharsets.UTF_8), code, TEXT_CONTENT_TYPE);
+    }
+
+
+    /**
+     * This method sends the given JSON object to the client.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param json      The response body
+     * @param code      The response code
+     * @throws IOException
+     */
+    private static void sendJson(HttpExchange exchange, JSONObject json, int code) throws IOException {
+        sendResponse(exchange, json.toString().getBytes(StandardCharsets.UTF_8), code, JSON_CONTENT_TYPE);
+    }
+
+
+    /**
+     * This method sends an encoded body to the client with its exact length.
+     * 
+     * Bodies of at least gzipMinBytes are compressed for clients that accept gzip. An empty body is sent as no body.
+     * 
+     * @param exchange      The HttpExchange object
+     * @param body          The encoded response body
+     * @param code          The response code
+     * @param contentType   The Content-Type of the body
+     * @throws IOException
+     */
+    private static void sendResponse(HttpExchange exchange, byte[] body, int code, String contentType) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", contentType);
+        if (body.length >= gzipMinBytes) {
+            headers.set("Vary", "Accept-Encoding");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                }
+                body = compressed.toByteArray();
+                headers.set("Content-Encoding", "gzip");
+            }
+        }
+        if (body.length == 0) {
+            // There is no body stream to write to after announcing an empty body
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+
+    /**
+     * Checks for the fields a new product needs and that its ID, price and quantity are not negative.
+     * 
+     * @param json  The product as a JSONObject
+     * @return      Whether the product can be created
+     */
+    private static boolean isValidNewProduct(JSONObject json) {
+        return json.has("name") && !json.optString("name").isEmpty() &&
+            json.has("id") && json.optInt("id") >= 0 &&
+            json.has("description") && !json.optString("description").isEmpty() &&
+            json.has("price") && json.optDouble("price", -1.0) >= 0 &&
+            json.has("quantity") && json.optInt("quantity", -1) >= 0;
+    }
+
+
+    /**
+     * This method creates every product in the given array in one transaction, e.g. for a catalog import.
+     * 
+     * Either all products are created or none. Nothing is created if a product is invalid or if its ID already
+     * exists or appears twice in the array.
+     * 
+     * If successfully created, it responds with {"created": <number of products>} and the status code 200.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param products  The products to create
+     */
+    private static void createProducts(HttpExchange exchange, JSONArray products) {
+        try {
+            if (products == null || products.isEmpty()) {
+                sendResponse(exchange, "Bad Request", 400);
+                return;
+            }
+            JSONArray ids = new JSONArray();
+            Set<Integer> distinctIds = new HashSet<>();
+            for (int i = 0; i < products.length(); i++) {
+                JSONObject product = products.optJSONObject(i);
+                if (product == null || !isValidNewProduct(product)) {
+                    log.debug("Product {} of the batch is missing fields or invalid. Command refused.", i);
+                    sendResponse(exchange, "Bad Request", 400);
+                    return;
+                }
+                if (!distinctIds.add(product.getInt("id"))) {
+                    sendResponse(exchange, "Product ID already exists", 409);
+                    return;
+                }
+                ids.put(product.getInt("id"));
+            }
+
+            try (PooledConnection conn = connectionPool.borrow()) {
+                PreparedStatement pstmtCheck = conn.prepare("SELECT COUNT(*) FROM products WHERE id IN (SELECT value FROM json_each(?))");
+                PreparedStatement pstmtInsert = conn.prepare(
+                        "INSERT INTO products (id, name, description, price, quantity) VALUES (?, ?, ?, ?, ?)");
+
+                // None of these products can be cached yet, so the cache needs no update
+                synchronized (productWriteLock) {
+                    conn.getConnection().setAutoCommit(false);
+                    pstmtCheck.setString(1, ids.toString());
+                    try (ResultSet rs = pstmtCheck.executeQuery()) {
+                        if (rs.next() && rs.getInt(1) > 0) {
+                            log.debug("{} of the product IDs already exist. Command refused.", rs.getInt(1));
+                            sendResponse(exchange, "Product ID already exists", 409);
+                            return;
+                        }
+                    }
+                    for (int i = 0; i < products.length(); i++) {
+                        JSONObject product = products.getJSONObject(i);
+                        pstmtInsert.setInt(1, product.getInt("id"));
+                        pstmtInsert.setString(2, product.getString("name"));
+                        pstmtInsert.setString(3, product.getString("description"));
+                        pstmtInsert.setDouble(4, product.getDouble("price"));
+                        pstmtInsert.setInt(5, product.getInt("quantity"));
+                        pstmtInsert.addBatch();
+                    }
+                    pstmtInsert.executeBatch();
+                    conn.getConnection().commit();
+                    if (inventory != null) {
+                        for (int i = 0; i < products.length(); i++) {
+                            inventory.set(products.getJSONObject(i).getInt("id"), products.getJSONObject(i).getInt("quantity"));
+                        }
+                    }
+                }
+            }
+            sendJson(exchange, new JSONObject().put("created", products.length()), 200);
+        } catch (SQLException e) {
+            log.error("Error creating products: {}", e.getMessage());
+            try {
+                sendResponse(exchange, "Internal Server Error", 500);
+            } catch (IOException e1) {
+                log.warn("Error sending response", e1);
+            }
+        } catch (IOException e) {
+            log.warn("IOException occurred while sending response: {}", e.getMessage());
+        }
+    }
+
+
+    /**
+     * Returns the IDs listed in the "ids" query parameter, e.g. ids=1,2,3, or null if the query has none.
+     * 
+     * @param uri   The request URI
+     * @return      The IDs in the order given
+     * @throws NumberFormatException If one of the IDs is not a number
+     */
+    private static int[] parseIds(URI uri) {
+        String query = uri.getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("ids=")) {
+                String[] values = parameter.substring(4).split(",");
+                int[] ids = new int[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    ids[i] = Integer.parseInt(values[i].trim());
+                }
+                return ids;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * This method responds with a JSON array of the products with the given IDs, in the order of the IDs.
+     * 
+     * Cached products are taken from the cache and all others are read with a single query. IDs without a
+     * product are left out.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param ids       The product IDs
+     * @throws IOException
+     */
+    private static void getProducts(HttpExchange exchange, int[] ids) throws IOException {
+        Product[] products = new Product[ids.length];
+        JSONArray uncachedIds = new JSONArray();
+        long generation = productCache.generation();
+        for (int i = 0; i < ids.length; i++) {
+            products[i] = productCache.get(ids[i]);
+            if (products[i] == null) {
+                uncachedIds.put(ids[i]);
+            }
+        }
+
+        if (!uncachedIds.isEmpty()) {
+            Map<Integer, Product> loaded = new HashMap<>();
+            try (PooledConnection conn = connectionPool.borrow()) {
+                PreparedStatement query = conn.prepare("SELECT * FROM products WHERE id IN (SELECT value FROM json_each(?))");
+                query.setString(1, uncachedIds.toString());
+                try (ResultSet rs = query.executeQuery()) {
+                    while (rs.next()) {
+                        Product product = new Product(rs.getInt("id"), rs.getString("name"), rs.getString("description"),
+                                rs.getDouble("price"), rs.getInt("quantity"));
+                        productCache.putIfUnchanged(product, generation);
+                        loaded.put(product.id, product);
+                    }
+                }
+            } catch (SQLException e) {
+                log.error("Error reading products: {}", e.getMessage());
+                sendResponse(exchange, "Internal Server Error", 500);
+                return;
+            }
+            for (int i = 0; i < ids.length; i++) {
+                if (products[i] == null) {
+                    products[i] = loaded.get(ids[i]);
+                }
+            }
+        }
+        if (inventory != null) {
+            for (int i = 0; i < products.length; i++) {
+                if (products[i] != null) {
+                    products[i] = inventory.current(products[i]);
+                }
+            }
+        }
+
+        // Join the encoded products instead of building the array as a JSONArray
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write('[');
+        boolean first = true;
+        for (Product product : products) {
+            if (product != null) {
+                if (!first) {
+                    body.write(',');
+                }
+                body.write(product.toJsonBytes());
+                first = false;
+            }
+        }
+        body.write(']');
+        sendResponse(exchange, body.toByteArray(), 200, JSON_CONTENT_TYPE);
+    }
+
+
+    /**
+     * This method creates a new product in the database if every required field is provided correctly and 
+     * the provided product ID does not already exist in the database.
+     * 
+     * For the price and quantity fields, they must be non-negative numbers.
+     * 
+     * If successfully created, it responds with the information of the product and status code 200.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param json      The request body as a JSONObject
+     */
+    private static void createProduct(HttpExchange exchange, JSONObject json) {
+        if (!isValidNewProduct(json)) {
+            log.debug("Missing or invalid fields. Command refused.");
+            try {
+                sendResponse(exchange, "Bad Request", 400);
+            } catch (IOException e) {
+                log.warn("Error sending response", e);
+            }
+            return;
+        }
+    
+        try (PooledConnection conn = connectionPool.borrow()) {
+            PreparedStatement pstmtCheck = conn.prepare("SELECT COUNT(*) FROM products WHERE id = ?");
+            PreparedStatement pstmtInsert = conn.prepare(
+                    "INSERT INTO products (id, name, description, price, quantity) VALUES (?, ?, ?, ?, ?)");
+    
+            synchronized (productWriteLock) {
+                // Check if ID already exists
+                pstmtCheck.setInt(1, json.getInt("id"));
+                try (ResultSet rs = pstmtCheck.executeQuery()) {
+                    if (rs.next() && rs.getInt(1) > 0) {
+                        log.debug("Product ID already exists. Command refused.");
+                        sendResponse(exchange, "Product ID already exists", 409);
+                        return;
+                    }
+                }
+    
+                // Insert the new product
+                pstmtInsert.setInt(1, json.getInt("id"));
+                pstmtInsert.setString(2, json.getString("name"));
+                pstmtInsert.setString(3, json.getString("description"));
+                pstmtInsert.setDouble(4, json.getDouble("price"));
+                pstmtInsert.setInt(5, json.getInt("quantity"));
+                pstmtInsert.executeUpdate();
+                productCache.put(new Product(json.getInt("id"), json.getString("name"), json.getString("description"),
+                        json.getDouble("price"), json.getInt("quantity")));
+                if (inventory != null) {
+                    inventory.set(json.getInt("id"), json.getInt("quantity"));
+                }
+            }
+
+            // Send the success response with the product details
+            JSONObject responseJson = new JSONObject();
+            responseJson.put("id", json.getInt("id"));
+            responseJson.put("name", json.getString("name"));
+            responseJson.put("description", json.getString("description"));
+            responseJson.put("price", json.getDouble("price"));
+            responseJson.put("quantity", json.getInt("quantity"));
+            
+            sendJson(exchange, responseJson, 200); 
+
+        } catch (SQLException e) {
+            log.error("Error creating product: {}", e.getMessage());
+            try {
+                sendResponse(exchange, "Internal Server Error", 500);
+            } catch (IOException e1) {
+                log.warn("Error sending response", e1);
+            }
+        } catch (IOException e) {
+            log.warn("IOException occurred while sending response: {}", e.getMessage());
+        }
+    }
+    
+
+
+    /**
+     * This method updates the information of a product if the provided product ID does exist in the database.
+     * 
+     * Notice that not all of the fields are required. This method will only update the ones that are provided.
+     * 
+     * If successfully updated, it responds with the information of the user and status code 200.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param json      The request body as a JSONObject
+     */
+    private static void updateProduct(HttpExchange exchange, JSONObject json) {
+        log.debug("Updating");
+    
+        // Check for the product ID, price, and quantity fields
+        if (!json.has("id")) {
+            log.debug("Product ID is missing. Command refused.");
+            try {
+                sendResponse(exchange, "Missing product ID", 400);
+            } catch (IOException e) {
+                log.warn("Error sending response", e);
+            }
+            return;
+        }
+
+        if (json.has("price") && json.optDouble("price", -1.0) < 0) {
+            log.debug("Price cannot be negative. Command refused.");
+            try {
+                sendResponse(exchange, "Price cannot be negative", 400);
+            } catch (IOException e) {
+                log.warn("Error sending response", e);
+            }
+            return;
+        }
+
+        if (json.has("quantity") && json.optInt("quantity", -1) < 0) {
+            log.debug("Quantity cannot be negative. Command refused.");
+            try {
+                sendResponse(exchange, "Quantity cannot be negative", 400);
+            } catch (IOException e) {
+                log.warn("Error sending response", e);
+            }
+            return;
+        }
+        int productId = json.getInt("id");
+        if(productId < 0){
+            try {
+                sendResponse(exchange, "ID can't be negative", 400);
+            } catch (IOException e) {
+                log.warn("Error sending response", e);
+            }
+        }
+        
+        try (PooledConnection conn = connectionPool.borrow()) {
+            log.debug("Updating product {}", productId);
+            StringBuilder sql = new StringBuilder("UPDATE products SET ");
             List<Object> params = new ArrayList<>();
             boolean needComma = false;
     
             if (json.has("name") && !json.optString("name").isEmpty()) {
-                System.out.println(json.get("name").toString());
+                log.debug("New name: {}", json.get("name"));
                 sql.append("name = ?");
                 params.add(json.getString("name"));
                 needComma = true;
@@ -443,56 +2294,291 @@ public class ProductService {
                 params.add(json.getDouble("price"));
                 needComma = true;
             }
-            if (json.has("quantity")) {
-                if (needComma) sql.append(", ");
-                sql.append("quantity = ?");
-                params.add(json.getInt("quantity"));
+            if (json.has("quantity")) {
+                if (needComma) sql.append(", ");
+                sql.append("quantity = ?");
+                params.add(json.getInt("quantity"));
+            }
+    
+            sql.append(" WHERE id = ?");
+            int affectedRows;
+            Product updated = null;
+            synchronized (productWriteLock) {
+                synchronized (productLock(productId)) {
+                    // In-memory reservations take neither lock, so remember where the quantity started to keep theirs
+                    int quantityBefore = inventory != null && json.has("quantity") ? inventory.quantity(productId) : 0;
+                    // The SET clause depends on the provided fields, so this statement is not cached
+                    try (PreparedStatement pstmtUpdate = conn.getConnection().prepareStatement(sql.toString())) {
+                        int paramIndex = 1;
+                        for (Object param : params) {
+                            pstmtUpdate.setObject(paramIndex++, param);
+                        }
+                        pstmtUpdate.setInt(paramIndex, productId);
+                        affectedRows = pstmtUpdate.executeUpdate();
+                    }
+
+                    if (affectedRows > 0) {
+                        PreparedStatement pstmtSelect = conn.prepare("SELECT * FROM products WHERE id = ?");
+                        pstmtSelect.setInt(1, productId);
+                        try (ResultSet rs = pstmtSelect.executeQuery()) {
+                            if (rs.next()) {
+                                updated = new Product(rs.getInt("id"), rs.getString("name"), rs.getString("description"),
+                                        rs.getDouble("price"), rs.getInt("quantity"));
+                                productCache.put(updated);
+                            } else {
+                                productCache.remove(productId);
+                            }
+                        }
+                        if (inventory != null && updated != null) {
+                            if (json.has("quantity")) {
+                                inventory.update(productId, quantityBefore, json.getInt("quantity"));
+                            }
+                            updated = inventory.current(updated);
+                        }
+                    }
+                }
+            }
+
+            if (affectedRows == 0) {
+                sendResponse(exchange, "Product not found", 400);
+            } else if (updated == null) {
+                sendResponse(exchange, "Product not found after update", 500);
+            } else {
+                JSONObject responseJson = new JSONObject();
+                responseJson.put("id", updated.id);
+                responseJson.put("name", updated.name);
+                responseJson.put("description", updated.description);
+                responseJson.put("price", updated.price);
+                responseJson.put("quantity", updated.quantity);
+
+                sendJson(exchange, responseJson, 200);
+            }
+        } catch (SQLException e) {
+            log.error("Error updating product: {}", e.getMessage());
+            try {
+                sendResponse(exchange, "Internal Server Error", 500);
+            } catch (IOException e1) {
+                log.warn("Error sending response", e1);
             }
+        } catch (IOException e) {
+            log.warn("IOException occurred while sending response: {}", e.getMessage());
+        }
+    }
     
-            sql.append(" WHERE id = ?");
-            try (PreparedStatement pstmtUpdate = conn.prepareStatement(sql.toString())) {
-                int paramIndex = 1;
-                for (Object param : params) {
-                    pstmtUpdate.setObject(paramIndex++, param);
+    /**
+     * This method takes the requested quantity out of the stock of a product in a single conditional update,
+     * so concurrent reservations for the same product can never oversell it.
+     * 
+     * It responds with the product ID and the remaining quantity and status code 200 if the stock was reserved,
+     * status code 409 if the product does not have enough stock and status code 400 if the product does not exist.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param json      The request body as a JSONObject
+     */
+    private static void reserveProduct(HttpExchange exchange, JSONObject json) {
+        if (json.has("quantities")) {
+            reserveInOrder(exchange, json);
+            return;
+        }
+        if (!json.has("id") || !json.has("quantity") || json.optInt("quantity", -1) < 0) {
+            log.debug("Missing or invalid fields. Command refused.");
+            try {
+                sendResponse(exchange, "Bad Request", 400);
+            } catch (IOException e) {
+                log.warn("Error sending response", e);
+            }
+            return;
+        }
+        int productId = json.getInt("id");
+        int quantity = json.getInt("quantity");
+        if (inventory != null) {
+            reserveFromInventory(exchange, productId, quantity);
+            return;
+        }
+
+        try (PooledConnection conn = connectionPool.borrow()) {
+            int affectedRows;
+            boolean productFound = false;
+            int remainingQuantity = 0;
+            synchronized (productLock(productId)) {
+                // Read the remaining stock in the same transaction as the update so it reflects this reservation
+                conn.getConnection().setAutoCommit(false);
+                PreparedStatement pstmtReserve = conn.prepare(
+                        "UPDATE products SET quantity = quantity - ? WHERE id = ? AND quantity >= ?");
+                pstmtReserve.setInt(1, quantity);
+                pstmtReserve.setInt(2, productId);
+                pstmtReserve.setInt(3, quantity);
+                affectedRows = pstmtReserve.executeUpdate();
+
+                PreparedStatement pstmtSelect = conn.prepare("SELECT quantity FROM products WHERE id = ?");
+                pstmtSelect.setInt(1, productId);
+                try (ResultSet rs = pstmtSelect.executeQuery()) {
+                    if (rs.next()) {
+                        productFound = true;
+                        remainingQuantity = rs.getInt("quantity");
+                    }
                 }
-                pstmtUpdate.setInt(paramIndex, productId);
-    
-                int affectedRows = pstmtUpdate.executeUpdate();
+                conn.getConnection().commit();
                 if (affectedRows > 0) {
-                    try (PreparedStatement pstmtSelect = conn.prepareStatement("SELECT * FROM products WHERE id = ?")) {
-                        pstmtSelect.setInt(1, productId);
-                        ResultSet rs = pstmtSelect.executeQuery();
-            
-                        if (rs.next()) {
-                            JSONObject responseJson = new JSONObject();
-                            responseJson.put("id", rs.getInt("id"));
-                            responseJson.put("name", rs.getString("name"));
-                            responseJson.put("description", rs.getString("description"));
-                            responseJson.put("price", rs.getDouble("price"));
-                            responseJson.put("quantity", rs.getInt("quantity"));
-            
-                            sendResponse(exchange, responseJson.toString(), 200);
-                        } else {
-                            sendResponse(exchange, "Product not found after update", 500);
+                    productCache.updateQuantity(productId, remainingQuantity);
+                }
+            }
+
+            if (!productFound) {
+                sendResponse(exchange, "Product not found", 400);
+            } else if (affectedRows == 0) {
+                sendResponse(exchange, "Exceeded quantity limit", 409);
+            } else {
+                JSONObject responseJson = new JSONObject();
+                responseJson.put("id", productId);
+                responseJson.put("quantity", remainingQuantity);
+                sendJson(exchange, responseJson, 200);
+            }
+        } catch (SQLException e) {
+            log.error("Error reserving product: {}", e.getMessage());
+            try {
+                sendResponse(exchange, "Internal Server Error", 500);
+            } catch (IOException e1) {
+                log.warn("Error sending response", e1);
+            }
+        } catch (IOException e) {
+            log.warn("IOException occurred while sending response: {}", e.getMessage());
+        }
+    }
+
+
+    /**
+     * This method reserves a list of quantities of one product, e.g. the orders OrderService collected for a hot
+     * product, with a single decrement. Each quantity is taken if it still fits after the ones before it, so the
+     * outcome is the same as reserving them one by one.
+     * 
+     * The request holds "id" and a "quantities" array. It responds with the product ID, the remaining quantity
+     * and a "reserved" array telling for each quantity whether it was taken, with status code 200, or with status
+     * code 400 if the product does not exist. A negative or missing quantity is not taken, but does not keep the
+     * others in the list from being taken.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param json      The request body as a JSONObject
+     */
+    private static void reserveInOrder(HttpExchange exchange, JSONObject json) {
+        JSONArray quantitiesJson = json.optJSONArray("quantities");
+        int[] quantities = quantitiesJson == null ? new int[0] : new int[quantitiesJson.length()];
+        for (int i = 0; i < quantities.length; i++) {
+            quantities[i] = quantitiesJson.optInt(i, -1);
+        }
+        if (!json.has("id") || quantities.length == 0) {
+            log.debug("Missing or invalid fields. Command refused.");
+            try {
+                sendResponse(exchange, "Bad Request", 400);
+            } catch (IOException e) {
+                log.warn("Error sending response", e);
+            }
+            return;
+        }
+        int productId = json.getInt("id");
+        boolean[] reserved = new boolean[quantities.length];
+
+        try {
+            int remainingQuantity;
+            if (inventory != null) {
+                remainingQuantity = inventory.reserveInOrder(productId, quantities, reserved);
+            } else {
+                remainingQuantity = InventoryEngine.NOT_FOUND;
+                try (PooledConnection conn = connectionPool.borrow()) {
+                    synchronized (productLock(productId)) {
+                        // A compare-and-set on the quantity read, so no transaction has to upgrade a read to a write
+                        while (true) {
+                            remainingQuantity = InventoryEngine.NOT_FOUND;
+                            PreparedStatement pstmtSelect = conn.prepare("SELECT quantity FROM products WHERE id = ?");
+                            pstmtSelect.setInt(1, productId);
+                            try (ResultSet rs = pstmtSelect.executeQuery()) {
+                                if (rs.next()) {
+                                    remainingQuantity = rs.getInt("quantity");
+                                }
+                            }
+                            if (remainingQuantity == InventoryEngine.NOT_FOUND) {
+                                break;
+                            }
+                            int available = remainingQuantity;
+                            for (int i = 0; i < quantities.length; i++) {
+                                reserved[i] = quantities[i] >= 0 && quantities[i] <= remainingQuantity;
+                                if (reserved[i]) {
+                                    remainingQuantity -= quantities[i];
+                                }
+                            }
+                            if (remainingQuantity == available) {
+                                break;
+                            }
+                            PreparedStatement pstmtReserve = conn.prepare(
+                                    "UPDATE products SET quantity = ? WHERE id = ? AND quantity = ?");
+                            pstmtReserve.setInt(1, remainingQuantity);
+                            pstmtReserve.setInt(2, productId);
+                            pstmtReserve.setInt(3, available);
+                            if (pstmtReserve.executeUpdate() > 0) {
+                                productCache.updateQuantity(productId, remainingQuantity);
+                                break;
+                            }
                         }
                     }
-                    
-                } else {
-                    sendResponse(exchange, "Product not found", 400);
                 }
             }
+
+            if (remainingQuantity == InventoryEngine.NOT_FOUND) {
+                sendResponse(exchange, "Product not found", 400);
+            } else {
+                JSONObject responseJson = new JSONObject();
+                responseJson.put("id", productId);
+                responseJson.put("quantity", remainingQuantity);
+                responseJson.put("reserved", new JSONArray(reserved));
+                sendJson(exchange, responseJson, 200);
+            }
         } catch (SQLException e) {
-            System.err.println(e.getMessage());
+            log.error("Error reserving product: {}", e.getMessage());
             try {
                 sendResponse(exchange, "Internal Server Error", 500);
             } catch (IOException e1) {
-                e1.printStackTrace();
+                log.warn("Error sending response", e1);
             }
         } catch (IOException e) {
-            System.err.println("IOException occurred while sending response: " + e.getMessage());
+            log.warn("IOException occurred while sending response: {}", e.getMessage());
         }
     }
-    
+
+
+    /**
+     * This method reserves stock with a compare-and-set on the in-memory inventory instead of an update in SQLite.
+     * It takes neither a connection nor the product write lock, and answers like reserveProduct.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param productId The product ID
+     * @param quantity  The quantity to reserve
+     */
+    private static void reserveFromInventory(HttpExchange exchange, int productId, int quantity) {
+        try {
+            int remainingQuantity = inventory.reserve(productId, quantity);
+            if (remainingQuantity == InventoryEngine.NOT_FOUND) {
+                sendResponse(exchange, "Product not found", 400);
+            } else if (remainingQuantity == InventoryEngine.INSUFFICIENT) {
+                sendResponse(exchange, "Exceeded quantity limit", 409);
+            } else {
+                JSONObject responseJson = new JSONObject();
+                responseJson.put("id", productId);
+                responseJson.put("quantity", remainingQuantity);
+                sendJson(exchange, responseJson, 200);
+            }
+        } catch (SQLException e) {
+            log.error("Error reserving product: {}", e.getMessage());
+            try {
+                sendResponse(exchange, "Internal Server Error", 500);
+            } catch (IOException e1) {
+                log.warn("Error sending response", e1);
+            }
+        } catch (IOException e) {
+            log.warn("IOException occurred while sending response: {}", e.getMessage());
+        }
+    }
+
+
     /**
      * This method deletes a product in the database if every required field is matched correctly.
      * 
@@ -504,43 +2590,481 @@ public class ProductService {
      * @param json      The request body as a JSONObject
      */
     private static void deleteProduct(HttpExchange exchange, JSONObject json) {
-        String url = getDatabaseUrl();
         if (!json.has("id") || !json.has("name") || !json.has("price") || !json.has("quantity")) {
-            System.err.println("Missing required fields. Command refused.");
+            log.debug("Missing required fields. Command refused.");
             try {
                 sendResponse(exchange, "Bad Request: Missing required fields", 400);
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("Error sending response", e);
             }
             return;
         }
     
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement pstmt = conn.prepareStatement(
-                     "DELETE FROM products WHERE id = ? AND name = ? AND price = ? AND quantity = ?")) {
+        try (PooledConnection conn = connectionPool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(
+                    "DELETE FROM products WHERE id = ? AND name = ? AND price = ? AND quantity = ?");
             pstmt.setInt(1, json.getInt("id"));
             pstmt.setString(2, json.getString("name"));
             pstmt.setDouble(3, json.getDouble("price"));
             pstmt.setInt(4, json.getInt("quantity"));
             
-            int affectedRows = pstmt.executeUpdate();
+            int affectedRows;
+            synchronized (productWriteLock) {
+                synchronized (productLock(json.getInt("id"))) {
+                    if (inventory == null) {
+                        affectedRows = pstmt.executeUpdate();
+                    } else {
+                        // SQLite may not have the latest quantity yet, so the quantity is matched in the inventory
+                        PreparedStatement pstmtMatch = conn.prepare("SELECT 1 FROM products WHERE id = ? AND name = ? AND price = ?");
+                        pstmtMatch.setInt(1, json.getInt("id"));
+                        pstmtMatch.setString(2, json.getString("name"));
+                        pstmtMatch.setDouble(3, json.getDouble("price"));
+                        boolean matched;
+                        try (ResultSet rs = pstmtMatch.executeQuery()) {
+                            matched = rs.next();
+                        }
+                        affectedRows = 0;
+                        if (matched && inventory.remove(json.getInt("id"), json.getInt("quantity"))) {
+                            PreparedStatement pstmtDelete = conn.prepare("DELETE FROM products WHERE id = ?");
+                            pstmtDelete.setInt(1, json.getInt("id"));
+                            affectedRows = pstmtDelete.executeUpdate();
+                        }
+                    }
+                    if (affectedRows > 0) {
+                        productCache.remove(json.getInt("id"));
+                    }
+                }
+            }
             
             if (affectedRows == 0) {
-                System.err.println("No product found or product could not be deleted.");
+                log.debug("No product found or product could not be deleted.");
                 sendResponse(exchange, "", 400); 
             } else {
                 sendResponse(exchange, "", 200); 
             }
             
         } catch (SQLException e) {
-            System.err.println(e.getMessage());
+            log.error("Error deleting product: {}", e.getMessage());
             try {
                 sendResponse(exchange, "Internal Server Error", 500);
             } catch (IOException e1) {
-                e1.printStackTrace();
+                log.warn("Error sending response", e1);
             } 
         } catch (IOException e) {
-            System.err.println("IOException occurred while sending response: " + e.getMessage());
+            log.warn("IOException occurred while sending response: {}", e.getMessage());
+        }
+    }
+
+
+    /**
+     * Holds the measurements this service exports on /metrics and renders them in the Prometheus text format.
+     * 
+     * A metric is registered once with its name, labels and the object that holds its value: a LongAdder or
+     * LongSupplier for counters, an AtomicLong or LongSupplier for gauges, and a Histogram for latencies.
+     */
+    static class Metrics {
+        private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+        /**
+         * A latency histogram with fixed buckets from 0.5 ms to 10 s.
+         */
+        static class Histogram {
+            // Upper bounds of the buckets in seconds, the +Inf bucket is the total count
+            private static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+            private final LongAdder[] bucketCounts = new LongAdder[BUCKETS.length];
+            private final LongAdder count = new LongAdder();
+            private final DoubleAdder sumSeconds = new DoubleAdder();
+
+            Histogram() {
+                for (int i = 0; i < bucketCounts.length; i++) {
+                    bucketCounts[i] = new LongAdder();
+                }
+            }
+
+            void observeNanos(long nanos) {
+                double seconds = nanos / 1e9;
+                int bucket = 0;
+                while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                    bucket++;
+                }
+                if (bucket < BUCKETS.length) {
+                    bucketCounts[bucket].increment();
+                }
+                count.increment();
+                sumSeconds.add(seconds);
+            }
+
+            void write(StringBuilder out, String name, String labels) {
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                long cumulative = 0;
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    cumulative += bucketCounts[i].sum();
+                    out.append(name).append("_bucket{").append(prefix).append("le=\"").append(BUCKETS[i]).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+                long total = count.sum();
+                out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(total).append('\n');
+                out.append(name).append("_sum").append(braces(labels)).append(' ').append(sumSeconds.sum()).append('\n');
+                out.append(name).append("_count").append(braces(labels)).append(' ').append(total).append('\n');
+            }
+        }
+
+        private static class Family {
+            final String type;
+            final String help;
+            final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+            Family(String type, String help) {
+                this.type = type;
+                this.help = help;
+            }
+        }
+
+        /**
+         * Formats label pairs, e.g. labels("handler", "/user", "command", "create").
+         */
+        static String labels(String... namesAndValues) {
+            StringBuilder labels = new StringBuilder();
+            for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+                if (labels.length() > 0) {
+                    labels.append(',');
+                }
+                String value = namesAndValues[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+                labels.append(namesAndValues[i]).append("=\"").append(value).append('"');
+            }
+            return labels.toString();
+        }
+
+        private static String braces(String labels) {
+            return labels.isEmpty() ? "" : "{" + labels + "}";
+        }
+
+        /**
+         * Returns the value already registered under the name and labels, or registers the given one.
+         */
+        @SuppressWarnings("unchecked")
+        private <T> T register(String name, String type, String help, String labels, T value) {
+            Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+            return (T) family.series.computeIfAbsent(labels, key -> value);
+        }
+
+        LongAdder counter(String name, String help, String labels) {
+            return register(name, "counter", help, labels, new LongAdder());
+        }
+
+        void counter(String name, String help, String labels, LongSupplier value) {
+            register(name, "counter", help, labels, value);
+        }
+
+        AtomicLong gauge(String name, String help, String labels) {
+            return register(name, "gauge", help, labels, new AtomicLong());
+        }
+
+        void gauge(String name, String help, String labels, LongSupplier value) {
+            register(name, "gauge", help, labels, value);
+        }
+
+        Histogram histogram(String name, String help, String labels) {
+            return register(name, "histogram", help, labels, new Histogram());
+        }
+
+        void histogram(String name, String help, String labels, Histogram histogram) {
+            register(name, "histogram", help, labels, histogram);
+        }
+
+        String render() {
+            StringBuilder out = new StringBuilder(4096);
+            families.forEach((name, family) -> {
+                out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+                family.series.forEach((labels, value) -> {
+                    if (value instanceof Histogram) {
+                        ((Histogram) value).write(out, name, labels);
+                        return;
+                    }
+                    long number;
+                    if (value instanceof LongAdder) {
+                        number = ((LongAdder) value).sum();
+                    } else if (value instanceof AtomicLong) {
+                        number = ((AtomicLong) value).get();
+                    } else {
+                        number = ((LongSupplier) value).getAsLong();
+                    }
+                    out.append(name).append(braces(labels)).append(' ').append(number).append('\n');
+                });
+            });
+            return out.toString();
+        }
+    }
+
+
+    /**
+     * Wraps a handler to count its requests and errors, track how many are in flight and time them, per command.
+     * 
+     * The wrapped handler reports the command of a POST request through the "command" exchange attribute. Commands
+     * outside the expected set are counted as "other", so clients cannot create new series. With no expected
+     * commands, requests are counted by method only.
+     */
+    static class InstrumentedHandler implements HttpHandler {
+        static final String COMMAND_ATTRIBUTE = "command";
+
+        private final String path;
+        private final Set<String> commands;
+        private final HttpHandler handler;
+        private final AtomicLong inFlight;
+
+        public InstrumentedHandler(String path, Set<String> commands, HttpHandler handler) {
+            this.path = path;
+            this.commands = commands;
+            this.handler = handler;
+            this.inFlight = metrics.gauge("http_requests_in_flight", "Requests currently being handled.",
+                    Metrics.labels("handler", path));
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            inFlight.incrementAndGet();
+            boolean failed = true;
+            try {
+                handler.handle(exchange);
+                failed = exchange.getResponseCode() == -1 || exchange.getResponseCode() >= 500;
+            } finally {
+                inFlight.decrementAndGet();
+                Object command = exchange.getAttribute(COMMAND_ATTRIBUTE);
+                String label;
+                if (!"POST".equals(exchange.getRequestMethod()) || commands.isEmpty()) {
+                    label = exchange.getRequestMethod();
+                } else {
+                    label = command != null && commands.contains(command) ? (String) command : "other";
+                }
+                String labels = Metrics.labels("handler", path, "command", label);
+                metrics.counter("http_requests_total", "Requests handled.", labels).increment();
+                if (failed) {
+                    metrics.counter("http_request_errors_total", "Requests that failed or were answered with a 5xx status.", labels).increment();
+                }
+                metrics.histogram("http_request_duration_seconds", "Time to handle a request.", labels).observeNanos(System.nanoTime() - start);
+            }
+        }
+    }
+
+
+    /**
+     * Serves the metrics of this service in the Prometheus text format.
+     */
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, metrics.render().getBytes(StandardCharsets.UTF_8), 200, "text/plain; version=0.0.4; charset=utf-8");
+        }
+    }
+
+
+    /**
+     * The SLF4J provider of this service. Its loggers format enabled messages on the calling thread and queue them
+     * for a single writer thread, so a request never waits for the console.
+     * 
+     * The writer drains the queue in batches and writes each batch with one call per stream. When the queue is full,
+     * messages below WARN are dropped and counted rather than holding up the request; warnings and errors wait.
+     * Disabled levels cost only a volatile read, and the messages of disabled levels are never formatted.
+     * 
+     * Each service is a single source file compiled against lib/, which holds only slf4j-api, so a stock
+     * asynchronous appender such as logback's AsyncAppender would add a logging backend and its configuration
+     * file to every service. Instead this provider is copied into each service, and the copies are kept identical.
+     */
+    public static class AsyncLogProvider implements SLF4JServiceProvider {
+        private static final int QUEUE_CAPACITY = 8192;
+        private static final int BATCH_SIZE = 512;
+        // Named after the service, so this class is the same in every service
+        private static final String WRITER_THREAD = AsyncLogProvider.class.getEnclosingClass().getSimpleName() + "-log-writer";
+        private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+        private static final BlockingQueue<LogLine> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private static final AtomicLong dropped = new AtomicLong();
+        private static final Object writeLock = new Object();
+        private static long reportedDrops = 0; // Guarded by writeLock
+        private static volatile int threshold = Level.INFO.toInt();
+
+        private final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+        private final ILoggerFactory loggerFactory = name -> loggers.computeIfAbsent(name, AsyncLogger::new);
+        private final IMarkerFactory markerFactory = new BasicMarkerFactory();
+        private final MDCAdapter mdcAdapter = new BasicMDCAdapter();
+
+        private static class LogLine {
+            final long timeMillis = System.currentTimeMillis();
+            final String thread = Thread.currentThread().getName();
+            final Level level;
+            final String logger;
+            final String message;
+            final Throwable throwable;
+
+            LogLine(Level level, String logger, String message, Throwable throwable) {
+                this.level = level;
+                this.logger = logger;
+                this.message = message;
+                this.throwable = throwable;
+            }
+        }
+
+        private static class AsyncLogger extends LegacyAbstractLogger {
+            private static final long serialVersionUID = 1L;
+
+            AsyncLogger(String name) {
+                this.name = name;
+            }
+
+            @Override
+            public boolean isTraceEnabled() {
+                return threshold <= Level.TRACE.toInt();
+            }
+
+            @Override
+            public boolean isDebugEnabled() {
+                return threshold <= Level.DEBUG.toInt();
+            }
+
+            @Override
+            public boolean isInfoEnabled() {
+                return threshold <= Level.INFO.toInt();
+            }
+
+            @Override
+            public boolean isWarnEnabled() {
+                return threshold <= Level.WARN.toInt();
+            }
+
+            @Override
+            public boolean isErrorEnabled() {
+                return threshold <= Level.ERROR.toInt();
+            }
+
+            @Override
+            protected String getFullyQualifiedCallerName() {
+                return null;
+            }
+
+            @Override
+            protected void handleNormalizedLoggingCall(Level level, Marker marker, String pattern, Object[] arguments, Throwable throwable) {
+                String message = arguments == null || arguments.length == 0 ? pattern : MessageFormatter.basicArrayFormat(pattern, arguments);
+                LogLine line = new LogLine(level, name, message, throwable);
+                if (level.toInt() >= Level.WARN.toInt()) {
+                    try {
+                        queue.put(line);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (!queue.offer(line)) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Sets the lowest level that is logged: TRACE, DEBUG, INFO, WARN, ERROR or OFF.
+         */
+        static void setLevel(String levelName) {
+            if ("OFF".equalsIgnoreCase(levelName)) {
+                threshold = Integer.MAX_VALUE;
+                return;
+            }
+            try {
+                threshold = Level.valueOf(levelName.toUpperCase()).toInt();
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log level " + levelName + ", logging at INFO");
+                threshold = Level.INFO.toInt();
+            }
+        }
+
+        /**
+         * Returns how many messages were dropped since startup because the queue was full.
+         */
+        static long getDroppedCount() {
+            return dropped.get();
+        }
+
+        @Override
+        public void initialize() {
+            Thread writer = new Thread(AsyncLogProvider::runWriter, WRITER_THREAD);
+            writer.setDaemon(true);
+            writer.start();
+            // Write what is still queued when the JVM exits, a batch at a time
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                while (!queue.isEmpty()) {
+                    writeBatch(new ArrayList<>(BATCH_SIZE));
+                }
+            }));
+        }
+
+        private static void runWriter() {
+            List<LogLine> batch = new ArrayList<>(BATCH_SIZE);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+
+        private static void writeBatch(List<LogLine> batch) {
+            synchronized (writeLock) {
+                queue.drainTo(batch, BATCH_SIZE - batch.size());
+                StringBuilder out = new StringBuilder();
+                StringBuilder err = new StringBuilder();
+                for (LogLine line : batch) {
+                    StringBuilder target = line.level.toInt() >= Level.WARN.toInt() ? err : out;
+                    target.append(TIMESTAMP.format(Instant.ofEpochMilli(line.timeMillis))).append(' ')
+                            .append(line.level).append(line.level.toString().length() == 4 ? "  [" : " [")
+                            .append(line.thread).append("] ").append(line.logger).append(" - ").append(line.message)
+                            .append(System.lineSeparator());
+                    if (line.throwable != null) {
+                        StringWriter trace = new StringWriter();
+                        line.throwable.printStackTrace(new PrintWriter(trace));
+                        target.append(trace);
+                    }
+                }
+                long lost = dropped.get() - reportedDrops;
+                if (lost > 0) {
+                    reportedDrops += lost;
+                    err.append(TIMESTAMP.format(Instant.now())).append(" WARN  [").append(WRITER_THREAD).append("] ").append(AsyncLogProvider.class.getName())
+                            .append(" - Dropped ").append(lost).append(" log messages, the queue was full").append(System.lineSeparator());
+                }
+                if (out.length() > 0) {
+                    System.out.print(out);
+                    System.out.flush();
+                }
+                if (err.length() > 0) {
+                    System.err.print(err);
+                    System.err.flush();
+                }
+            }
+        }
+
+        @Override
+        public ILoggerFactory getLoggerFactory() {
+            return loggerFactory;
+        }
+
+        @Override
+        public IMarkerFactory getMarkerFactory() {
+            return markerFactory;
+        }
+
+        @Override
+        public MDCAdapter getMDCAdapter() {
+            return mdcAdapter;
+        }
+
+        @Override
+        public String getRequestedApiVersion() {
+            return "2.0.99";
         }
     }
 }
@@ -1,35 +1,137 @@
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.Headers;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.net.InetSocketAddress;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 import org.json.*;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.IMarkerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.BasicMDCAdapter;
+import org.slf4j.helpers.BasicMarkerFactory;
+import org.slf4j.helpers.LegacyAbstractLogger;
+import org.slf4j.helpers.MessageFormatter;
+import org.slf4j.spi.MDCAdapter;
+import org.slf4j.spi.SLF4JServiceProvider;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 
 
 public class UserService {
 
+    // SLF4J has to be pointed at AsyncLogProvider before the first logger is created, by this class or by a library
+    static {
+        if (System.getProperty("slf4j.provider") == null) {
+            System.setProperty("slf4j.provider", AsyncLogProvider.class.getName());
+        }
+    }
+    private static final Logger log = LoggerFactory.getLogger(UserService.class);
+
+    private static ConnectionPool connectionPool;
+    // The database all services shared before each had its own, in the Database directory
+    private static final String LEGACY_DATABASE = "info.db";
+    // The value of PRAGMA user_version from which on the users table holds password hashes
+    private static final int HASHED_PASSWORDS_VERSION = 1;
+    // A SHA-256 digest per thread, since creating one looks up the security provider
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Metrics metrics = new Metrics();
+    private static int maxRequestBytes = 1048576;
+    private static int gzipMinBytes = 1024;
+
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+    // The messages this service answers with, already encoded
+    private static final Map<String, byte[]> CONSTANT_BODIES = new HashMap<>();
+    static {
+        for (String message : new String[] {
+            "Bad Request",
+            "Bad Request: Missing required fields",
+            "Internal Server Error",
+            "Please enter User ID",
+            "Success",
+            "Unknown command",
+            "User ID already exists",
+            "User ID does not exist",
+            "User not found",
+            "User not found after update"}) {
+            CONSTANT_BODIES.put(message, message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
     /**
      * Class to hold the configuration details for a service
      */
     static class ServiceConfig {
         int port;
         String ip;
+        String executorMode = "platform";
+        int executorThreads = 20;
+        int executorQueueCapacity = 1000;
+        int poolSize = 8;
+        long poolWaitTimeoutMillis = 5000;
+        String journalMode = "WAL";
+        String synchronous = "NORMAL";
+        long busyTimeoutMillis = 5000;
+        long mmapSizeBytes = 268435456;
+        long cacheSizeKib = 16384;
+        int maxRequestBytes = 1048576;
+        int gzipMinBytes = 1024;
+        String logLevel = "INFO";
+        String database = "users.db";
 
 
         public ServiceConfig(int port, String ip) {
@@ -63,9 +165,49 @@ public class UserService {
             JSONObject serviceConfig = jsonObject.getJSONObject(serviceName);
             int port = serviceConfig.getInt("port");
             String ip = serviceConfig.getString("ip");
-            return new ServiceConfig(port, ip);
+            ServiceConfig config = new ServiceConfig(port, ip);
+            config.database = serviceConfig.optString("database", config.database);
+
+            // The executor configuration is optional and shared by all services
+            JSONObject executorConfig = jsonObject.optJSONObject("Executor");
+            if (executorConfig != null) {
+                config.executorMode = executorConfig.optString("mode", config.executorMode);
+                config.executorThreads = executorConfig.optInt("threads", config.executorThreads);
+                config.executorQueueCapacity = executorConfig.optInt("queueCapacity", config.executorQueueCapacity);
+            }
+
+            // The connection pool configuration is optional and shared by all services
+            JSONObject poolConfig = jsonObject.optJSONObject("ConnectionPool");
+            if (poolConfig != null) {
+                config.poolSize = poolConfig.optInt("size", config.poolSize);
+                config.poolWaitTimeoutMillis = poolConfig.optLong("waitTimeoutMs", config.poolWaitTimeoutMillis);
+            }
+
+            // The SQLite storage settings are optional and shared by all services
+            JSONObject storageConfig = jsonObject.optJSONObject("Storage");
+            if (storageConfig != null) {
+                config.journalMode = storageConfig.optString("journalMode", config.journalMode);
+                config.synchronous = storageConfig.optString("synchronous", config.synchronous);
+                config.busyTimeoutMillis = storageConfig.optLong("busyTimeoutMs", config.busyTimeoutMillis);
+                config.mmapSizeBytes = storageConfig.optLong("mmapSizeBytes", config.mmapSizeBytes);
+                config.cacheSizeKib = storageConfig.optLong("cacheSizeKb", config.cacheSizeKib);
+            }
+
+            // Extracting the optional HTTP limits shared by all services
+            JSONObject httpConfig = jsonObject.optJSONObject("Http");
+            if (httpConfig != null) {
+                config.maxRequestBytes = httpConfig.optInt("maxRequestBytes", config.maxRequestBytes);
+                config.gzipMinBytes = httpConfig.optInt("gzipMinBytes", config.gzipMinBytes);
+            }
+
+            // The log level is optional and shared by all services
+            JSONObject loggingConfig = jsonObject.optJSONObject("Logging");
+            if (loggingConfig != null) {
+                config.logLevel = loggingConfig.optString("level", config.logLevel);
+            }
+            return config;
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Error reading config", e);
             return null;
         }
     }
@@ -74,24 +216,71 @@ public class UserService {
     /**
      * This method hashes the given password using SHA-256.
      * 
+     * Passwords are hashed once when they are written, and the users table stores only the hash.
+     * 
      * @param passwordToHash   The password to hash
-     * @return                 The hashed password using SHA-256
+     * @return                 The hashed password using SHA-256, as lowercase hex
      */
     private static String hashPassword(String passwordToHash) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] encodedhash = digest.digest(passwordToHash.getBytes(StandardCharsets.UTF_8));
-            StringBuilder hexString = new StringBuilder(2 * encodedhash.length);
-            for (int i = 0; i < encodedhash.length; i++) {
-                String hex = Integer.toHexString(0xff & encodedhash[i]);
-                if (hex.length() == 1) {
-                    hexString.append('0');
+        byte[] encodedhash = SHA_256.get().digest(passwordToHash.getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[2 * encodedhash.length];
+        for (int i = 0; i < encodedhash.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(encodedhash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[encodedhash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+
+    /**
+     * Hashes the passwords of a users table that still holds them in plain text.
+     * 
+     * Until now the table stored plain-text passwords and every response hashed them again. The schema version in
+     * PRAGMA user_version records that the table holds hashes, so the migration runs only once. A database without
+     * a users table yet is simply marked as migrated.
+     * 
+     * @param conn  A connection to the database
+     * @throws SQLException If the migration failed, in which case nothing was changed
+     */
+    private static void migratePasswords(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            // Take the write lock before reading, so another service writing at startup makes this wait, not fail
+            stmt.execute("BEGIN IMMEDIATE");
+            try {
+                int version;
+                try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+                    version = rs.next() ? rs.getInt(1) : 0;
+                }
+                if (version >= HASHED_PASSWORDS_VERSION) {
+                    stmt.execute("ROLLBACK");
+                    return;
+                }
+
+                boolean hasUsers;
+                try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'users'")) {
+                    hasUsers = rs.next();
+                }
+                int migrated = 0;
+                if (hasUsers) {
+                    try (PreparedStatement select = conn.prepareStatement("SELECT id, password FROM users");
+                         PreparedStatement update = conn.prepareStatement("UPDATE users SET password = ? WHERE id = ?");
+                         ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            update.setString(1, hashPassword(rs.getString(2)));
+                            update.setInt(2, rs.getInt(1));
+                            update.addBatch();
+                            migrated++;
+                        }
+                        update.executeBatch();
+                    }
                 }
-                hexString.append(hex);
+                stmt.executeUpdate("PRAGMA user_version = " + HASHED_PASSWORDS_VERSION);
+                stmt.execute("COMMIT");
+                log.info("Hashed the stored passwords of {} users", migrated);
+            } catch (SQLException e) {
+                stmt.execute("ROLLBACK");
+                throw e;
             }
-            return hexString.toString();
-        } catch (Exception ex) {
-            throw new RuntimeException("Error hashing password", ex);
         }
     }
 
@@ -118,34 +307,398 @@ public class UserService {
         path = parentPath.getParent().toString();  
         ServiceConfig userServiceConfig = readConfig(path + "/config.json", "UserService");
         if (userServiceConfig == null) {
-            System.err.println("Failed to read config for UserService. Using default settings.");
+            log.warn("Failed to read config for UserService. Using default settings.");
             userServiceConfig = new ServiceConfig(14001, "127.0.0.1"); 
         }
+        AsyncLogProvider.setLevel(userServiceConfig.logLevel);
+        metrics.counter("log_messages_dropped_total", "Log messages dropped because the log queue was full.", "",
+                AsyncLogProvider::getDroppedCount);
+        try {
+            Path database = getDatabaseDirectory().resolve(userServiceConfig.database);
+            connectionPool = new ConnectionPool("jdbc:sqlite:" + database, getStorageProperties(userServiceConfig),
+                    userServiceConfig.poolSize, userServiceConfig.poolWaitTimeoutMillis);
+            log.info("Storage: {}", connectionPool.describeStorage());
+            connectionPool.registerMetrics(metrics);
+            try (PooledConnection conn = connectionPool.borrow()) {
+                initTables(conn.getConnection(), database);
+                migratePasswords(conn.getConnection());
+            }
+        } catch (SQLException e) {
+            log.error("Error preparing the database: {}", e.getMessage());
+            return;
+        }
         int port = userServiceConfig.getPort();
+        // Send the response headers and body without waiting for the client to acknowledge the headers first
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         HttpServer server = HttpServer.create(new InetSocketAddress(userServiceConfig.getIp(), port), 0);
-        server.setExecutor(Executors.newFixedThreadPool(20)); 
-        server.createContext("/user", new UserHandler(server));
-        server.setExecutor(null); 
+        server.setExecutor(createExecutor(userServiceConfig));
+        maxRequestBytes = Math.max(0, Math.min(userServiceConfig.maxRequestBytes, Integer.MAX_VALUE - 1));
+        gzipMinBytes = userServiceConfig.gzipMinBytes;
+        server.createContext("/user", new InstrumentedHandler("/user",
+                Set.of("create", "update", "delete", "reset", "shutdown"), new UserHandler(server)));
+        server.createContext("/metrics", new MetricsHandler());
         server.start();
-        System.out.println("Server started on port " + port);
+        log.info("Server started on port {}", port);
     }
 
     
     /**
-     * Returns the database URL for the SQLite database.
+     * Creates the executor that the HttpServer runs its handlers on.
+     * 
+     * In "platform" mode requests run on a fixed pool of executorThreads threads with at most executorQueueCapacity
+     * requests waiting. When the queue is full the dispatcher thread runs the request itself, so it stops accepting
+     * new connections until the pool catches up.
+     * 
+     * In "virtual" mode every request gets its own virtual thread and at most executorQueueCapacity requests are in
+     * flight at once. Virtual threads need Java 21, so older runtimes fall back to the platform pool.
      * 
-     * @return  The database URL
+     * @param config    The service configuration
+     * @return          The executor for the HttpServer
      */
-    private static String getDatabaseUrl() {
-        String path = System.getProperty("user.dir");
+    private static Executor createExecutor(ServiceConfig config) {
+        int threads = Math.max(1, config.executorThreads);
+        int queueCapacity = Math.max(1, config.executorQueueCapacity);
 
-        // Convert the string path to a Path object
-        Path currentPath = Paths.get(path);
+        if ("virtual".equalsIgnoreCase(config.executorMode)) {
+            try {
+                Executor virtualExecutor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                Semaphore inFlight = new Semaphore(queueCapacity);
+                log.info("Using virtual threads with at most {} requests in flight", queueCapacity);
+                return task -> {
+                    inFlight.acquireUninterruptibly();
+                    try {
+                        virtualExecutor.execute(() -> {
+                            try {
+                                task.run();
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        inFlight.release();
+                        throw e;
+                    }
+                };
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not available on this JVM. Using a platform thread pool.");
+            }
+        }
 
-        // Get the parent of the current path
-        path = currentPath.getParent().toString();
-        String databasePath = path + "/Database/info.db";
-        return "jdbc:sqlite:" + databasePath;
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "UserService-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true); // Let the JVM exit once the server has been stopped
+            return thread;
+        };
+        log.info("Using {} platform threads with a queue of {} requests", threads, queueCapacity);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+
+    /**
+     * Returns the configured SQLite pragmas as connection properties. The driver applies them to every connection
+     * it opens, so all pooled connections share the same settings.
+     * 
+     * @param config    The service configuration
+     * @return          The connection properties
+     */
+    private static Properties getStorageProperties(ServiceConfig config) {
+        Properties properties = new Properties();
+        properties.setProperty("journal_mode", config.journalMode);
+        properties.setProperty("synchronous", config.synchronous);
+        properties.setProperty("busy_timeout", Long.toString(config.busyTimeoutMillis));
+        properties.setProperty("mmap_size", Long.toString(config.mmapSizeBytes));
+        // SQLite reads a negative cache size as KiB instead of pages
+        properties.setProperty("cache_size", Long.toString(-config.cacheSizeKib));
+        return properties;
+    }
+
+
+    /**
+     * Returns the Database directory next to the service's working directory. The "database" setting of the service
+     * is resolved against it.
+     * 
+     * @return  The directory of the databases
+     */
+    private static Path getDatabaseDirectory() {
+        return Paths.get(System.getProperty("user.dir")).getParent().resolve("Database");
+    }
+
+
+    /**
+     * This method creates the users table if it does not exist yet.
+     * 
+     * The services used to share one database, Database/info.db. A users table created here is filled from the one
+     * in info.db if there is one, and takes over its schema version so migratePasswords knows whether the copied
+     * passwords are already hashed.
+     * 
+     * @param conn      A connection to the database of this service
+     * @param database  The path of that database
+     * @throws SQLException
+     */
+    private static void initTables(Connection conn, Path database) throws SQLException {
+        boolean isNew;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'users'")) {
+            isNew = !rs.next();
+        }
+        createTables(conn);
+
+        Path legacy = getDatabaseDirectory().resolve(LEGACY_DATABASE);
+        if (!isNew || !Files.exists(legacy) || legacy.equals(database.normalize())) {
+            return;
+        }
+        try (PreparedStatement attach = conn.prepareStatement("ATTACH DATABASE ? AS legacy")) {
+            attach.setString(1, legacy.toString());
+            attach.execute();
+        }
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM legacy.sqlite_master WHERE type = 'table' AND name = 'users'")) {
+                if (!rs.next()) {
+                    return;
+                }
+            }
+            stmt.execute("BEGIN IMMEDIATE");
+            try {
+                int copied = stmt.executeUpdate("INSERT INTO main.users (id, username, email, password) " +
+                                                "SELECT id, username, email, password FROM legacy.users");
+                try (ResultSet rs = stmt.executeQuery("PRAGMA legacy.user_version")) {
+                    stmt.executeUpdate("PRAGMA main.user_version = " + (rs.next() ? rs.getInt(1) : 0));
+                }
+                stmt.execute("COMMIT");
+                log.info("Copied {} users from {}", copied, legacy);
+            } catch (SQLException e) {
+                stmt.execute("ROLLBACK");
+                throw e;
+            }
+        } finally {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DETACH DATABASE legacy");
+            }
+        }
+    }
+
+
+    /**
+     * This method creates the users table if it does not exist.
+     * 
+     * @param conn  The connection to the database
+     * @throws SQLException
+     */
+    private static void createTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS users (" +
+                         "id INTEGER PRIMARY KEY, " +
+                         "username TEXT NOT NULL, " +
+                         "email TEXT NOT NULL, " +
+                         "password TEXT NOT NULL);");
+        }
+    }
+
+
+    /**
+     * This method drops the users table and creates it again, empty.
+     * 
+     * @param exchange  The HttpExchange object
+     * @throws IOException
+     */
+    private static void resetUsers(HttpExchange exchange) throws IOException {
+        try (PooledConnection conn = connectionPool.borrow();
+             Statement stmt = conn.getConnection().createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS users;");
+            createTables(conn.getConnection());
+        } catch (SQLException e) {
+            log.error("Error resetting the users table: {}", e.getMessage());
+            sendResponse(exchange, "Internal Server Error", 500);
+            return;
+        }
+        log.info("Users table reset");
+        sendResponse(exchange, "Success", 200);
+    }
+
+
+    /**
+     * A fixed-size pool of long-lived SQLite connections shared by all handlers of the service.
+     * 
+     * Every connection is opened once at startup and keeps a cache of the prepared statements for the fixed SQL
+     * strings it has executed, so a request neither reopens the database file nor recompiles its statements.
+     */
+    static class ConnectionPool {
+        private final BlockingQueue<PooledConnection> idleConnections;
+        private final int size;
+        private final long waitTimeoutMillis;
+        private final AtomicLong borrowCount = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        // Time spent waiting for a connection and time it was held, which is mostly spent in SQLite
+        final Metrics.Histogram waitTimes = new Metrics.Histogram();
+        final Metrics.Histogram holdTimes = new Metrics.Histogram();
+
+        public ConnectionPool(String url, Properties properties, int size, long waitTimeoutMillis) throws SQLException {
+            this.size = Math.max(1, size);
+            this.waitTimeoutMillis = waitTimeoutMillis;
+            this.idleConnections = new ArrayBlockingQueue<>(this.size);
+            for (int i = 0; i < this.size; i++) {
+                idleConnections.add(new PooledConnection(DriverManager.getConnection(url, properties), this));
+            }
+        }
+
+        /**
+         * Reads back the storage settings SQLite is actually using on a pooled connection. They can differ from
+         * the requested ones, e.g. when the file system does not support WAL.
+         * 
+         * @return  The effective pragma values
+         * @throws SQLException If the settings could not be read
+         */
+        public String describeStorage() throws SQLException {
+            StringBuilder settings = new StringBuilder();
+            try (PooledConnection conn = borrow(); Statement stmt = conn.getConnection().createStatement()) {
+                for (String pragma : new String[] {"journal_mode", "synchronous", "busy_timeout", "mmap_size", "cache_size"}) {
+                    try (ResultSet rs = stmt.executeQuery("PRAGMA " + pragma)) {
+                        if (settings.length() > 0) {
+                            settings.append(' ');
+                        }
+                        settings.append(pragma).append('=').append(rs.next() ? rs.getString(1) : "?");
+                    }
+                }
+            }
+            return settings.toString();
+        }
+
+        /**
+         * Takes a connection from the pool, waiting up to the configured timeout for one to be returned.
+         * 
+         * @return  A connection that goes back to the pool when it is closed
+         * @throws SQLException If no connection became available in time
+         */
+        public PooledConnection borrow() throws SQLException {
+            long start = System.nanoTime();
+            PooledConnection connection;
+            try {
+                connection = idleConnections.poll(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", e);
+            }
+            long waited = System.nanoTime() - start;
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+            borrowCount.incrementAndGet();
+            totalWaitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            waitTimes.observeNanos(waited);
+            connection.borrowedAtNanos = System.nanoTime();
+            return connection;
+        }
+
+        private void release(PooledConnection connection) {
+            holdTimes.observeNanos(System.nanoTime() - connection.borrowedAtNanos);
+            idleConnections.offer(connection);
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getIdleCount() {
+            return idleConnections.size();
+        }
+
+        public int getActiveCount() {
+            return size - idleConnections.size();
+        }
+
+        public long getBorrowCount() {
+            return borrowCount.get();
+        }
+
+        public long getTotalWaitNanos() {
+            return totalWaitNanos.get();
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            long borrows = borrowCount.get();
+            double averageWaitMillis = borrows == 0 ? 0 : totalWaitNanos.get() / 1_000_000.0 / borrows;
+            return String.format("size=%d active=%d idle=%d borrows=%d avgWaitMs=%.3f maxWaitMs=%.3f",
+                    size, getActiveCount(), getIdleCount(), borrows, averageWaitMillis, maxWaitNanos.get() / 1_000_000.0);
+        }
+
+        /**
+         * Exports the pool's size, usage and timings to the given registry.
+         */
+        public void registerMetrics(Metrics metrics) {
+            metrics.gauge("db_pool_connections", "Connections in the pool.", "", () -> size);
+            metrics.gauge("db_pool_active_connections", "Connections currently borrowed.", "", this::getActiveCount);
+            metrics.counter("db_pool_borrows_total", "Connections borrowed from the pool.", "", borrowCount::get);
+            metrics.histogram("db_pool_wait_seconds", "Time spent waiting for a connection.", "", waitTimes);
+            metrics.histogram("db_pool_hold_seconds", "Time a connection was held, including its SQL statements.", "", holdTimes);
+        }
+    }
+
+
+    /**
+     * A connection borrowed from the ConnectionPool. Closing it returns it to the pool instead of closing the database.
+     */
+    static class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final ConnectionPool pool;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long borrowedAtNanos;
+
+        PooledConnection(Connection connection, ConnectionPool pool) {
+            this.connection = connection;
+            this.pool = pool;
+        }
+
+        /**
+         * Returns the cached prepared statement for the given SQL, preparing it on first use.
+         * 
+         * Only use this for fixed SQL strings. The statement belongs to the connection and must not be closed by the caller.
+         * 
+         * @param sql   The SQL statement
+         * @return      The prepared statement with its parameters cleared
+         * @throws SQLException
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return prepare(sql, Statement.NO_GENERATED_KEYS);
+        }
+
+        public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        /**
+         * Returns the underlying connection, for statements built at runtime that cannot be cached.
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } finally {
+                pool.release(this);
+            }
+        }
     }
 
 
@@ -168,6 +721,7 @@ public class UserService {
          *    - create: Creates a new user in the database if every required field is provided correctly and the provided user ID does not already exist in the database.
          *    - update: Updates the information of an existing user in the database if the provided user ID exists in the database.
          *    - delete: Deletes an existing user from the database if every required field is matched correctly.
+         *    - reset: Drops every user, sent by OrderService when it starts without a restart.
          *    - shutdown: Shuts down the server.
          * 
          * @param exchange  The HttpExchange object
@@ -176,14 +730,24 @@ public class UserService {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equals(exchange.getRequestMethod())) {
-                String requestBody = getRequestBody(exchange);
-                System.out.println("Received POST request with body: " + requestBody);
-                JSONObject json = new JSONObject(requestBody); // This requires a JSON library
+                JSONObject json;
+                try {
+                    json = readRequestJson(exchange);
+                } catch (RequestTooLargeException e) {
+                    sendResponse(exchange, e.getMessage(), 413);
+                    return;
+                }
+                log.debug("Received POST request with body: {}", json);
                 String command = json.optString("command");
-                System.out.println(command);
+                log.debug("Command: {}", command);
+                exchange.setAttribute(InstrumentedHandler.COMMAND_ATTRIBUTE, command);
                 switch (command) {
                     case "create":
-                        createUser(exchange, json);
+                        if (json.has("users")) {
+                            createUsers(exchange, json.optJSONArray("users"));
+                        } else {
+                            createUser(exchange, json);
+                        }
                         break;
                     case "update":
                         updateUser(exchange, json);
@@ -191,66 +755,76 @@ public class UserService {
                     case "delete":
                         deleteUser(exchange, json);
                         break;
+                    case "reset":
+                        resetUsers(exchange);
+                        break;
                     case "shutdown":
-                        System.out.println("Shutting down");
+                        log.info("Shutting down");
                         handleShutdownCommand(exchange, server);
                         break;
                     default:
                         sendResponse(exchange, "Unknown command", 400);
                         return;
                 }
-    
-                String response = "Command processed";
-                sendResponse(exchange, response, 200);
             } else if ("GET".equals(exchange.getRequestMethod())) {
+                int[] ids;
+                try {
+                    ids = parseIds(exchange.getRequestURI());
+                } catch (NumberFormatException e) {
+                    sendResponse(exchange, "Bad Request", 400);
+                    return;
+                }
+                if (ids != null) {
+                    getUsers(exchange, ids);
+                    return;
+                }
                 String requestURI = exchange.getRequestURI().toString();
                 String[] uri = requestURI.split("/");
                 String idStr = "";
                 try{
                     idStr = uri[2];
                 }catch(Exception e){
-                    System.err.println(e.getMessage());
+                    log.debug("No user ID in {}", requestURI);
                     sendResponse(exchange, "Please enter User ID", 400);
                     exchange.close();
+                    return;
                 }
                 
                 
                 int id = Integer.parseInt(idStr); // Parse the string to an integer
-                String url = getDatabaseUrl();
-                
             
-                try (Connection conn = DriverManager.getConnection(url);
-                        PreparedStatement query = conn.prepareStatement("SELECT * FROM users WHERE id = ?")) {
-                    
+                try (PooledConnection conn = connectionPool.borrow()) {
+                    PreparedStatement query = conn.prepare("SELECT * FROM users WHERE id = ?");
                     query.setInt(1, id); // Set the id as an integer
-                    ResultSet rs = query.executeQuery();
             
-                    if (rs.next()) {
-                        String name = rs.getString("username");
-                        String email = rs.getString("email");
-                        String password = rs.getString("password");
+                    try (ResultSet rs = query.executeQuery()) {
+                        if (rs.next()) {
+                            String name = rs.getString("username");
+                            String email = rs.getString("email");
+                            String password = rs.getString("password");
             
-                        JSONObject respond = new JSONObject();
-                        respond.put("id", id);
-                        respond.put("username", name);
-                        respond.put("email", email);
-                        respond.put("password", hashPassword(password)); 
+                            JSONObject respond = new JSONObject();
+                            respond.put("id", id);
+                            respond.put("username", name);
+                            respond.put("email", email);
+                            respond.put("password", password); // Already hashed
             
-                        sendResponse(exchange, respond.toString(), 200);
+                            sendJson(exchange, respond, 200);
 
-                    } else {
-                        // Handle case where no user is found
-                        sendResponse(exchange, "User not found", 400);
+                        } else {
+                            // Handle case where no user is found
+                            sendResponse(exchange, "User not found", 400);
+                        }
                     }
                 } catch (SQLException e) {
-                    System.err.println(e.getMessage());
+                    log.error("Error reading user {}: {}", id, e.getMessage());
                     // Send an error response to client
                     sendResponse(exchange, "Internal Server Error", 500);
                 }
             
             } else {
             // Send a 405 Method Not Allowed response for non-POST requests
-            exchange.sendResponseHeaders(405, 0);
+            exchange.sendResponseHeaders(405, -1);
             exchange.close();
             }
         }
@@ -270,33 +844,183 @@ public class UserService {
         JSONObject responseJson = new JSONObject();
         responseJson.put("command", "shutdown");
 
-        sendResponse(exchange, responseJson.toString(), 200);
+        sendJson(exchange, responseJson, 200);
+        log.info("Connection pool: {}", connectionPool);
     
         server.stop(4); 
     }
 
 
     /**
-     * This method reads the request body from the given HttpExchange object and returns it as a string.
+     * Thrown when a request body is longer than maxRequestBytes.
+     */
+    static class RequestTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestTooLargeException(long length) {
+            super("Request body of " + length + " bytes exceeds the limit of " + maxRequestBytes + " bytes");
+        }
+    }
+
+
+    /**
+     * This method reads the request body from the given HttpExchange object.
+     * 
+     * If the client sent a Content-Length the body is read straight into an array of exactly that size, otherwise
+     * it is read up to the end of the stream. Bodies longer than maxRequestBytes are refused before they are read.
      * 
      * @param exchange  The HttpExchange object
-     * @return          The request body as a string
+     * @return          The request body as bytes
+     * @throws RequestTooLargeException If the body is longer than maxRequestBytes
      * @throws IOException
      */
-    private static String getRequestBody(HttpExchange exchange) throws IOException {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
-            StringBuilder requestBody = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                requestBody.append(line);
+    private static byte[] readRequestBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength == null) {
+                byte[] body = in.readNBytes(maxRequestBytes + 1);
+                if (body.length > maxRequestBytes) {
+                    throw new RequestTooLargeException(body.length);
+                }
+                return body;
+            }
+
+            long length;
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            if (length > maxRequestBytes) {
+                throw new RequestTooLargeException(length);
+            }
+            byte[] body = new byte[(int) length];
+            if (in.readNBytes(body, 0, body.length) < body.length) {
+                throw new IOException("Request body ended before Content-Length bytes were read");
+            }
+            return body;
+        }
+    }
+
+
+    /**
+     * This method reads the request body from the given HttpExchange object and parses it as a JSON object.
+     * 
+     * The bytes are decoded while they are parsed, so the body is never copied into a String.
+     * 
+     * @param exchange  The HttpExchange object
+     * @return          The request body as a JSON object
+     * @throws RequestTooLargeException If the body is longer than maxRequestBytes
+     * @throws IOException
+     */
+    private static JSONObject readRequestJson(HttpExchange exchange) throws IOException {
+        return parseJson(readRequestBody(exchange));
+    }
+
+
+    private static JSONObject parseJson(byte[] body) {
+        return new JSONObject(new JSONTokener(new Utf8Reader(body)));
+    }
+
+
+    /**
+     * Decodes UTF-8 bytes one character at a time for JSONTokener. It supports mark, so the tokener uses it as is
+     * instead of wrapping it in a BufferedReader, and it is not synchronized like the JDK readers.
+     * Malformed input decodes to U+FFFD.
+     */
+    static class Utf8Reader extends Reader {
+        private final byte[] bytes;
+        private int position;
+        private int markedPosition;
+        // The second half of a surrogate pair, or -1 if none is waiting
+        private int pendingLowSurrogate = -1;
+        private int markedLowSurrogate = -1;
+
+        public Utf8Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            if (pendingLowSurrogate >= 0) {
+                int low = pendingLowSurrogate;
+                pendingLowSurrogate = -1;
+                return low;
+            }
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int b = bytes[position++];
+            if (b >= 0) {
+                return b;
+            }
+            int extra;
+            int codePoint;
+            if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                return 0xFFFD;
+            }
+            for (int i = 0; i < extra; i++) {
+                if (position >= bytes.length || (bytes[position] & 0xC0) != 0x80) {
+                    return 0xFFFD;
+                }
+                codePoint = (codePoint << 6) | (bytes[position++] & 0x3F);
+            }
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                return Character.highSurrogate(codePoint);
             }
-            return requestBody.toString();
+            return codePoint;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            int count = 0;
+            while (count < length) {
+                int c = read();
+                if (c < 0) {
+                    return count == 0 ? -1 : count;
+                }
+                buffer[offset + count++] = (char) c;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) {
+            markedPosition = position;
+            markedLowSurrogate = pendingLowSurrogate;
+        }
+
+        @Override
+        public void reset() {
+            position = markedPosition;
+            pendingLowSurrogate = markedLowSurrogate;
+        }
+
+        @Override
+        public void close() {
         }
     }
 
 
     /**
-     * This method sends the given response string to the client.
+     * This method sends the given message to the client as plain text.
+     * 
+     * The fixed messages of this service are encoded only once.
      * 
      * @param exchange  The HttpExchange object
      * @param response  The response string
@@ -304,17 +1028,215 @@ public class UserService {
      * @throws IOException
      */
     private static void sendResponse(HttpExchange exchange, String response, int code) throws IOException {
-        if( code == 200){
-        exchange.sendResponseHeaders(200, response.length());
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes(StandardCharsets.UTF_8));
-        os.close();}
-        else{
-            exchange.sendResponseHeaders(code, response.length());
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes(StandardCharsets.UTF_8));
-            os.close();
+        byte[] body = CONSTANT_BODIES.get(response);
+        sendResponse(exchange, body != null ? body : response.getBytes(StandardCharsets.UTF_8), code, TEXT_CONTENT_TYPE);
+    }
+
+
+    /**
+     * This method sends the given JSON object to the client.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param json      The response body
+     * @param code      The response code
+     * @throws IOException
+     */
+    private static void sendJson(HttpExchange exchange, JSONObject json, int code) throws IOException {
+        sendResponse(exchange, json.toString().getBytes(StandardCharsets.UTF_8), code, JSON_CONTENT_TYPE);
+    }
+
+
+    /**
+     * This method sends an encoded body to the client with its exact length.
+     * 
+     * Bodies of at least gzipMinBytes are compressed for clients that accept gzip. An empty body is sent as no body.
+     * 
+     * @param exchange      The HttpExchange object
+     * @param body          The encoded response body
+     * @param code          The response code
+     * @param contentType   The Content-Type of the body
+     * @throws IOException
+     */
+    private static void sendResponse(HttpExchange exchange, byte[] body, int code, String contentType) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", contentType);
+        if (body.length >= gzipMinBytes) {
+            headers.set("Vary", "Accept-Encoding");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                }
+                body = compressed.toByteArray();
+                headers.set("Content-Encoding", "gzip");
+            }
+        }
+        if (body.length == 0) {
+            // There is no body stream to write to after announcing an empty body
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+
+    /**
+     * Checks that a new user has a username, email and password, and an ID that is not negative.
+     * 
+     * @param json  The user as a JSONObject
+     * @return      Whether the user can be created
+     */
+    private static boolean isValidNewUser(JSONObject json) {
+        return json.has("username") && !json.optString("username").isEmpty() &&
+            json.has("email") && !json.optString("email").isEmpty() &&
+            json.has("password") && !json.optString("password").isEmpty() &&
+            json.has("id") && json.optInt("id", -1) >= 0;
+    }
+
+
+    /**
+     * This method creates every user in the given array in one transaction, e.g. for a user migration.
+     * 
+     * Nothing is created unless every user is valid and has an ID that is neither taken nor repeated in the array.
+     * 
+     * If successfully created, it responds with {"created": <number of users>} and the status code 200.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param users     The users to create
+     */
+    private static void createUsers(HttpExchange exchange, JSONArray users) {
+        try {
+            if (users == null || users.isEmpty()) {
+                sendResponse(exchange, "Bad Request", 400);
+                return;
+            }
+            JSONArray ids = new JSONArray();
+            Set<Integer> distinctIds = new HashSet<>();
+            for (int i = 0; i < users.length(); i++) {
+                JSONObject user = users.optJSONObject(i);
+                if (user == null || !isValidNewUser(user)) {
+                    log.debug("User {} of the batch is missing fields. Command refused.", i);
+                    sendResponse(exchange, "Bad Request", 400);
+                    return;
+                }
+                if (!distinctIds.add(user.getInt("id"))) {
+                    sendResponse(exchange, "User ID already exists", 409);
+                    return;
+                }
+                ids.put(user.getInt("id"));
+            }
+
+            try (PooledConnection conn = connectionPool.borrow()) {
+                PreparedStatement pstmtCheck = conn.prepare("SELECT COUNT(*) FROM users WHERE id IN (SELECT value FROM json_each(?))");
+                PreparedStatement pstmtInsert = conn.prepare(
+                        "INSERT INTO users (id, username, email, password) VALUES (?, ?, ?, ?)");
+
+                conn.getConnection().setAutoCommit(false);
+                pstmtCheck.setString(1, ids.toString());
+                try (ResultSet rs = pstmtCheck.executeQuery()) {
+                    if (rs.next() && rs.getInt(1) > 0) {
+                        log.debug("{} of the user IDs already exist. Command refused.", rs.getInt(1));
+                        sendResponse(exchange, "User ID already exists", 409);
+                        return;
+                    }
+                }
+                for (int i = 0; i < users.length(); i++) {
+                    JSONObject user = users.getJSONObject(i);
+                    pstmtInsert.setInt(1, user.getInt("id"));
+                    pstmtInsert.setString(2, user.getString("username"));
+                    pstmtInsert.setString(3, user.getString("email"));
+                    pstmtInsert.setString(4, hashPassword(user.getString("password")));
+                    pstmtInsert.addBatch();
+                }
+                pstmtInsert.executeBatch();
+                conn.getConnection().commit();
+            }
+            sendJson(exchange, new JSONObject().put("created", users.length()), 200);
+        } catch (SQLException e) {
+            log.error("Error creating users: {}", e.getMessage());
+            try {
+                sendResponse(exchange, "Internal Server Error", 500);
+            } catch (IOException e1) {
+                log.warn("Error sending response", e1);
+            }
+        } catch (IOException e) {
+            log.warn("Error sending response: {}", e.getMessage());
+        }
+    }
+
+
+    /**
+     * Returns the IDs listed in the "ids" query parameter, e.g. ids=1,2,3, or null if the query has none.
+     * 
+     * @param uri   The request URI
+     * @return      The IDs in the order given
+     * @throws NumberFormatException If one of the IDs is not a number
+     */
+    private static int[] parseIds(URI uri) {
+        String query = uri.getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("ids=")) {
+                String[] values = parameter.substring(4).split(",");
+                int[] ids = new int[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    ids[i] = Integer.parseInt(values[i].trim());
+                }
+                return ids;
+            }
         }
+        return null;
+    }
+
+
+    /**
+     * This method responds with a JSON array of the users with the given IDs, read with a single query and in the
+     * order of the IDs. IDs without a user are left out.
+     * 
+     * @param exchange  The HttpExchange object
+     * @param ids       The user IDs
+     * @throws IOException
+     */
+    private static void getUsers(HttpExchange exchange, int[] ids) throws IOException {
+        JSONArray idArray = new JSONArray();
+        for (int id : ids) {
+            idArray.put(id);
+        }
+        Map<Integer, JSONObject> users = new HashMap<>();
+        try (PooledConnection conn = connectionPool.borrow()) {
+            PreparedStatement query = conn.prepare("SELECT * FROM users WHERE id IN (SELECT value FROM json_each(?))");
+            query.setString(1, idArray.toString());
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    JSONObject user = new JSONObject();
+                    user.put("id", rs.getInt("id"));
+                    user.put("username", rs.getString("username"));
+                    user.put("email", rs.getString("email"));
+                    user.put("password", rs.getString("password"));
+                    users.put(rs.getInt("id"), user);
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error reading users: {}", e.getMessage());
+            sendResponse(exchange, "Internal Server Error", 500);
+            return;
+        }
+
+        JSONArray response = new JSONArray();
+        for (int id : ids) {
+            JSONObject user = users.get(id);
+            if (user != null) {
+                response.put(user);
+            }
+        }
+        sendResponse(exchange, response.toString().getBytes(StandardCharsets.UTF_8), 200, JSON_CONTENT_TYPE);
     }
 
 
@@ -328,44 +1250,41 @@ public class UserService {
      * @param json      The request body as a JSONObject
      */
     private static void createUser(HttpExchange exchange, JSONObject json) {
-        System.out.println("Create");
-        String url = getDatabaseUrl();
+        log.debug("Create");
     
         // Validate required fields
-        if (!json.has("username") || json.optString("username").isEmpty() ||
-            !json.has("email") || json.optString("email").isEmpty() ||
-            !json.has("password") || json.optString("password").isEmpty() ||
-            !json.has("id") || (json.getInt("id") < 0)) {
+        if (!isValidNewUser(json)) {
     
-            System.err.println("Username, Email, Password, or ID is empty. Command refused.");
+            log.debug("Username, Email, Password, or ID is empty. Command refused.");
             try {
                 sendResponse(exchange, "Bad Request", 400);
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("Error sending response", e);
             }
             return;
         }
     
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement pstmtCheck = conn.prepareStatement(
-                     "SELECT COUNT(*) FROM users WHERE id = ?");
-             PreparedStatement pstmtInsert = conn.prepareStatement(
-                     "INSERT INTO users (id, username, email, password) VALUES (?, ?, ?, ?)")) {
+        try (PooledConnection conn = connectionPool.borrow()) {
+            PreparedStatement pstmtCheck = conn.prepare("SELECT COUNT(*) FROM users WHERE id = ?");
+            PreparedStatement pstmtInsert = conn.prepare(
+                    "INSERT INTO users (id, username, email, password) VALUES (?, ?, ?, ?)");
     
             // Check if ID already exists
             pstmtCheck.setInt(1, json.getInt("id"));
-            ResultSet rs = pstmtCheck.executeQuery();
-            if (rs.next() && rs.getInt(1) > 0) {
-                System.err.println("ID already exists. Command refused.");
-                sendResponse(exchange, "User ID already exists", 409);
-                return;
+            try (ResultSet rs = pstmtCheck.executeQuery()) {
+                if (rs.next() && rs.getInt(1) > 0) {
+                    log.debug("ID already exists. Command refused.");
+                    sendResponse(exchange, "User ID already exists", 409);
+                    return;
+                }
             }
     
             // Insert the new user 
+            String passwordHash = hashPassword(json.getString("password"));
             pstmtInsert.setInt(1, json.getInt("id"));
             pstmtInsert.setString(2, json.getString("username"));
             pstmtInsert.setString(3, json.getString("email"));
-            pstmtInsert.setString(4, json.getString("password"));
+            pstmtInsert.setString(4, passwordHash);
             pstmtInsert.executeUpdate();
     
             // Prepare response JSON
@@ -373,20 +1292,20 @@ public class UserService {
             responseJson.put("id", json.getInt("id"));
             responseJson.put("username", json.getString("username"));
             responseJson.put("email", json.getString("email"));
-            responseJson.put("password", hashPassword(json.getString("password"))); 
+            responseJson.put("password", passwordHash); 
     
             // Send response
-            sendResponse(exchange, responseJson.toString(), 200);
+            sendJson(exchange, responseJson, 200);
     
         } catch (SQLException e) {
-            System.err.println(e.getMessage());
+            log.error("Error creating user: {}", e.getMessage());
             try {
                 sendResponse(exchange, "Internal Server Error", 500);
             } catch (IOException e1) {
-                e1.printStackTrace();
+                log.warn("Error sending response", e1);
             }
         } catch (IOException e) {
-            System.err.println(e.getMessage());
+            log.warn("Error sending response: {}", e.getMessage());
         }
     }
 
@@ -402,22 +1321,20 @@ public class UserService {
      * @param json      The request body as a JSONObject
      */
     private static void updateUser(HttpExchange exchange, JSONObject json) {
-        String url = getDatabaseUrl();
-    
         // Check for empty or missing id
         if (!json.has("id")) {
-            System.err.println("ID is missing. Command refused.");
+            log.debug("ID is missing. Command refused.");
             try {
                 sendResponse(exchange, "Bad Request", 400);
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("Error sending response", e);
             }
             return;
         }
     
         int userId = json.getInt("id");
     
-        try (Connection conn = DriverManager.getConnection(url)) {
+        try (PooledConnection conn = connectionPool.borrow()) {
             // Building the SQL UPDATE statement dynamically
             StringBuilder sql = new StringBuilder("UPDATE users SET ");
             List<Object> params = new ArrayList<>();
@@ -437,11 +1354,12 @@ public class UserService {
             if (json.has("password") && !json.optString("password").isEmpty()) {
                 if (needComma) sql.append(", ");
                 sql.append("password = ?");
-                params.add(json.getString("password")); // Hash the password
+                params.add(hashPassword(json.getString("password")));
             }
             sql.append(" WHERE id = ?");
     
-            try (PreparedStatement pstmtUpdate = conn.prepareStatement(sql.toString())) {
+            // The SET clause depends on the provided fields, so this statement is not cached
+            try (PreparedStatement pstmtUpdate = conn.getConnection().prepareStatement(sql.toString())) {
                 int paramIndex = 1;
                 for (Object param : params) {
                     pstmtUpdate.setObject(paramIndex++, param);
@@ -451,39 +1369,38 @@ public class UserService {
                 int affectedRows = pstmtUpdate.executeUpdate();
     
                 if (affectedRows == 0) {
-                    System.err.println("User ID does not exist. No update performed.");
+                    log.debug("User ID does not exist. No update performed.");
                     sendResponse(exchange, "User ID does not exist", 400);
                     return;
                 }
             }
     
             // After updating, retrieve all user details to send back
-            try (PreparedStatement pstmtSelect = conn.prepareStatement("SELECT * FROM users WHERE id = ?")) {
-                pstmtSelect.setInt(1, userId);
-                ResultSet rs = pstmtSelect.executeQuery();
-    
+            PreparedStatement pstmtSelect = conn.prepare("SELECT * FROM users WHERE id = ?");
+            pstmtSelect.setInt(1, userId);
+            try (ResultSet rs = pstmtSelect.executeQuery()) {
                 if (rs.next()) {
                     JSONObject responseJson = new JSONObject();
                     responseJson.put("id", rs.getInt("id"));
                     responseJson.put("username", rs.getString("username"));
                     responseJson.put("email", rs.getString("email"));
-                    responseJson.put("password", hashPassword(rs.getString("password")));
+                    responseJson.put("password", rs.getString("password"));
     
-                    sendResponse(exchange, responseJson.toString(), 200);
+                    sendJson(exchange, responseJson, 200);
                 } else {
                     sendResponse(exchange, "User not found after update", 500);
                 }
             }
     
         } catch (SQLException e) {
-            System.err.println(e.getMessage());
+            log.error("Error updating user: {}", e.getMessage());
             try {
                 sendResponse(exchange, "Internal Server Error", 500);
             } catch (IOException e1) {
-                e1.printStackTrace();
+                log.warn("Error sending response", e1);
             }
         } catch (IOException e) {
-            System.err.println("Error sending response: " + e.getMessage());
+            log.warn("Error sending response: {}", e.getMessage());
         }
     }
 
@@ -498,44 +1415,455 @@ public class UserService {
      * @param json      The request body as a JSONObject
      */
     private static void deleteUser(HttpExchange exchange, JSONObject json) {
-        String url = getDatabaseUrl();
         if (!json.has("id") || !json.has("username") || !json.has("email") || !json.has("password")) {
-            System.err.println("Missing required fields. Command refused.");
+            log.debug("Missing required fields. Command refused.");
             try {
                 sendResponse(exchange, "Bad Request: Missing required fields", 400);
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("Error sending response", e);
             }
             return;
         }
     
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement pstmt = conn.prepareStatement(
-                     "DELETE FROM users WHERE id = ? AND username = ? AND email = ? AND password = ?")) {
+        try (PooledConnection conn = connectionPool.borrow()) {
+            PreparedStatement pstmt = conn.prepare(
+                    "DELETE FROM users WHERE id = ? AND username = ? AND email = ? AND password = ?");
             pstmt.setInt(1, json.getInt("id"));
             pstmt.setString(2, json.getString("username"));
             pstmt.setString(3, json.getString("email"));
-            pstmt.setString(4, json.getString("password"));
+            pstmt.setString(4, hashPassword(json.getString("password")));
     
             int affectedRows = pstmt.executeUpdate();
     
             if (affectedRows == 0) {
-                System.err.println("No user found or user could not be deleted.");
+                log.debug("No user found or user could not be deleted.");
                 sendResponse(exchange, "", 400); 
             } else {
                 sendResponse(exchange, "", 200); 
             }
     
         } catch (SQLException e) {
-            System.err.println(e.getMessage());
+            log.error("Error deleting user: {}", e.getMessage());
             try {
                 sendResponse(exchange, "", 500);
             } catch (IOException e1) {
-                e1.printStackTrace();
+                log.warn("Error sending response", e1);
             } 
         } catch (IOException e) {
-            System.err.println("IOException occurred while sending response: " + e.getMessage());
+            log.warn("IOException occurred while sending response: {}", e.getMessage());
+        }
+    }
+
+
+    /**
+     * Holds the measurements this service exports on /metrics and renders them in the Prometheus text format.
+     * 
+     * A metric is registered once with its name, labels and the object that holds its value: a LongAdder or
+     * LongSupplier for counters, an AtomicLong or LongSupplier for gauges, and a Histogram for latencies.
+     */
+    static class Metrics {
+        private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+        /**
+         * A latency histogram with fixed buckets from 0.5 ms to 10 s.
+         */
+        static class Histogram {
+            // Upper bounds of the buckets in seconds, the +Inf bucket is the total count
+            private static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+            private final LongAdder[] bucketCounts = new LongAdder[BUCKETS.length];
+            private final LongAdder count = new LongAdder();
+            private final DoubleAdder sumSeconds = new DoubleAdder();
+
+            Histogram() {
+                for (int i = 0; i < bucketCounts.length; i++) {
+                    bucketCounts[i] = new LongAdder();
+                }
+            }
+
+            void observeNanos(long nanos) {
+                double seconds = nanos / 1e9;
+                int bucket = 0;
+                while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                    bucket++;
+                }
+                if (bucket < BUCKETS.length) {
+                    bucketCounts[bucket].increment();
+                }
+                count.increment();
+                sumSeconds.add(seconds);
+            }
+
+            void write(StringBuilder out, String name, String labels) {
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                long cumulative = 0;
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    cumulative += bucketCounts[i].sum();
+                    out.append(name).append("_bucket{").append(prefix).append("le=\"").append(BUCKETS[i]).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+                long total = count.sum();
+                out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(total).append('\n');
+                out.append(name).append("_sum").append(braces(labels)).append(' ').append(sumSeconds.sum()).append('\n');
+                out.append(name).append("_count").append(braces(labels)).append(' ').append(total).append('\n');
+            }
+        }
+
+        private static class Family {
+            final String type;
+            final String help;
+            final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+            Family(String type, String help) {
+                this.type = type;
+                this.help = help;
+            }
+        }
+
+        /**
+         * Formats label pairs, e.g. labels("handler", "/user", "command", "create").
+         */
+        static String labels(String... namesAndValues) {
+            StringBuilder labels = new StringBuilder();
+            for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+                if (labels.length() > 0) {
+                    labels.append(',');
+                }
+                String value = namesAndValues[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+                labels.append(namesAndValues[i]).append("=\"").append(value).append('"');
+            }
+            return labels.toString();
+        }
+
+        private static String braces(String labels) {
+            return labels.isEmpty() ? "" : "{" + labels + "}";
+        }
+
+        /**
+         * Returns the value already registered under the name and labels, or registers the given one.
+         */
+        @SuppressWarnings("unchecked")
+        private <T> T register(String name, String type, String help, String labels, T value) {
+            Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+            return (T) family.series.computeIfAbsent(labels, key -> value);
+        }
+
+        LongAdder counter(String name, String help, String labels) {
+            return register(name, "counter", help, labels, new LongAdder());
+        }
+
+        void counter(String name, String help, String labels, LongSupplier value) {
+            register(name, "counter", help, labels, value);
+        }
+
+        AtomicLong gauge(String name, String help, String labels) {
+            return register(name, "gauge", help, labels, new AtomicLong());
+        }
+
+        void gauge(String name, String help, String labels, LongSupplier value) {
+            register(name, "gauge", help, labels, value);
+        }
+
+        Histogram histogram(String name, String help, String labels) {
+            return register(name, "histogram", help, labels, new Histogram());
+        }
+
+        void histogram(String name, String help, String labels, Histogram histogram) {
+            register(name, "histogram", help, labels, histogram);
+        }
+
+        String render() {
+            StringBuilder out = new StringBuilder(4096);
+            families.forEach((name, family) -> {
+                out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+                family.series.forEach((labels, value) -> {
+                    if (value instanceof Histogram) {
+                        ((Histogram) value).write(out, name, labels);
+                        return;
+                    }
+                    long number;
+                    if (value instanceof LongAdder) {
+                        number = ((LongAdder) value).sum();
+                    } else if (value instanceof AtomicLong) {
+                        number = ((AtomicLong) value).get();
+                    } else {
+                        number = ((LongSupplier) value).getAsLong();
+                    }
+                    out.append(name).append(braces(labels)).append(' ').append(number).append('\n');
+                });
+            });
+            return out.toString();
+        }
+    }
+
+
+    /**
+     * Wraps a handler to count its requests and errors, track how many are in flight and time them, per command.
+     * 
+     * The wrapped handler reports the command of a POST request through the "command" exchange attribute. Commands
+     * outside the expected set are counted as "other", so clients cannot create new series. With no expected
+     * commands, requests are counted by method only.
+     */
+    static class InstrumentedHandler implements HttpHandler {
+        static final String COMMAND_ATTRIBUTE = "command";
+
+        private final String path;
+        private final Set<String> commands;
+        private final HttpHandler handler;
+        private final AtomicLong inFlight;
+
+        public InstrumentedHandler(String path, Set<String> commands, HttpHandler handler) {
+            this.path = path;
+            this.commands = commands;
+            this.handler = handler;
+            this.inFlight = metrics.gauge("http_requests_in_flight", "Requests currently being handled.",
+                    Metrics.labels("handler", path));
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            inFlight.incrementAndGet();
+            boolean failed = true;
+            try {
+                handler.handle(exchange);
+                failed = exchange.getResponseCode() == -1 || exchange.getResponseCode() >= 500;
+            } finally {
+                inFlight.decrementAndGet();
+                Object command = exchange.getAttribute(COMMAND_ATTRIBUTE);
+                String label;
+                if (!"POST".equals(exchange.getRequestMethod()) || commands.isEmpty()) {
+                    label = exchange.getRequestMethod();
+                } else {
+                    label = command != null && commands.contains(command) ? (String) command : "other";
+                }
+                String labels = Metrics.labels("handler", path, "command", label);
+                metrics.counter("http_requests_total", "Requests handled.", labels).increment();
+                if (failed) {
+                    metrics.counter("http_request_errors_total", "Requests that failed or were answered with a 5xx status.", labels).increment();
+                }
+                metrics.histogram("http_request_duration_seconds", "Time to handle a request.", labels).observeNanos(System.nanoTime() - start);
+            }
         }
     }
 
+
+    /**
+     * Serves the metrics of this service in the Prometheus text format.
+     */
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, metrics.render().getBytes(StandardCharsets.UTF_8), 200, "text/plain; version=0.0.4; charset=utf-8");
+        }
+    }
+
+
+    /**
+     * The SLF4J provider of this service. Its loggers format enabled messages on the calling thread and queue them
+     * for a single writer thread, so a request never waits for the console.
+     * 
+     * The writer drains the queue in batches and writes each batch with one call per stream. When the queue is full,
+     * messages below WARN are dropped and counted rather than holding up the request; warnings and errors wait.
+     * Disabled levels cost only a volatile read, and the messages of disabled levels are never formatted.
+     * 
+     * Each service is a single source file compiled against lib/, which holds only slf4j-api, so a stock
+     * asynchronous appender such as logback's AsyncAppender would add a logging backend and its configuration
+     * file to every service. Instead this provider is copied into each service, and the copies are kept identical.
+     */
+    public static class AsyncLogProvider implements SLF4JServiceProvider {
+        private static final int QUEUE_CAPACITY = 8192;
+        private static final int BATCH_SIZE = 512;
+        // Named after the service, so this class is the same in every service
+        private static final String WRITER_THREAD = AsyncLogProvider.class.getEnclosingClass().getSimpleName() + "-log-writer";
+        private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+        private static final BlockingQueue<LogLine> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private static final AtomicLong dropped = new AtomicLong();
+        private static final Object writeLock = new Object();
+        private static long reportedDrops = 0; // Guarded by writeLock
+        private static volatile int threshold = Level.INFO.toInt();
+
+        private final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+        private final ILoggerFactory loggerFactory = name -> loggers.computeIfAbsent(name, AsyncLogger::new);
+        private final IMarkerFactory markerFactory = new BasicMarkerFactory();
+        private final MDCAdapter mdcAdapter = new BasicMDCAdapter();
+
+        private static class LogLine {
+            final long timeMillis = System.currentTimeMillis();
+            final String thread = Thread.currentThread().getName();
+            final Level level;
+            final String logger;
+            final String message;
+            final Throwable throwable;
+
+            LogLine(Level level, String logger, String message, Throwable throwable) {
+                this.level = level;
+                this.logger = logger;
+                this.message = message;
+                this.throwable = throwable;
+            }
+        }
+
+        private static class AsyncLogger extends LegacyAbstractLogger {
+            private static final long serialVersionUID = 1L;
+
+            AsyncLogger(String name) {
+                this.name = name;
+            }
+
+            @Override
+            public boolean isTraceEnabled() {
+                return threshold <= Level.TRACE.toInt();
+            }
+
+            @Override
+            public boolean isDebugEnabled() {
+                return threshold <= Level.DEBUG.toInt();
+            }
+
+            @Override
+            public boolean isInfoEnabled() {
+                return threshold <= Level.INFO.toInt();
+            }
+
+            @Override
+            public boolean isWarnEnabled() {
+                return threshold <= Level.WARN.toInt();
+            }
+
+            @Override
+            public boolean isErrorEnabled() {
+                return threshold <= Level.ERROR.toInt();
+            }
+
+            @Override
+            protected String getFullyQualifiedCallerName() {
+                return null;
+            }
+
+            @Override
+            protected void handleNormalizedLoggingCall(Level level, Marker marker, String pattern, Object[] arguments, Throwable throwable) {
+                String message = arguments == null || arguments.length == 0 ? pattern : MessageFormatter.basicArrayFormat(pattern, arguments);
+                LogLine line = new LogLine(level, name, message, throwable);
+                if (level.toInt() >= Level.WARN.toInt()) {
+                    try {
+                        queue.put(line);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (!queue.offer(line)) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Sets the lowest level that is logged: TRACE, DEBUG, INFO, WARN, ERROR or OFF.
+         */
+        static void setLevel(String levelName) {
+            if ("OFF".equalsIgnoreCase(levelName)) {
+                threshold = Integer.MAX_VALUE;
+                return;
+            }
+            try {
+                threshold = Level.valueOf(levelName.toUpperCase()).toInt();
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log level " + levelName + ", logging at INFO");
+                threshold = Level.INFO.toInt();
+            }
+        }
+
+        /**
+         * Returns how many messages were dropped since startup because the queue was full.
+         */
+        static long getDroppedCount() {
+            return dropped.get();
+        }
+
+        @Override
+        public void initialize() {
+            Thread writer = new Thread(AsyncLogProvider::runWriter, WRITER_THREAD);
+            writer.setDaemon(true);
+            writer.start();
+            // Write what is still queued when the JVM exits, a batch at a time
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                while (!queue.isEmpty()) {
+                    writeBatch(new ArrayList<>(BATCH_SIZE));
+                }
+            }));
+        }
+
+        private static void runWriter() {
+            List<LogLine> batch = new ArrayList<>(BATCH_SIZE);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+
+        private static void writeBatch(List<LogLine> batch) {
+            synchronized (writeLock) {
+                queue.drainTo(batch, BATCH_SIZE - batch.size());
+                StringBuilder out = new StringBuilder();
+                StringBuilder err = new StringBuilder();
+                for (LogLine line : batch) {
+                    StringBuilder target = line.level.toInt() >= Level.WARN.toInt() ? err : out;
+                    target.append(TIMESTAMP.format(Instant.ofEpochMilli(line.timeMillis))).append(' ')
+                            .append(line.level).append(line.level.toString().length() == 4 ? "  [" : " [")
+                            .append(line.thread).append("] ").append(line.logger).append(" - ").append(line.message)
+                            .append(System.lineSeparator());
+                    if (line.throwable != null) {
+                        StringWriter trace = new StringWriter();
+                        line.throwable.printStackTrace(new PrintWriter(trace));
+                        target.append(trace);
+                    }
+                }
+                long lost = dropped.get() - reportedDrops;
+                if (lost > 0) {
+                    reportedDrops += lost;
+                    err.append(TIMESTAMP.format(Instant.now())).append(" WARN  [").append(WRITER_THREAD).append("] ").append(AsyncLogProvider.class.getName())
+                            .append(" - Dropped ").append(lost).append(" log messages, the queue was full").append(System.lineSeparator());
+                }
+                if (out.length() > 0) {
+                    System.out.print(out);
+                    System.out.flush();
+                }
+                if (err.length() > 0) {
+                    System.err.print(err);
+                    System.err.flush();
+                }
+            }
+        }
+
+        @Override
+        public ILoggerFactory getLoggerFactory() {
+            return loggerFactory;
+        }
+
+        @Override
+        public IMarkerFactory getMarkerFactory() {
+            return markerFactory;
+        }
+
+        @Override
+        public MDCAdapter getMDCAdapter() {
+            return mdcAdapter;
+        }
+
+        @Override
+        public String getRequestedApiVersion() {
+            return "2.0.99";
+        }
+    }
 }